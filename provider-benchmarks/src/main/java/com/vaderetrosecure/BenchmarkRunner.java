@@ -0,0 +1,44 @@
+/**
+ *
+ */
+package com.vaderetrosecure;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The entry point of the benchmarks jar.
+ * It accepts the JMH command line options, but writes results as JSON to {@value #DEFAULT_RESULT_FILE} unless
+ * the {@code -rf} or {@code -rff} options are given, so that results of successive runs can be compared.
+ */
+public final class BenchmarkRunner
+{
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    private BenchmarkRunner()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams() || cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats())
+        {
+            Main.main(args);
+            return;
+        }
+
+        // options set on the builder override the parent ones: defaults are only set when the command line lacks them
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue())
+            builder.resultFormat(ResultFormatType.JSON);
+        if (!cmdOptions.getResult().hasValue())
+            builder.result(DEFAULT_RESULT_FILE);
+
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore;
+
+import java.security.Key;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreFixture;
+
+/**
+ * Latency of the key store reads and writes of private keys.
+ * Both derive a key from the password, unless {@code keyCacheTtl} enables the cache of derived keys for reads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VRKeyStoreSpiBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class KeyStore
+    {
+        @Param({ KeyStoreFixture.MEMORY, KeyStoreFixture.H2 })
+        public String dao;
+
+        @Param({ "1000" })
+        public int entries;
+
+        @Param({ "0", "60" })
+        public String keyCacheTtl;
+
+        VRKeyStoreSpi keyStoreSpi;
+        PrivateKey privateKey;
+        Certificate[] chain;
+
+        @Setup
+        public void setUp() throws Exception
+        {
+            KeyStoreDAO keyStoreDAO = KeyStoreFixture.createDAO(dao);
+            KeyStoreFixture.populate(keyStoreDAO, entries);
+
+            // the cache of derived keys is configured when the key store is created
+            System.setProperty(DerivedKeyCache.KEY_CACHE_TTL_PROPERTY, keyCacheTtl);
+            keyStoreSpi = new VRKeyStoreSpi(keyStoreDAO);
+            keyStoreSpi.engineLoad(null, KeyStoreFixture.MASTER_PASSWORD.toCharArray());
+
+            privateKey = KeyStoreFixture.loadPrivateKey();
+            chain = new Certificate[] { KeyStoreFixture.loadCertificate() };
+        }
+    }
+
+    @Benchmark
+    public Key engineGetKey(KeyStore keyStore) throws NoSuchAlgorithmException, UnrecoverableKeyException
+    {
+        String alias = KeyStoreFixture.alias(ThreadLocalRandom.current().nextInt(keyStore.entries));
+        return keyStore.keyStoreSpi.engineGetKey(alias, KeyStoreFixture.KEY_PASSWORD.toCharArray());
+    }
+
+    @Benchmark
+    public void engineSetKeyEntry(KeyStore keyStore) throws KeyStoreException
+    {
+        // existing entries are replaced, so the key store keeps its size
+        String alias = KeyStoreFixture.alias(ThreadLocalRandom.current().nextInt(keyStore.entries));
+        keyStore.keyStoreSpi.engineSetKeyEntry(alias, keyStore.privateKey, KeyStoreFixture.KEY_PASSWORD.toCharArray(), keyStore.chain);
+    }
+}
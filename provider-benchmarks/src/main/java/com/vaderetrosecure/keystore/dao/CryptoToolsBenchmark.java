@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the cryptographic helpers used on each key read and write.
+ * Run it with one thread, then with all cores, to check that throughput scales with the number of threads:
+ * <pre>
+ * java -jar provider-benchmarks/target/benchmarks.jar CryptoToolsBenchmark -t 1
+ * java -jar provider-benchmarks/target/benchmarks.jar CryptoToolsBenchmark -t max</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CryptoToolsBenchmark
+{
+    private static final char[] PASSWORD = "benchmark-password".toCharArray();
+
+    private byte[] salt;
+    private byte[] iv;
+    private SecretKey aesKey;
+    private byte[] data;
+    private byte[] cipheredData;
+    private KeyPair rsaKeyPair;
+    private byte[] rsaCipheredKey;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException
+    {
+        salt = CryptoTools.generateRandomBytes(16);
+        iv = CryptoTools.generateIV();
+        aesKey = new SecretKeySpec(CryptoTools.generateRandomBytes(32), "AES");
+        data = CryptoTools.generateRandomBytes(1024);
+        cipheredData = CryptoTools.cipherData(data, aesKey, iv);
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        rsaKeyPair = kpg.generateKeyPair();
+        rsaCipheredKey = CryptoTools.cipherData(aesKey.getEncoded(), rsaKeyPair.getPublic());
+    }
+
+    @Benchmark
+    public byte[] generateIV()
+    {
+        return CryptoTools.generateIV();
+    }
+
+    @Benchmark
+    public byte[] cipherAES() throws GeneralSecurityException
+    {
+        return CryptoTools.cipherData(data, aesKey, iv);
+    }
+
+    @Benchmark
+    public byte[] decipherAES() throws GeneralSecurityException
+    {
+        return CryptoTools.decipherData(cipheredData, aesKey, iv);
+    }
+
+    @Benchmark
+    public byte[] decipherRSA() throws GeneralSecurityException
+    {
+        return CryptoTools.decipherData(rsaCipheredKey, rsaKeyPair.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] digestSHA2() throws GeneralSecurityException
+    {
+        return CryptoTools.digestSHA2(data);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MINUTES)
+    public SecretKey deriveAESKey() throws GeneralSecurityException
+    {
+        return CryptoTools.getAESSecretKey(PASSWORD, salt);
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.vaderetrosecure.keystore.dao.file.TemporaryFileKeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.memory.ConcurrentKeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.sql.EmbeddedSqlKeyStoreDAO;
+
+/**
+ * Key stores shared by the benchmarks.
+ * Each entry holds the same RSA key and certificate, under the alias {@code alias-<i>} and the name {@code host-<i>.example.com}.
+ * Keys are not locked with the key store public key, so that any key manager can read them.
+ */
+public final class KeyStoreFixture
+{
+    public static final String MASTER_PASSWORD = "master-password";
+    public static final String KEY_PASSWORD = "key-password";
+
+    /**
+     * The DAO backed by memory, {@link ConcurrentKeyStoreDAO}.
+     */
+    public static final String MEMORY = "memory";
+
+    /**
+     * The SQL DAO backed by an embedded H2 database.
+     */
+    public static final String H2 = "h2";
+
+    /**
+     * The file DAO backed by a log in a temporary directory.
+     */
+    public static final String FILE = "file";
+
+    private KeyStoreFixture()
+    {
+    }
+
+    /**
+     * Create an empty DAO.
+     *
+     * @param type {@link #MEMORY}, {@link #H2} or {@link #FILE}.
+     * @return the new DAO, its structure checked.
+     * @throws KeyStoreDAOException if the DAO can not be created.
+     */
+    public static KeyStoreDAO createDAO(String type) throws KeyStoreDAOException
+    {
+        KeyStoreDAO dao;
+        switch (type)
+        {
+        case MEMORY:
+            dao = new ConcurrentKeyStoreDAO();
+            break;
+        case H2:
+            dao = EmbeddedSqlKeyStoreDAO.create();
+            break;
+        case FILE:
+            dao = TemporaryFileKeyStoreDAO.create();
+            break;
+        default:
+            throw new IllegalArgumentException("unknown DAO type: " + type);
+        }
+
+        dao.checkDAOStructure();
+        return dao;
+    }
+
+    /**
+     * Set the integrity data of a DAO and fill it with private key entries.
+     *
+     * @param dao the DAO to fill.
+     * @param entryCount the number of entries.
+     * @throws GeneralSecurityException if entries can not be ciphered.
+     * @throws IOException if the key or the certificate can not be read.
+     * @throws KeyStoreDAOException if the DAO can not be written.
+     */
+    public static void populate(KeyStoreDAO dao, int entryCount) throws GeneralSecurityException, IOException, KeyStoreDAOException
+    {
+        IntegrityData integrityData = new IntegrityData(MASTER_PASSWORD.toCharArray());
+        dao.setIntegrityData(integrityData);
+
+        // deriving the key protection is slow: all entries share the same one
+        KeyProtection kp = KeyProtection.generateKeyProtection(KEY_PASSWORD.toCharArray(), integrityData.getSalt());
+        LockedKeyProtection lkp = kp.getLockedKeyProtection(null);
+        PrivateKey privateKey = loadPrivateKey();
+        CertificateData certificateData = new CertificateData(loadCertificate());
+        Date creationDate = Date.from(Instant.now());
+
+        List<KeyStoreEntry> entries = new ArrayList<>(entryCount);
+        for (int i = 0; i < entryCount; i++)
+        {
+            KeyStoreEntry kse = new KeyStoreEntry(alias(i), creationDate, privateKey, kp, Collections.singletonList(certificateData), Collections.singletonList(hostName(i)));
+            kse.setLockedKeyProtection(lkp);
+            entries.add(kse);
+        }
+        dao.setEntries(entries);
+    }
+
+    /**
+     * Return the alias of an entry.
+     *
+     * @param index the index of the entry.
+     * @return the alias.
+     */
+    public static String alias(int index)
+    {
+        return "alias-" + index;
+    }
+
+    /**
+     * Return the host name of an entry.
+     *
+     * @param index the index of the entry.
+     * @return the host name.
+     */
+    public static String hostName(int index)
+    {
+        return "host-" + index + ".example.com";
+    }
+
+    /**
+     * Load the RSA private key shared by all entries.
+     *
+     * @return the private key.
+     * @throws GeneralSecurityException if the key can not be decoded.
+     * @throws IOException if the key can not be read.
+     */
+    public static PrivateKey loadPrivateKey() throws GeneralSecurityException, IOException
+    {
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        return kf.generatePrivate(new PKCS8EncodedKeySpec(readResource("test.com.key")));
+    }
+
+    /**
+     * Load the certificate shared by all entries.
+     *
+     * @return the certificate.
+     * @throws GeneralSecurityException if the certificate can not be decoded.
+     * @throws IOException if the certificate can not be read.
+     */
+    public static Certificate loadCertificate() throws GeneralSecurityException, IOException
+    {
+        try (InputStream is = openResource("test.com.crt"))
+        {
+            return CertificateFactory.getInstance("X.509").generateCertificate(is);
+        }
+    }
+
+    private static byte[] readResource(String name) throws IOException
+    {
+        // resources are read from the benchmarks jar, so they can not be accessed as files
+        try (InputStream is = openResource(name); ByteArrayOutputStream os = new ByteArrayOutputStream())
+        {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = is.read(buffer)) > 0)
+                os.write(buffer, 0, n);
+            return os.toByteArray();
+        }
+    }
+
+    private static InputStream openResource(String name) throws IOException
+    {
+        InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+        if (is == null)
+            throw new IOException("resource not found: " + name);
+        return is;
+    }
+}
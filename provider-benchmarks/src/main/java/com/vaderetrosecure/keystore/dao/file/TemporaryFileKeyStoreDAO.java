@@ -0,0 +1,45 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+
+/**
+ * Create file DAOs backed by logs in temporary directories.
+ * Each DAO gets its own directory, which lives as long as the JVM.
+ */
+public final class TemporaryFileKeyStoreDAO
+{
+    private TemporaryFileKeyStoreDAO()
+    {
+    }
+
+    /**
+     * Create a new file DAO on an empty log.
+     *
+     * @return the new DAO, its log opened.
+     * @throws KeyStoreDAOException if the log can not be opened.
+     */
+    public static KeyStoreDAO create() throws KeyStoreDAOException
+    {
+        try
+        {
+            Path directory = Files.createTempDirectory("keystore");
+            directory.toFile().deleteOnExit();
+            FileKeyStoreDAO dao = new FileKeyStoreDAO(directory, 0.5, 1048576L);
+            dao.open();
+            return dao;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.sql;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+
+/**
+ * Create SQL DAOs backed by embedded H2 databases, in the MySQL compatibility mode.
+ * Each DAO gets its own in-memory database, which lives as long as the JVM.
+ */
+public final class EmbeddedSqlKeyStoreDAO
+{
+    private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+    private EmbeddedSqlKeyStoreDAO()
+    {
+    }
+
+    /**
+     * Create a new SQL DAO on an empty database.
+     * Its structure must be checked before use.
+     *
+     * @return the new DAO.
+     */
+    public static KeyStoreDAO create()
+    {
+        String url = "jdbc:h2:mem:keystore" + DATABASE_COUNTER.incrementAndGet() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+        JdbcConnectionPool dataSource = JdbcConnectionPool.create(url, "keystore", "keystore");
+        dataSource.setMaxConnections(64);
+        return new SqlKeyStoreDAO(dataSource, new StructureManager(dataSource));
+    }
+}
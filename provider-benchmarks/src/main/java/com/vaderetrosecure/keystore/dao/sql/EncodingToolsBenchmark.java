@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.sql;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the hashes computed on each SQL DAO call, with many threads hashing concurrently.
+ * {@code hotName} hashes the same host name again and again, as SNI lookups do, while {@code uniqueName}
+ * hashes a new name on each call, as scanners sending random names do: both must scale with the threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class EncodingToolsBenchmark
+{
+    @State(Scope.Thread)
+    public static class Names
+    {
+        private long counter;
+
+        String next()
+        {
+            return "host-" + Thread.currentThread().getId() + "-" + (counter++) + ".example.com";
+        }
+    }
+
+    @Benchmark
+    public byte[] hotName()
+    {
+        return EncodingTools.toBinarySHA2("www.example.com");
+    }
+
+    @Benchmark
+    public byte[] uniqueName(Names names)
+    {
+        return EncodingTools.toBinarySHA2(names.next());
+    }
+
+    @Benchmark
+    public String hexEncodedName()
+    {
+        return EncodingTools.toSHA2("www.example.com");
+    }
+}
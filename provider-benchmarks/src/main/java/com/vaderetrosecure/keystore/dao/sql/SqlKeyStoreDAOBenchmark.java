@@ -0,0 +1,65 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.sql;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreFixture;
+
+/**
+ * Latency of the SQL DAO reads, on an embedded H2 database.
+ * It measures the queries and the decoding of rows, without any network cost.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SqlKeyStoreDAOBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Database
+    {
+        @Param({ "1000" })
+        public int entries;
+
+        KeyStoreDAO keyStoreDAO;
+
+        @Setup
+        public void setUp() throws Exception
+        {
+            keyStoreDAO = KeyStoreFixture.createDAO(KeyStoreFixture.H2);
+            KeyStoreFixture.populate(keyStoreDAO, entries);
+        }
+    }
+
+    @Benchmark
+    public List<KeyStoreEntry> getEntries(Database database) throws KeyStoreDAOException
+    {
+        return database.keyStoreDAO.getEntries(KeyStoreFixture.hostName(ThreadLocalRandom.current().nextInt(database.entries)));
+    }
+
+    @Benchmark
+    public KeyStoreEntry getEntry(Database database) throws KeyStoreDAOException
+    {
+        return database.keyStoreDAO.getEntry(KeyStoreFixture.alias(ThreadLocalRandom.current().nextInt(database.entries)));
+    }
+}
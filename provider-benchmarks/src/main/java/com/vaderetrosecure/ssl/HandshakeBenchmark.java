@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package com.vaderetrosecure.ssl;
+
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaderetrosecure.VadeRetroProvider;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreFixture;
+
+/**
+ * Full TLS handshakes between a client and a server {@code SSLEngine}, exchanging their records in memory.
+ * Each handshake uses new engines, so no session is resumed, and the client requests a random host name of the key store.
+ * <p>
+ * The {@code keyManager} parameter selects the server context: {@code vr} is the Vade Retro {@code SSLContext.TLS}
+ * with its SNI key manager, {@code jdk} is the default JDK context with the PKIX key manager, on a JKS key store
+ * holding the same entries. {@code handshake} measures the throughput of a thread, {@code handshakeLatency}
+ * samples the latency of each handshake to report its percentiles.
+ */
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HandshakeBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Contexts
+    {
+        @Param({ "vr", "jdk" })
+        public String keyManager;
+
+        @Param({ KeyStoreFixture.MEMORY })
+        public String dao;
+
+        @Param({ "10", "1000", "100000" })
+        public int entries;
+
+        SSLContext serverContext;
+        SSLContext clientContext;
+        SNIHostName[] hostNames;
+
+        @Setup
+        public void setUp() throws Exception
+        {
+            switch (keyManager)
+            {
+            case "vr":
+                KeyStoreDAO keyStoreDAO = KeyStoreFixture.createDAO(dao);
+                KeyStoreFixture.populate(keyStoreDAO, entries);
+                serverContext = SSLContext.getInstance("TLS", new VadeRetroProvider());
+                serverContext.init(new KeyManager[] { new SNIX509ExtendedKeyManager(keyStoreDAO, null) }, null, null);
+                break;
+            case "jdk":
+                serverContext = SSLContext.getInstance("TLS");
+                serverContext.init(createJDKKeyManagers(entries), null, null);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown key manager: " + keyManager);
+            }
+
+            clientContext = SSLContext.getInstance("TLS");
+            clientContext.init(null, new TrustManager[] { new TrustAllManager() }, null);
+
+            hostNames = new SNIHostName[entries];
+            for (int i = 0; i < entries; i++)
+                hostNames[i] = new SNIHostName(KeyStoreFixture.hostName(i));
+        }
+
+        private static KeyManager[] createJDKKeyManagers(int entries) throws Exception
+        {
+            PrivateKey privateKey = KeyStoreFixture.loadPrivateKey();
+            Certificate[] chain = new Certificate[] { KeyStoreFixture.loadCertificate() };
+            char[] password = KeyStoreFixture.KEY_PASSWORD.toCharArray();
+
+            KeyStore ks = KeyStore.getInstance("JKS");
+            ks.load(null, null);
+            for (int i = 0; i < entries; i++)
+                ks.setKeyEntry(KeyStoreFixture.alias(i), privateKey, password, chain);
+
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("PKIX");
+            kmf.init(ks, password);
+            return kmf.getKeyManagers();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public SSLEngine handshake(Contexts contexts) throws SSLException
+    {
+        return doHandshake(contexts);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SSLEngine handshakeLatency(Contexts contexts) throws SSLException
+    {
+        return doHandshake(contexts);
+    }
+
+    private static SSLEngine doHandshake(Contexts contexts) throws SSLException
+    {
+        SSLEngine client = contexts.clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        SSLParameters params = client.getSSLParameters();
+        params.setServerNames(Collections.singletonList(contexts.hostNames[ThreadLocalRandom.current().nextInt(contexts.entries)]));
+        client.setSSLParameters(params);
+
+        SSLEngine server = contexts.serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+
+        int packetSize = Math.max(client.getSession().getPacketBufferSize(), server.getSession().getPacketBufferSize());
+        int applicationSize = Math.max(client.getSession().getApplicationBufferSize(), server.getSession().getApplicationBufferSize());
+        ByteBuffer clientToServer = ByteBuffer.allocate(packetSize);
+        ByteBuffer serverToClient = ByteBuffer.allocate(packetSize);
+        ByteBuffer clientApplication = ByteBuffer.allocate(applicationSize);
+        ByteBuffer serverApplication = ByteBuffer.allocate(applicationSize);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+
+        client.beginHandshake();
+        server.beginHandshake();
+        while (!isDone(client) || !isDone(server))
+        {
+            boolean progress = step(client, empty, clientToServer, serverToClient, clientApplication);
+            progress |= step(server, empty, serverToClient, clientToServer, serverApplication);
+            if (!progress)
+                throw new SSLException("handshake stalled: client " + client.getHandshakeStatus() + ", server " + server.getHandshakeStatus());
+        }
+
+        return server;
+    }
+
+    /**
+     * Let an engine produce its next records, or consume the records of its peer.
+     *
+     * @return true if the engine made progress.
+     */
+    private static boolean step(SSLEngine engine, ByteBuffer empty, ByteBuffer outbound, ByteBuffer inbound, ByteBuffer application) throws SSLException
+    {
+        boolean progress = false;
+        HandshakeStatus hs = engine.getHandshakeStatus();
+        while (hs == HandshakeStatus.NEED_TASK)
+        {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null)
+                task.run();
+            hs = engine.getHandshakeStatus();
+            progress = true;
+        }
+
+        if (hs == HandshakeStatus.NEED_WRAP)
+        {
+            SSLEngineResult r = engine.wrap(empty, outbound);
+            progress |= r.bytesProduced() > 0 || r.getHandshakeStatus() != HandshakeStatus.NEED_WRAP;
+        }
+        else if (hs == HandshakeStatus.NEED_UNWRAP)
+        {
+            inbound.flip();
+            SSLEngineResult r = engine.unwrap(inbound, application);
+            inbound.compact();
+            application.clear();
+            progress |= r.bytesConsumed() > 0 || r.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP;
+        }
+
+        return progress;
+    }
+
+    private static boolean isDone(SSLEngine engine)
+    {
+        HandshakeStatus hs = engine.getHandshakeStatus();
+        return (hs == HandshakeStatus.FINISHED) || (hs == HandshakeStatus.NOT_HANDSHAKING);
+    }
+
+    /**
+     * The clients only measure the servers: they accept any certificate.
+     */
+    private static final class TrustAllManager implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+        {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+}
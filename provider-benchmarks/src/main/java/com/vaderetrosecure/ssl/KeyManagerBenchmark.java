@@ -0,0 +1,107 @@
+/**
+ *
+ */
+package com.vaderetrosecure.ssl;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreFixture;
+
+/**
+ * Latency of the key manager calls made during each server handshake: the SNI matching, the alias selection,
+ * then the reads of the private key and of the certificate chain of the selected alias.
+ * Each call targets a random entry, so the caches are used as they are by a server handling many host names.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyManagerBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class KeyStore
+    {
+        @Param({ KeyStoreFixture.MEMORY, KeyStoreFixture.H2 })
+        public String dao;
+
+        @Param({ "1000" })
+        public int entries;
+
+        SNIX509ExtendedKeyManager keyManager;
+        VRSNIMatcher matcher;
+        SNIHostName[] hostNames;
+        List<List<SNIServerName>> requestedServerNames;
+
+        @Setup
+        public void setUp() throws Exception
+        {
+            KeyStoreDAO keyStoreDAO = KeyStoreFixture.createDAO(dao);
+            KeyStoreFixture.populate(keyStoreDAO, entries);
+            keyManager = new SNIX509ExtendedKeyManager(keyStoreDAO, null);
+            matcher = new VRSNIMatcher(keyManager);
+
+            hostNames = new SNIHostName[entries];
+            requestedServerNames = new ArrayList<>(entries);
+            for (int i = 0; i < entries; i++)
+            {
+                hostNames[i] = new SNIHostName(KeyStoreFixture.hostName(i));
+                requestedServerNames.add(Collections.singletonList(hostNames[i]));
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean sniMatch(KeyStore keyStore)
+    {
+        return keyStore.matcher.matches(keyStore.hostNames[nextIndex(keyStore)]);
+    }
+
+    /**
+     * The alias selection of {@code chooseEngineServerAlias}, given the server names it reads from the handshake session.
+     */
+    @Benchmark
+    public String chooseServerAlias(KeyStore keyStore)
+    {
+        return keyStore.keyManager.chooseServerAlias("RSA", null, keyStore.requestedServerNames.get(nextIndex(keyStore)));
+    }
+
+    @Benchmark
+    public PrivateKey getPrivateKey(KeyStore keyStore)
+    {
+        return keyStore.keyManager.getPrivateKey(KeyStoreFixture.alias(nextIndex(keyStore)));
+    }
+
+    @Benchmark
+    public X509Certificate[] getCertificateChain(KeyStore keyStore)
+    {
+        return keyStore.keyManager.getCertificateChain(KeyStoreFixture.alias(nextIndex(keyStore)));
+    }
+
+    private static int nextIndex(KeyStore keyStore)
+    {
+        return ThreadLocalRandom.current().nextInt(keyStore.entries);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore;
+
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A parameter loading the Vade Retro key store in bulk-write mode.
+ * Protecting a key first derives an AES key from its password, which is deliberately slow. In bulk-write mode,
+ * the key derived from a password is kept for the session, so that writing N keys under the same password costs
+ * one derivation instead of N: each key still gets its own initialization vector.<br>
+ * The session ends when the key store is loaded again, or when its duration elapsed. Derived keys are then wiped.
+ * To use it:
+ * <pre>
+ * <code>
+ * KeyStore keyStore = KeyStore.getInstance("KS", VadeRetroProvider.VR_PROVIDER);
+ * keyStore.load(new BulkWriteParameter(integrityPassword));
+ * for (...)
+ *     keyStore.setKeyEntry(alias, key, keyPassword, chain);
+ * keyStore.load(null, integrityPassword);</code></pre>
+ *
+ * @see com.vaderetrosecure.keystore.VRKeyStoreSpi#engineLoad(java.security.KeyStore.LoadStoreParameter)
+ */
+public class BulkWriteParameter implements KeyStore.LoadStoreParameter
+{
+    private final KeyStore.PasswordProtection protection;
+    private final long duration;
+    private final TimeUnit unit;
+
+    /**
+     * Construct a new {@code BulkWriteParameter} object, for a session of 10 minutes.
+     *
+     * @param password the integrity password, as given to {@code KeyStore.load(InputStream, char[])}.
+     */
+    public BulkWriteParameter(char[] password)
+    {
+        this(password, 10, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Construct a new {@code BulkWriteParameter} object.
+     *
+     * @param password the integrity password, as given to {@code KeyStore.load(InputStream, char[])}.
+     * @param duration the maximum duration of the session.
+     * @param unit the unit of {@code duration}.
+     */
+    public BulkWriteParameter(char[] password, long duration, TimeUnit unit)
+    {
+        if (duration <= 0)
+            throw new IllegalArgumentException("session duration must be positive");
+
+        this.protection = new KeyStore.PasswordProtection(password);
+        this.duration = duration;
+        this.unit = unit;
+    }
+
+    @Override
+    public KeyStore.ProtectionParameter getProtectionParameter()
+    {
+        return protection;
+    }
+
+    /**
+     * Return the maximum duration of the session.
+     *
+     * @return the duration, in the unit given by {@link #getUnit()}.
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Return the unit of the session duration.
+     *
+     * @return the unit.
+     */
+    public TimeUnit getUnit()
+    {
+        return unit;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+import com.vaderetrosecure.util.BoundedCache;
+
+/**
+ * A cache of the AES keys derived from passwords by {@link com.vaderetrosecure.keystore.dao.KeyProtection}.
+ * Deriving a key is deliberately slow, so repeated reads of keys under the same password can skip it.<br>
+ * Passwords are never stored: derived keys are identified by an HMAC of the password and the salt, computed with
+ * a random key generated for the process. Derived keys stay in the cache for a bounded time and their bytes are
+ * wiped when they leave it.<br>
+ * The cache is disabled by default. It is enabled with the following system properties:
+ * <ul>
+ * <li>{@code com.vaderetrosecure.keystore.keycache.ttl}: the time in seconds a derived key stays in the cache (default: 0, disabled)</li>
+ * <li>{@code com.vaderetrosecure.keystore.keycache.size}: the maximum number of derived keys (default: 100).</li>
+ * </ul>
+ */
+final class DerivedKeyCache
+{
+    private static final Logger LOG = Logger.getLogger(DerivedKeyCache.class);
+
+    static final String KEY_CACHE_TTL_PROPERTY = "com.vaderetrosecure.keystore.keycache.ttl";
+    static final String KEY_CACHE_SIZE_PROPERTY = "com.vaderetrosecure.keystore.keycache.size";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final BoundedCache<ByteBuffer, DerivedKey> cache;
+    private final SecretKey hmacKey;
+
+    /**
+     * Construct a new {@code DerivedKeyCache} object, configured with system properties.
+     */
+    DerivedKeyCache()
+    {
+        this(Integer.getInteger(KEY_CACHE_SIZE_PROPERTY, 100), Long.getLong(KEY_CACHE_TTL_PROPERTY, 0L), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Construct a new {@code DerivedKeyCache} object.
+     *
+     * @param maximumSize the maximum number of derived keys.
+     * @param timeToLive the time a derived key stays in the cache, or 0 to disable the cache.
+     * @param unit the unit of {@code timeToLive}.
+     */
+    DerivedKeyCache(int maximumSize, long timeToLive, TimeUnit unit)
+    {
+        byte[] k = new byte[32];
+        new SecureRandom().nextBytes(k);
+        this.hmacKey = new SecretKeySpec(k, HMAC_ALGORITHM);
+        Arrays.fill(k, (byte) 0);
+        this.cache = new BoundedCache<>(timeToLive > 0 ? maximumSize : 0, timeToLive, unit, DerivedKey::wipe);
+    }
+
+    /**
+     * Return the key derived from a password and a salt, if it is cached.
+     *
+     * @param password the password.
+     * @param salt the salt.
+     * @return the derived key, or null if it is not cached.
+     */
+    SecretKey get(char[] password, byte[] salt)
+    {
+        if (!isEnabled())
+            return null;
+
+        cache.cleanUp();
+        ByteBuffer id = identify(password, salt);
+        if (id == null)
+            return null;
+
+        DerivedKey dk = cache.get(id);
+        return dk == null ? null : dk.toSecretKey();
+    }
+
+    /**
+     * Cache the key derived from a password and a salt.
+     * It must only be called once the derived key was successfully used, so that wrong passwords are never cached.
+     *
+     * @param password the password.
+     * @param salt the salt.
+     * @param key the derived key.
+     */
+    void put(char[] password, byte[] salt, SecretKey key)
+    {
+        if (!isEnabled())
+            return;
+
+        cache.cleanUp();
+        ByteBuffer id = identify(password, salt);
+        if (id != null)
+            cache.put(id, new DerivedKey(key.getEncoded()));
+    }
+
+    /**
+     * Remove all derived keys, and wipe them.
+     */
+    void clear()
+    {
+        cache.invalidateAll();
+    }
+
+    private boolean isEnabled()
+    {
+        return cache.getMaximumSize() > 0;
+    }
+
+    private ByteBuffer identify(char[] password, byte[] salt)
+    {
+        // a null password is derived as an empty one
+        ByteBuffer pb = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password == null ? new char[0] : password));
+        byte[] p = new byte[pb.remaining()];
+        pb.get(p);
+        try
+        {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(hmacKey);
+            // the length prefix keeps (password, salt) pairs unambiguous
+            mac.update(ByteBuffer.allocate(4).putInt(p.length).array());
+            mac.update(p);
+            return ByteBuffer.wrap(mac.doFinal(salt));
+        }
+        catch (GeneralSecurityException e)
+        {
+            LOG.debug(e, e);
+            LOG.warn(e);
+            return null;
+        }
+        finally
+        {
+            Arrays.fill(p, (byte) 0);
+            if (pb.hasArray())
+                Arrays.fill(pb.array(), (byte) 0);
+        }
+    }
+
+    /**
+     * The bytes of a derived key, wiped when the key leaves the cache.
+     */
+    private static final class DerivedKey
+    {
+        private byte[] encodedKey;
+
+        private DerivedKey(byte[] encodedKey)
+        {
+            this.encodedKey = encodedKey;
+        }
+
+        private synchronized SecretKey toSecretKey()
+        {
+            // SecretKeySpec copies the bytes, so the returned key is not affected by a later wipe
+            return encodedKey == null ? null : new SecretKeySpec(encodedKey, "AES");
+        }
+
+        private synchronized void wipe()
+        {
+            if (encodedKey != null)
+            {
+                Arrays.fill(encodedKey, (byte) 0);
+                encodedKey = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore;
+
+import java.util.Collection;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+
+/**
+ * A listener notified when a {@link VRKeyStoreSpi} object modifies the underlying DAO.
+ * It is used by objects that keep in-memory views of the key store, such as the key managers,
+ * to stay consistent with the store without reading it again.<br>
+ * Listeners are called synchronously, after the DAO they were registered for was successfully modified.
+ * They must return quickly and must not access the DAO.
+ *
+ * @see VRKeyStoreSpi#addKeyStoreEntryListener(com.vaderetrosecure.keystore.dao.KeyStoreDAO, KeyStoreEntryListener)
+ */
+public interface KeyStoreEntryListener
+{
+    /**
+     * Called when an entry was added to the store, or replaced an entry with the same alias.
+     *
+     * @param entry the stored entry.
+     */
+    void entrySet(KeyStoreEntry entry);
+
+    /**
+     * Called when entries were added to the store in bulk, or replaced entries with the same aliases.
+     * Listeners keeping indexes should override it to apply all entries at once. This default implementation calls
+     * {@link #entrySet(KeyStoreEntry)} for each entry.
+     *
+     * @param entries the stored entries.
+     */
+    default void entriesSet(Collection<KeyStoreEntry> entries)
+    {
+        for (KeyStoreEntry entry : entries)
+            entrySet(entry);
+    }
+
+    /**
+     * Called when an entry was removed from the store.
+     *
+     * @param alias the alias of the removed entry.
+     */
+    void entryDeleted(String alias);
+}
@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore;
+
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.apache.log4j.Logger;
+
+import com.vaderetrosecure.keystore.dao.IntegrityData;
+import com.vaderetrosecure.keystore.dao.KeyProtection;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+
+/**
+ * An importer of the entries of another key store, such as a JKS or a PKCS#12 file, into the Vade Retro key store.
+ * Entries are read from the source key store one batch at a time, so that large key stores are never fully held in memory.
+ * The AES key protecting the imported keys is derived from the password once per import. Then, the protection of each
+ * batch, which is CPU-bound, runs on a fork/join pool, and the batch is written with {@link KeyStoreDAO#setEntries(java.util.Collection)}:
+ * it is a single transaction if the DAO overrides this method, as the SQL and file DAOs do, and one write per entry otherwise.
+ * The progress is logged at the {@code INFO} level, in entries per second.<br>
+ * An import can be resumed after a failure: the aliases already in the store are skipped, unless existing entries are replaced.
+ * To use it:
+ * <pre>
+ * <code>
+ * KeyStore source = KeyStore.getInstance("PKCS12");
+ * source.load(new FileInputStream("keystore.p12"), sourcePassword);
+ * KeyStoreImporter importer = new KeyStoreImporter(KeyStoreDAOFactory.getInstance().getKeyStoreDAO());
+ * int count = importer.importKeyStore(source, sourcePassword, keyPassword);</code></pre>
+ * The store must have been initialized, with {@code KeyStore.load}, before the import.
+ */
+public class KeyStoreImporter
+{
+    private static final Logger LOG = Logger.getLogger(KeyStoreImporter.class);
+
+    private final KeyStoreDAO keyStoreDAO;
+    private final ForkJoinPool pool;
+    private final int batchSize;
+    private final PublicKey publicKey;
+    private boolean replaceExisting;
+
+    /**
+     * Construct a new {@code KeyStoreImporter} object, using the common fork/join pool and batches of 1000 entries.
+     *
+     * @param keyStoreDAO the DAO of the Vade Retro key store.
+     */
+    public KeyStoreImporter(KeyStoreDAO keyStoreDAO)
+    {
+        this(keyStoreDAO, ForkJoinPool.commonPool(), 1000);
+    }
+
+    /**
+     * Construct a new {@code KeyStoreImporter} object.
+     *
+     * @param keyStoreDAO the DAO of the Vade Retro key store.
+     * @param pool the pool protecting the keys.
+     * @param batchSize the number of entries written with each call to {@code KeyStoreDAO.setEntries}.
+     */
+    public KeyStoreImporter(KeyStoreDAO keyStoreDAO, ForkJoinPool pool, int batchSize)
+    {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batch size must be positive");
+
+        this.keyStoreDAO = keyStoreDAO;
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.publicKey = VRKeyStoreSpi.loadKeyProtectionPublicKey();
+        this.replaceExisting = false;
+    }
+
+    /**
+     * Define whether entries already in the store are replaced.
+     * By default, they are skipped, so that an interrupted import can be run again to complete it.
+     *
+     * @param replaceExisting true to replace existing entries, false to skip them.
+     */
+    public void setReplaceExisting(boolean replaceExisting)
+    {
+        this.replaceExisting = replaceExisting;
+    }
+
+    /**
+     * Import all entries of a key store.
+     * Keys of the source key store are read with a single password. Trusted certificates are imported as well.
+     * Each batch is written with a single call to {@code KeyStoreDAO.setEntries}: if the import fails, the entries of the previous
+     * batches are kept, and so may be some entries of the failed batch, unless the DAO writes each batch in a single transaction.
+     *
+     * @param source the key store to import, already loaded.
+     * @param sourcePassword the password of the keys in the source key store.
+     * @param password the password protecting the imported keys.
+     * @return the number of imported entries, skipped entries excluded.
+     * @throws KeyStoreException if an entry can not be read, protected or written.
+     */
+    public int importKeyStore(KeyStore source, char[] sourcePassword, char[] password) throws KeyStoreException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            IntegrityData id = keyStoreDAO.getIntegrityData();
+            if (id == null)
+            {
+                final String msg = "IntegrityData not found";
+                LOG.error(msg);
+                throw new KeyStoreException(msg);
+            }
+
+            // the costly derivation runs once: entries only differ by their initialization vectors
+            SecretKey sk = KeyProtection.generateKeyProtection(password, id.getSalt()).getKey();
+            Set<String> existingAliases = replaceExisting ? new HashSet<>() : new HashSet<>(keyStoreDAO.getAliases());
+            Date creationDate = Date.from(Instant.now());
+
+            int imported = 0;
+            int skipped = 0;
+            List<ForkJoinTask<KeyStoreEntry>> batch = new ArrayList<>(batchSize);
+            Enumeration<String> aliases = source.aliases();
+            while (aliases.hasMoreElements())
+            {
+                String alias = aliases.nextElement();
+                if (existingAliases.contains(alias))
+                {
+                    skipped++;
+                    continue;
+                }
+
+                // the source key store is only read from this thread, as its implementation may not be thread-safe
+                if (source.isKeyEntry(alias))
+                {
+                    Key key = source.getKey(alias, sourcePassword);
+                    Certificate[] chain = source.getCertificateChain(alias);
+                    batch.add(pool.submit(() -> VRKeyStoreSpi.createKeyEntry(alias, creationDate, key, KeyProtection.generateKeyProtection(sk), chain, publicKey)));
+                }
+                else if (source.isCertificateEntry(alias))
+                {
+                    Certificate cert = source.getCertificate(alias);
+                    batch.add(pool.submit(() -> new KeyStoreEntry(alias, creationDate, cert)));
+                }
+
+                if (batch.size() == batchSize)
+                {
+                    imported += writeBatch(batch);
+                    LOG.info(imported + " entries imported, " + skipped + " skipped, " + getRate(imported, start) + " entries/s");
+                }
+            }
+
+            imported += writeBatch(batch);
+            LOG.info("import completed: " + imported + " entries imported, " + skipped + " skipped, " + getRate(imported, start) + " entries/s");
+            return imported;
+        }
+        catch (KeyStoreDAOException | UnrecoverableKeyException | NoSuchAlgorithmException | InvalidKeySpecException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreException(e);
+        }
+    }
+
+    private int writeBatch(List<ForkJoinTask<KeyStoreEntry>> batch) throws KeyStoreDAOException, KeyStoreException
+    {
+        if (batch.isEmpty())
+            return 0;
+
+        List<KeyStoreEntry> entries = new ArrayList<>(batch.size());
+        try
+        {
+            for (ForkJoinTask<KeyStoreEntry> task : batch)
+                entries.add(task.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new KeyStoreException(e);
+        }
+        catch (ExecutionException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e.getCause());
+            throw new KeyStoreException(e.getCause());
+        }
+        finally
+        {
+            batch.clear();
+        }
+
+        keyStoreDAO.setEntries(entries);
+        VRKeyStoreSpi.fireEntriesSet(keyStoreDAO, entries);
+        return entries.size();
+    }
+
+    private static long getRate(int count, long start)
+    {
+        long elapsed = System.nanoTime() - start;
+        return elapsed <= 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
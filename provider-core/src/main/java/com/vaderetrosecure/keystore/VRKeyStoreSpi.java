@@ -6,6 +6,7 @@ package com.vaderetrosecure.keystore;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
@@ -15,6 +16,7 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyFactory;
+import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.KeyStoreSpi;
 import java.security.NoSuchAlgorithmException;
@@ -36,10 +38,12 @@ import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
@@ -75,8 +79,15 @@ public class VRKeyStoreSpi extends KeyStoreSpi
 
     private static final String VR_KEYSTORE_PUBLIC_KEY_FILE = "com.vaderetrosecure.key.public";
 
+    private static final int SESSION_KEY_CACHE_SIZE = 100;
+
+    private static final List<ListenerRegistration> LISTENERS = new CopyOnWriteArrayList<>();
+
     private KeyStoreDAO keystoreDAO;
     private PublicKey publicKey;
+    private final DerivedKeyCache derivedKeyCache = new DerivedKeyCache();
+    private volatile DerivedKeyCache sessionKeyCache;
+    private volatile long sessionDeadline;
 
     /**
      * Construct a new Vade Retro KeyStore object.
@@ -85,6 +96,7 @@ public class VRKeyStoreSpi extends KeyStoreSpi
     {
         keystoreDAO = null;
         publicKey = null;
+        sessionKeyCache = null;
 
         try
         {
@@ -101,6 +113,30 @@ public class VRKeyStoreSpi extends KeyStoreSpi
     {
         this.keystoreDAO = keystoreDAO;
         this.publicKey = null;
+        this.sessionKeyCache = null;
+    }
+
+    /**
+     * Register a listener, notified each time an entry is set or deleted through a Vade Retro key store backed by a DAO.
+     * The listener is only held through a weak reference, so that registering it does not prevent its collection:
+     * the caller must keep a reference to it as long as it must be notified.
+     * 
+     * @param keyStoreDAO the DAO whose modifications are notified.
+     * @param listener the listener to register.
+     */
+    public static void addKeyStoreEntryListener(KeyStoreDAO keyStoreDAO, KeyStoreEntryListener listener)
+    {
+        LISTENERS.add(new ListenerRegistration(keyStoreDAO, listener));
+    }
+
+    /**
+     * Unregister a listener previously registered with {@link #addKeyStoreEntryListener(KeyStoreDAO, KeyStoreEntryListener)}.
+     * 
+     * @param listener the listener to unregister.
+     */
+    public static void removeKeyStoreEntryListener(KeyStoreEntryListener listener)
+    {
+        LISTENERS.removeIf(r -> r.listener.get() == listener);
     }
 
     @Override
@@ -139,9 +175,15 @@ public class VRKeyStoreSpi extends KeyStoreSpi
                 throw new UnrecoverableKeyException(msg);
             }
 
-            KeyProtection kp = KeyProtection.generateKeyProtection(password, id.getSalt(), lkp.getIV());
+            // deriving the key from the password is the costly part of the read
+            SecretKey sk = derivedKeyCache.get(password, id.getSalt());
+            KeyProtection kp = sk == null ? KeyProtection.generateKeyProtection(password, id.getSalt(), lkp.getIV()) : new KeyProtection(sk, lkp.getIV());
 
-            return kse.getKey(kp);
+            Key key = kse.getKey(kp);
+            if (sk == null)
+                derivedKeyCache.put(password, id.getSalt(), kp.getKey());
+
+            return key;
         }
         catch (IOException | KeyStoreDAOException e)
         {
@@ -258,27 +300,14 @@ public class VRKeyStoreSpi extends KeyStoreSpi
 
             Date creationDate = Date.from(Instant.now());
 
-            KeyProtection kp = KeyProtection.generateKeyProtection(password, id.getSalt());
-
-            List<CertificateData> certChain = new ArrayList<>();
-            List<String> names = new ArrayList<>();
-            if (chain != null)
-            {
-                // extract names from first cert
-                Set<String> nameSet = extractCertificateNames(chain[0]);
-                nameSet.add(alias);
-                names = new ArrayList<>(nameSet);
-                for (Certificate c : chain)
-                    certChain.add(new CertificateData(c));
-            }
-
-            KeyStoreEntry kse = new KeyStoreEntry(alias, creationDate, key, kp, certChain, names);
-            kse.setLockedKeyProtection(kp.getLockedKeyProtection(publicKey));
+            KeyProtection kp = generateWriteKeyProtection(password, id.getSalt());
+            KeyStoreEntry kse = createKeyEntry(alias, creationDate, key, kp, chain, publicKey);
 
             KeyStoreEntry kseOld = keystoreDAO.getEntry(alias);
             if (kseOld != null)
                 keystoreDAO.deleteEntry(kseOld);
             keystoreDAO.setEntry(kse);
+            fireEntrySet(keystoreDAO, kse);
         }
         catch (KeyStoreDAOException | IOException | CertificateEncodingException | InvalidKeyException | NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | CertificateParsingException | InvalidNameException e)
         {
@@ -318,6 +347,7 @@ public class VRKeyStoreSpi extends KeyStoreSpi
             }
 
             keystoreDAO.setEntry(kse);
+            fireEntrySet(keystoreDAO, kse);
         }
         catch (KeyStoreDAOException | IOException | CertificateEncodingException e)
         {
@@ -335,7 +365,10 @@ public class VRKeyStoreSpi extends KeyStoreSpi
 
             KeyStoreEntry kse = keystoreDAO.getEntry(alias);
             if (kse != null)
+            {
                 keystoreDAO.deleteEntry(kse);
+                fireEntryDeleted(keystoreDAO, alias);
+            }
         }
         catch (KeyStoreDAOException | IOException e)
         {
@@ -535,6 +568,37 @@ public class VRKeyStoreSpi extends KeyStoreSpi
 
     /**
      * {@inheritDoc}
+     * A {@link com.vaderetrosecure.keystore.BulkWriteParameter} loads the key store as
+     * {@link #engineLoad(InputStream, char[])} does, then starts a bulk-write session: the key derived from
+     * each password given to {@code engineSetKeyEntry} is kept until the key store is loaded again, or until
+     * the session duration elapsed since this call: the first write following the deadline ends the session.
+     * 
+     * @param param the load parameter, or <code>null</code>.
+     * @throws IOException if the DAO is not loaded, or an access to it can not be performed.
+     * @throws NoSuchAlgorithmException if the integrity can not be checked.
+     * @throws CertificateException never thrown in this implementation.
+     * @see java.security.KeyStoreSpi#engineLoad(java.security.KeyStore.LoadStoreParameter)
+     */
+    @Override
+    public void engineLoad(KeyStore.LoadStoreParameter param) throws IOException, NoSuchAlgorithmException, CertificateException
+    {
+        if (!BulkWriteParameter.class.isInstance(param))
+        {
+            super.engineLoad(param);
+            return;
+        }
+
+        BulkWriteParameter bwp = (BulkWriteParameter) param;
+        engineLoad(null, ((KeyStore.PasswordProtection) bwp.getProtectionParameter()).getPassword());
+        // the deadline is written first, so that it is visible to any thread seeing the new session
+        sessionDeadline = System.nanoTime() + bwp.getUnit().toNanos(bwp.getDuration());
+        sessionKeyCache = new DerivedKeyCache(SESSION_KEY_CACHE_SIZE, bwp.getDuration(), bwp.getUnit());
+        LOG.info("bulk-write session started");
+    }
+
+    /**
+     * {@inheritDoc}
+     * Loading the key store ends the bulk-write session, if any.
      * 
      * @param stream unused because DAO is responsible of the real access. Just set it to <code>null</code>.
      * @param password the integrity password, if set to <code>null</code>, the integrity check will not be performed.
@@ -547,6 +611,7 @@ public class VRKeyStoreSpi extends KeyStoreSpi
     public void engineLoad(InputStream stream, char[] password) throws IOException, NoSuchAlgorithmException, CertificateException
     {
         checkKeyStoreDAOIsLoaded();
+        endSession();
 
         try
         {
@@ -578,6 +643,60 @@ public class VRKeyStoreSpi extends KeyStoreSpi
         }
     }
 
+    private void endSession()
+    {
+        DerivedKeyCache dkc = sessionKeyCache;
+        if (dkc != null)
+            endSession(dkc);
+    }
+
+    private void endSession(DerivedKeyCache dkc)
+    {
+        synchronized (this)
+        {
+            // the session may have been ended, or another one started, by another thread
+            if (sessionKeyCache != dkc)
+                return;
+            sessionKeyCache = null;
+        }
+
+        dkc.clear();
+        LOG.info("bulk-write session ended");
+    }
+
+    /**
+     * Return the key cache of the bulk-write session, ending the session if its duration elapsed.
+     * 
+     * @return the key cache, or null if there is no session in progress.
+     */
+    DerivedKeyCache getSessionKeyCache()
+    {
+        DerivedKeyCache dkc = sessionKeyCache;
+        if ((dkc != null) && (System.nanoTime() - sessionDeadline >= 0L))
+        {
+            endSession(dkc);
+            return null;
+        }
+
+        return dkc;
+    }
+
+    private KeyProtection generateWriteKeyProtection(char[] password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        DerivedKeyCache dkc = getSessionKeyCache();
+        if (dkc == null)
+            return KeyProtection.generateKeyProtection(password, salt);
+
+        // in a bulk-write session, only the initialization vector changes from a key to the next
+        SecretKey sk = dkc.get(password, salt);
+        if (sk != null)
+            return KeyProtection.generateKeyProtection(sk);
+
+        KeyProtection kp = KeyProtection.generateKeyProtection(password, salt);
+        dkc.put(password, salt, kp.getKey());
+        return kp;
+    }
+
     private void checkKeyStoreDAOIsLoaded() throws IOException
     {
         if (keystoreDAO == null)
@@ -588,7 +707,108 @@ public class VRKeyStoreSpi extends KeyStoreSpi
         }
     }
 
-    private PublicKey loadKeyProtectionPublicKey()
+    /**
+     * Return the listeners registered for a DAO.
+     * The registrations of collected listeners are removed.
+     * 
+     * @param keyStoreDAO the modified DAO.
+     * @return the listeners to notify.
+     */
+    private static List<KeyStoreEntryListener> getListeners(KeyStoreDAO keyStoreDAO)
+    {
+        List<KeyStoreEntryListener> listeners = new ArrayList<>();
+        for (ListenerRegistration r : LISTENERS)
+        {
+            KeyStoreEntryListener l = r.listener.get();
+            KeyStoreDAO dao = r.keyStoreDAO.get();
+            if ((l == null) || (dao == null))
+                LISTENERS.remove(r);
+            else if (dao == keyStoreDAO)
+                listeners.add(l);
+        }
+
+        return listeners;
+    }
+
+    static void fireEntrySet(KeyStoreDAO keyStoreDAO, KeyStoreEntry entry)
+    {
+        for (KeyStoreEntryListener l : getListeners(keyStoreDAO))
+        {
+            try
+            {
+                l.entrySet(entry);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.debug(e, e);
+                LOG.warn(e);
+            }
+        }
+    }
+
+    static void fireEntriesSet(KeyStoreDAO keyStoreDAO, Collection<KeyStoreEntry> entries)
+    {
+        for (KeyStoreEntryListener l : getListeners(keyStoreDAO))
+        {
+            try
+            {
+                l.entriesSet(entries);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.debug(e, e);
+                LOG.warn(e);
+            }
+        }
+    }
+
+    private static void fireEntryDeleted(KeyStoreDAO keyStoreDAO, String alias)
+    {
+        for (KeyStoreEntryListener l : getListeners(keyStoreDAO))
+        {
+            try
+            {
+                l.entryDeleted(alias);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.debug(e, e);
+                LOG.warn(e);
+            }
+        }
+    }
+
+    /**
+     * Create a key entry, with the names of its first certificate, and lock its key protection.
+     * 
+     * @param alias the alias of the entry.
+     * @param creationDate the creation date of the entry.
+     * @param key the secret or private key.
+     * @param kp the protection of the key.
+     * @param chain the certificate chain, or null.
+     * @param publicKey the public key locking the key protection, or null.
+     * @return the new entry.
+     */
+    static KeyStoreEntry createKeyEntry(String alias, Date creationDate, Key key, KeyProtection kp, Certificate[] chain, PublicKey publicKey) throws CertificateEncodingException, CertificateParsingException, InvalidNameException, InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException
+    {
+        List<CertificateData> certChain = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        if (chain != null)
+        {
+            // extract names from first cert
+            Set<String> nameSet = extractCertificateNames(chain[0]);
+            nameSet.add(alias);
+            names = new ArrayList<>(nameSet);
+            for (Certificate c : chain)
+                certChain.add(new CertificateData(c));
+        }
+
+        KeyStoreEntry kse = new KeyStoreEntry(alias, creationDate, key, kp, certChain, names);
+        kse.setLockedKeyProtection(kp.getLockedKeyProtection(publicKey));
+        return kse;
+    }
+
+    static PublicKey loadKeyProtectionPublicKey()
     {
         URL url = Thread.currentThread().getContextClassLoader().getResource(VR_KEYSTORE_PUBLIC_KEY_FILE);
         if (url == null)
@@ -614,7 +834,7 @@ public class VRKeyStoreSpi extends KeyStoreSpi
         return null;
     }
 
-    private Set<String> extractCertificateNames(Certificate cert) throws InvalidNameException, CertificateParsingException
+    private static Set<String> extractCertificateNames(Certificate cert) throws InvalidNameException, CertificateParsingException
     {
         Set<String> hosts = new HashSet<>();
 
@@ -645,4 +865,19 @@ public class VRKeyStoreSpi extends KeyStoreSpi
 
         return hosts;
     }
+
+    /**
+     * A listener registered for a DAO. Both are weakly referenced, so that a discarded key manager can be collected.
+     */
+    private static final class ListenerRegistration
+    {
+        private final WeakReference<KeyStoreDAO> keyStoreDAO;
+        private final WeakReference<KeyStoreEntryListener> listener;
+
+        private ListenerRegistration(KeyStoreDAO keyStoreDAO, KeyStoreEntryListener listener)
+        {
+            this.keyStoreDAO = new WeakReference<>(keyStoreDAO);
+            this.listener = new WeakReference<>(listener);
+        }
+    }
 }
@@ -0,0 +1,615 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.vaderetrosecure.util.BoundedCache;
+import com.vaderetrosecure.util.NameFilter;
+
+/**
+ * A {@code KeyStoreDAO} caching the reads of another DAO.
+ * The results of {@link #getEntry(String)}, {@link #getEntries(String)}, {@link #getAliases(String)} and
+ * {@link #getIntegrityData()} are kept in a {@link BoundedCache}, bounded in number of results, in time and in weight,
+ * the weight being an estimate of the size of the results in bytes.<br>
+ * Names matching no entry, such as the random names sent by scanners, never reach the underlying store twice: they are
+ * kept in a separate cache, so that they can not evict known names. Optionally, a {@link NameFilter} of all names
+ * rejects most unknown names before any lookup, in constant time and memory. The filter is built from the
+ * {@linkplain KeyStoreDAO#getNames() names} of the store in a background thread, requested by the first lookup by name,
+ * then rebuilt there once the time to live elapsed and the {@linkplain #getGeneration() generation} of the store changed:
+ * lookups never wait for a build, and are not filtered until the first one completes. If the time to live is 0, the
+ * filter is never rebuilt. Names written through this object are added to the filter at once.<br>
+ * Writes go through to the underlying DAO, then invalidate the results they may have changed: the entries of the
+ * written aliases, and the results by the names and algorithms of their previous and new entries. The previous entries
+ * are read before the write, from the cache or from the underlying DAO, and writes through this object are serialized so
+ * that no write changes them meanwhile. Writes made by other processes are not seen before the results expire, so the time
+ * to live bounds how stale a result can be. Other methods are not cached.<br>
+ * Cached entries are copied when they are returned, so that callers may modify them. The arrays and the certificates they
+ * hold are shared, and must not be modified.
+ * <p>
+ * When the {@code com.vaderetrosecure.keystore.dao.cache.ttl} property is set, the DAO given by the
+ * {@linkplain KeyStoreDAOFactory#getInstance() factory} is wrapped in a {@code CachingKeyStoreDAO}, configured
+ * with the following system properties:
+ * <ul>
+ * <li>{@code com.vaderetrosecure.keystore.dao.cache.ttl}: the time in seconds a result stays in the cache (default: 0, disabled)</li>
+ * <li>{@code com.vaderetrosecure.keystore.dao.cache.size}: the maximum number of results (default: 10000)</li>
+ * <li>{@code com.vaderetrosecure.keystore.dao.cache.weight}: the maximum total size of the results, in bytes (default: 67108864)</li>
+ * <li>{@code com.vaderetrosecure.keystore.dao.cache.negative.size}: the maximum number of unknown names (default: 10000)</li>
+ * <li>{@code com.vaderetrosecure.keystore.dao.cache.namefilter}: true to filter names with a Bloom filter (default: false).</li>
+ * </ul>
+ *
+ * @see com.vaderetrosecure.keystore.dao.KeyStoreDAOFactory
+ */
+public class CachingKeyStoreDAO implements KeyStoreDAO
+{
+    public static final String CACHE_TTL_PROPERTY = "com.vaderetrosecure.keystore.dao.cache.ttl";
+    public static final String CACHE_SIZE_PROPERTY = "com.vaderetrosecure.keystore.dao.cache.size";
+    public static final String CACHE_WEIGHT_PROPERTY = "com.vaderetrosecure.keystore.dao.cache.weight";
+    public static final String CACHE_NEGATIVE_SIZE_PROPERTY = "com.vaderetrosecure.keystore.dao.cache.negative.size";
+    public static final String CACHE_NAME_FILTER_PROPERTY = "com.vaderetrosecure.keystore.dao.cache.namefilter";
+
+    private static final Logger LOG = Logger.getLogger(CachingKeyStoreDAO.class);
+
+    // rough size of an object header and its references
+    private static final long OBJECT_WEIGHT = 32L;
+
+    private final KeyStoreDAO keyStoreDAO;
+    private final BoundedCache<CacheKey, Object> cache;
+    private final BoundedCache<String, Boolean> unknownNames;
+    private final AtomicLong writeCount;
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+    private final LongAdder rejectedCount;
+    private final NameFilter nameFilter;
+    private final ReentrantLock writeLock;
+
+    /**
+     * Construct a new {@code CachingKeyStoreDAO} object, configured with system properties.
+     *
+     * @param keyStoreDAO the cached DAO.
+     */
+    public CachingKeyStoreDAO(KeyStoreDAO keyStoreDAO)
+    {
+        this(keyStoreDAO, Integer.getInteger(CACHE_SIZE_PROPERTY, 10000), Long.getLong(CACHE_WEIGHT_PROPERTY, 64L * 1024L * 1024L), Integer.getInteger(CACHE_NEGATIVE_SIZE_PROPERTY, 10000),
+                Boolean.getBoolean(CACHE_NAME_FILTER_PROPERTY), Long.getLong(CACHE_TTL_PROPERTY, 0L), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Construct a new {@code CachingKeyStoreDAO} object.
+     *
+     * @param keyStoreDAO the cached DAO.
+     * @param maximumSize the maximum number of results.
+     * @param maximumWeight the maximum total size of the results, in bytes.
+     * @param timeToLive the time a result stays in the cache, or 0 if results do not expire.
+     * @param unit the unit of {@code timeToLive}.
+     */
+    public CachingKeyStoreDAO(KeyStoreDAO keyStoreDAO, int maximumSize, long maximumWeight, long timeToLive, TimeUnit unit)
+    {
+        this(keyStoreDAO, maximumSize, maximumWeight, 10000, false, timeToLive, unit);
+    }
+
+    /**
+     * Construct a new {@code CachingKeyStoreDAO} object, with a negative cache and an optional name filter.
+     *
+     * @param keyStoreDAO the cached DAO.
+     * @param maximumSize the maximum number of results.
+     * @param maximumWeight the maximum total size of the results, in bytes.
+     * @param maximumUnknownNames the maximum number of names known to match no entry.
+     * @param nameFilterEnabled true to filter names with a Bloom filter built from all names.
+     * @param timeToLive the time a result stays in the cache, and the period of the filter rebuilds, or 0 if results do not expire and the filter is never rebuilt.
+     * @param unit the unit of {@code timeToLive}.
+     */
+    public CachingKeyStoreDAO(KeyStoreDAO keyStoreDAO, int maximumSize, long maximumWeight, int maximumUnknownNames, boolean nameFilterEnabled, long timeToLive, TimeUnit unit)
+    {
+        this.keyStoreDAO = keyStoreDAO;
+        this.cache = new BoundedCache<>(maximumSize, maximumWeight, CachingKeyStoreDAO::weigh, timeToLive, unit, v -> {});
+        this.unknownNames = new BoundedCache<>(maximumUnknownNames, timeToLive, unit);
+        this.writeCount = new AtomicLong();
+        this.hitCount = new LongAdder();
+        this.missCount = new LongAdder();
+        this.rejectedCount = new LongAdder();
+        this.nameFilter = nameFilterEnabled ? new NameFilter(keyStoreDAO::getGeneration, keyStoreDAO::getNames, timeToLive, unit) : null;
+        this.writeLock = new ReentrantLock();
+    }
+
+    /**
+     * Tell if the DAO given by the factory must be cached, given the system properties.
+     *
+     * @return true if the cache is enabled.
+     */
+    static boolean isEnabled()
+    {
+        return Long.getLong(CACHE_TTL_PROPERTY, 0L) > 0L;
+    }
+
+    /**
+     * Return the cached DAO.
+     *
+     * @return the DAO.
+     */
+    public KeyStoreDAO getKeyStoreDAO()
+    {
+        return keyStoreDAO;
+    }
+
+    /**
+     * Return the number of reads answered by the cache, unknown names included.
+     *
+     * @return the number of hits.
+     */
+    public long getHitCount()
+    {
+        return hitCount.sum();
+    }
+
+    /**
+     * Return the number of reads that went to the underlying DAO.
+     *
+     * @return the number of misses.
+     */
+    public long getMissCount()
+    {
+        return missCount.sum();
+    }
+
+    /**
+     * Return the number of names rejected by the name filter, without any lookup.
+     *
+     * @return the number of rejected names.
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Return the estimated size of the cached results, in bytes.
+     *
+     * @return the weight of the cache.
+     */
+    public long getWeight()
+    {
+        return cache.getWeight();
+    }
+
+    /**
+     * Remove all cached results.
+     * It must be called after the underlying store was modified without this object, to read the changes before the results expire.
+     */
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+        unknownNames.invalidateAll();
+        if (nameFilter != null)
+            nameFilter.invalidate();
+    }
+
+    @Override
+    public void checkDAOStructure() throws KeyStoreDAOException
+    {
+        keyStoreDAO.checkDAOStructure();
+        // the check may have fixed broken data
+        invalidateAll();
+    }
+
+    @Override
+    public int countEntries() throws KeyStoreDAOException
+    {
+        return keyStoreDAO.countEntries();
+    }
+
+    @Override
+    public List<String> getAliases() throws KeyStoreDAOException
+    {
+        return keyStoreDAO.getAliases();
+    }
+
+    @Override
+    public List<String> getAliases(String algorithm) throws KeyStoreDAOException
+    {
+        CacheKey key = new CacheKey(CacheKey.ALGORITHM, algorithm);
+        @SuppressWarnings("unchecked")
+        List<String> aliases = (List<String>) cache.get(key);
+        if (aliases != null)
+        {
+            hitCount.increment();
+            return aliases;
+        }
+
+        missCount.increment();
+        long writes = writeCount.get();
+        aliases = Collections.unmodifiableList(keyStoreDAO.getAliases(algorithm));
+        cacheResult(key, aliases, writes);
+        return aliases;
+    }
+
+    @Override
+    public IntegrityData getIntegrityData() throws KeyStoreDAOException
+    {
+        CacheKey key = new CacheKey(CacheKey.INTEGRITY, "");
+        IntegrityData integrityData = (IntegrityData) cache.get(key);
+        if (integrityData != null)
+        {
+            hitCount.increment();
+            return integrityData;
+        }
+
+        missCount.increment();
+        long writes = writeCount.get();
+        integrityData = keyStoreDAO.getIntegrityData();
+        if (integrityData != null)
+            cacheResult(key, integrityData, writes);
+        return integrityData;
+    }
+
+    @Override
+    public void setIntegrityData(IntegrityData integrityData) throws KeyStoreDAOException
+    {
+        writeCount.incrementAndGet();
+        try
+        {
+            keyStoreDAO.setIntegrityData(integrityData);
+        }
+        finally
+        {
+            cache.invalidate(new CacheKey(CacheKey.INTEGRITY, ""));
+            writeCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public KeyStoreEntry getEntry(String alias) throws KeyStoreDAOException
+    {
+        CacheKey key = new CacheKey(CacheKey.ENTRY, alias);
+        KeyStoreEntry entry = (KeyStoreEntry) cache.get(key);
+        if (entry != null)
+        {
+            hitCount.increment();
+            return copy(entry);
+        }
+
+        missCount.increment();
+        long writes = writeCount.get();
+        entry = keyStoreDAO.getEntry(alias);
+        if (entry != null)
+            cacheResult(key, copy(entry), writes);
+        return entry;
+    }
+
+    @Override
+    public List<KeyStoreEntry> getEntries(String name) throws KeyStoreDAOException
+    {
+        CacheKey key = new CacheKey(CacheKey.NAME, name);
+        @SuppressWarnings("unchecked")
+        List<KeyStoreEntry> entries = (List<KeyStoreEntry>) cache.get(key);
+        if (entries != null)
+        {
+            hitCount.increment();
+            return copy(entries);
+        }
+
+        if ((nameFilter != null) && !nameFilter.mightContain(name))
+        {
+            rejectedCount.increment();
+            return Collections.emptyList();
+        }
+
+        if (unknownNames.get(name) != null)
+        {
+            hitCount.increment();
+            return Collections.emptyList();
+        }
+
+        missCount.increment();
+        long writes = writeCount.get();
+        entries = keyStoreDAO.getEntries(name);
+        if (!entries.isEmpty())
+            cacheResult(key, Collections.unmodifiableList(copy(entries)), writes);
+        else if (writeCount.get() == writes)
+            unknownNames.put(name, Boolean.TRUE);
+        return entries;
+    }
+
+    @Override
+    public List<KeyStoreEntry> getAllEntries() throws KeyStoreDAOException
+    {
+        return keyStoreDAO.getAllEntries();
+    }
+
+    @Override
+    public List<KeyStoreEntry> getAllEntriesMetadata() throws KeyStoreDAOException
+    {
+        return keyStoreDAO.getAllEntriesMetadata();
+    }
+
+    @Override
+    public long getGeneration() throws KeyStoreDAOException
+    {
+        return keyStoreDAO.getGeneration();
+    }
+
+    @Override
+    public long getLastChangeSequence() throws KeyStoreDAOException
+    {
+        return keyStoreDAO.getLastChangeSequence();
+    }
+
+    @Override
+    public List<KeyStoreEntryChange> getChangesSince(long sequence) throws KeyStoreDAOException
+    {
+        return keyStoreDAO.getChangesSince(sequence);
+    }
+
+    @Override
+    public void setEntry(KeyStoreEntry entry) throws KeyStoreDAOException
+    {
+        List<KeyStoreEntry> entries = Collections.singletonList(entry);
+        writeLock.lock();
+        try
+        {
+            writeCount.incrementAndGet();
+            List<KeyStoreEntry> previousEntries = getPreviousEntries(entries);
+            // names are added before the write, for the readers of the new entries, and after it, for a filter built meanwhile
+            addNames(entries);
+            try
+            {
+                keyStoreDAO.setEntry(entry);
+            }
+            finally
+            {
+                addNames(entries);
+                invalidate(entries, previousEntries);
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void setEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        writeLock.lock();
+        try
+        {
+            writeCount.incrementAndGet();
+            List<KeyStoreEntry> previousEntries = getPreviousEntries(entries);
+            // names are added before the write, for the readers of the new entries, and after it, for a filter built meanwhile
+            addNames(entries);
+            try
+            {
+                keyStoreDAO.setEntries(entries);
+            }
+            finally
+            {
+                addNames(entries);
+                invalidate(entries, previousEntries);
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteEntry(KeyStoreEntry entry) throws KeyStoreDAOException
+    {
+        List<KeyStoreEntry> entries = Collections.singletonList(entry);
+        writeLock.lock();
+        try
+        {
+            writeCount.incrementAndGet();
+            List<KeyStoreEntry> previousEntries = getPreviousEntries(entries);
+            try
+            {
+                keyStoreDAO.deleteEntry(entry);
+            }
+            finally
+            {
+                invalidate(entries, previousEntries);
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        writeLock.lock();
+        try
+        {
+            writeCount.incrementAndGet();
+            List<KeyStoreEntry> previousEntries = getPreviousEntries(entries);
+            try
+            {
+                keyStoreDAO.deleteEntries(entries);
+            }
+            finally
+            {
+                invalidate(entries, previousEntries);
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    private void cacheResult(CacheKey key, Object result, long writes)
+    {
+        // a result read while a write was in progress may already be stale: the count is incremented before and after each write
+        if (writeCount.get() == writes)
+            cache.put(key, result);
+    }
+
+    /**
+     * Return the entries stored under the aliases of written entries, before the write.
+     * Cached entries are used first: an entry changed by another process is stale anyway until it expires.
+     *
+     * @return the previous entries, or null if they can not be read.
+     */
+    private List<KeyStoreEntry> getPreviousEntries(Collection<KeyStoreEntry> entries)
+    {
+        List<KeyStoreEntry> previousEntries = new ArrayList<>(entries.size());
+        try
+        {
+            for (KeyStoreEntry entry : entries)
+            {
+                KeyStoreEntry previous = (KeyStoreEntry) cache.get(new CacheKey(CacheKey.ENTRY, entry.getAlias()));
+                if (previous == null)
+                    previous = keyStoreDAO.getEntry(entry.getAlias());
+                if (previous != null)
+                    previousEntries.add(previous);
+            }
+            return previousEntries;
+        }
+        catch (KeyStoreDAOException e)
+        {
+            // the write will probably fail too: all results by name and by algorithm are invalidated
+            LOG.debug(e, e);
+            return null;
+        }
+    }
+
+    private void invalidate(Collection<KeyStoreEntry> entries, List<KeyStoreEntry> previousEntries)
+    {
+        for (KeyStoreEntry entry : entries)
+        {
+            invalidate(entry);
+            for (String name : entry.getNames())
+                unknownNames.invalidate(name);
+        }
+
+        if (previousEntries != null)
+        {
+            for (KeyStoreEntry previous : previousEntries)
+                invalidate(previous);
+        }
+        else
+            cache.invalidateAll(k -> (k.type == CacheKey.NAME) || (k.type == CacheKey.ALGORITHM));
+
+        writeCount.incrementAndGet();
+    }
+
+    private void invalidate(KeyStoreEntry entry)
+    {
+        cache.invalidate(new CacheKey(CacheKey.ENTRY, entry.getAlias()));
+        for (String name : entry.getNames())
+            cache.invalidate(new CacheKey(CacheKey.NAME, name));
+        if (entry.getAlgorithm() != null)
+            cache.invalidate(new CacheKey(CacheKey.ALGORITHM, entry.getAlgorithm()));
+    }
+
+    private void addNames(Collection<KeyStoreEntry> entries)
+    {
+        if (nameFilter == null)
+            return;
+
+        for (KeyStoreEntry entry : entries)
+            nameFilter.put(entry.getNames());
+    }
+
+    private static KeyStoreEntry copy(KeyStoreEntry entry)
+    {
+        return new KeyStoreEntry(entry.getAlias(), entry.getCreationDate(), entry.getEntryType(), entry.getAlgorithm(), entry.getEntryData(), entry.getLockedKeyProtection(),
+                new ArrayList<>(entry.getCertificateChain()), new ArrayList<>(entry.getNames()));
+    }
+
+    private static List<KeyStoreEntry> copy(List<KeyStoreEntry> entries)
+    {
+        List<KeyStoreEntry> l = new ArrayList<>(entries.size());
+        for (KeyStoreEntry entry : entries)
+            l.add(copy(entry));
+        return l;
+    }
+
+    private static long weigh(Object result)
+    {
+        if (result instanceof KeyStoreEntry)
+            return weigh((KeyStoreEntry) result);
+
+        if (result instanceof IntegrityData)
+        {
+            IntegrityData id = (IntegrityData) result;
+            return OBJECT_WEIGHT + weigh(id.getSalt()) + weigh(id.getIV()) + weigh(id.getCipheredData()) + weigh(id.getDataHash());
+        }
+
+        long weight = OBJECT_WEIGHT;
+        for (Object o : (List<?>) result)
+            weight += o instanceof KeyStoreEntry ? weigh((KeyStoreEntry) o) : weigh((String) o);
+        return weight;
+    }
+
+    private static long weigh(KeyStoreEntry entry)
+    {
+        long weight = OBJECT_WEIGHT + weigh(entry.getAlias()) + weigh(entry.getAlgorithm()) + weigh(entry.getEntryData());
+        LockedKeyProtection lkp = entry.getLockedKeyProtection();
+        if (lkp != null)
+            weight += OBJECT_WEIGHT + weigh(lkp.getCipheredKey()) + weigh(lkp.getIV());
+        for (CertificateData cd : entry.getCertificateChain())
+            weight += OBJECT_WEIGHT + weigh(cd.getEncodedCertificate());
+        for (String name : entry.getNames())
+            weight += weigh(name);
+        return weight;
+    }
+
+    private static long weigh(byte[] data)
+    {
+        return data == null ? 0L : OBJECT_WEIGHT + data.length;
+    }
+
+    private static long weigh(String data)
+    {
+        return data == null ? 0L : OBJECT_WEIGHT + 2L * data.length();
+    }
+
+    private static final class CacheKey
+    {
+        private static final byte ENTRY = 1;
+        private static final byte NAME = 2;
+        private static final byte ALGORITHM = 3;
+        private static final byte INTEGRITY = 4;
+
+        private final byte type;
+        private final String value;
+
+        private CacheKey(byte type, String value)
+        {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * type + (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof CacheKey))
+                return false;
+
+            CacheKey other = (CacheKey) obj;
+            return (type == other.type) && (value == null ? other.value == null : value.equals(other.value));
+        }
+    }
+}
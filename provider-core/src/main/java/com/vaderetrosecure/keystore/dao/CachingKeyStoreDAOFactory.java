@@ -0,0 +1,42 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao;
+
+/**
+ * This factory wraps the DAO of another factory in a {@code CachingKeyStoreDAO}.
+ * It is installed by {@link KeyStoreDAOFactory#getInstance()} when the cache is enabled with system properties.
+ *
+ * @see com.vaderetrosecure.keystore.dao.CachingKeyStoreDAO
+ */
+class CachingKeyStoreDAOFactory extends KeyStoreDAOFactory
+{
+    private final KeyStoreDAOFactory factory;
+    private CachingKeyStoreDAO keyStoreDAO;
+
+    CachingKeyStoreDAOFactory(KeyStoreDAOFactory factory)
+    {
+        this.factory = factory;
+        this.keyStoreDAO = null;
+    }
+
+    @Override
+    protected void init() throws KeyStoreDAOException
+    {
+    }
+
+    /**
+     * Return the DAO of the wrapped factory, cached.
+     * The same cache is returned as long as the wrapped factory returns the same DAO.
+     *
+     * @see com.vaderetrosecure.keystore.dao.KeyStoreDAOFactory#getKeyStoreDAO()
+     */
+    @Override
+    public synchronized KeyStoreDAO getKeyStoreDAO() throws KeyStoreDAOException
+    {
+        KeyStoreDAO dao = factory.getKeyStoreDAO();
+        if ((keyStoreDAO == null) || (keyStoreDAO.getKeyStoreDAO() != dao))
+            keyStoreDAO = new CachingKeyStoreDAO(dao);
+        return keyStoreDAO;
+    }
+}
@@ -9,10 +9,12 @@ import java.security.cert.CertificateException;
 
 /**
  * Represent a Certificate as a byte array, easily readable and writable in a simple data field.
+ * The Certificate object is decoded once, then shared by all calls to {@link #getCertificate()}.
  */
 public class CertificateData
 {
     private byte[] encodedCertificate;
+    private volatile Certificate certificate;
 
     /**
      * Construct a new CertificateData with empty data. 
@@ -47,6 +49,7 @@ public class CertificateData
         else
         {
             this.encodedCertificate = certificate.getEncoded();
+            this.certificate = certificate;
         }
     }
 
@@ -68,6 +71,7 @@ public class CertificateData
     public void setEncodedCertificate(byte[] encodedCertificate)
     {
         this.encodedCertificate = encodedCertificate;
+        this.certificate = null;
     }
 
     /**
@@ -78,6 +82,14 @@ public class CertificateData
      */
     public Certificate getCertificate() throws CertificateException
     {
-        return CryptoTools.decodeCertificate(getEncodedCertificate());
+        // certificates are immutable: concurrent decodings are harmless, the last one wins
+        Certificate c = certificate;
+        if (c == null)
+        {
+            c = CryptoTools.decodeCertificate(getEncodedCertificate());
+            certificate = c;
+        }
+
+        return c;
     }
 }
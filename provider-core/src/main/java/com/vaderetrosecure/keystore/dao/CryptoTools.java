@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -18,8 +19,6 @@ import java.security.cert.CertificateFactory;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -34,14 +33,23 @@ import javax.crypto.spec.SecretKeySpec;
 import org.apache.log4j.Logger;
 
 /**
- *
+ * Cryptographic helpers of the DAO objects.
+ * Random generators, ciphers, digests and factories are not shared: each thread gets its own instances,
+ * created on first use, so that parallel operations neither contend on a lock nor look providers up again.
  */
 final class CryptoTools
 {
     private static final Logger LOG = Logger.getLogger(CryptoTools.class);
 
-    private static final SecureRandom RANDOM = new SecureRandom();
-    private static final Lock LOCK = new ReentrantLock();
+    private static final String AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String RSA_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<Cipher> AES_CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> RSA_CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2_FACTORY = new ThreadLocal<>();
+    private static final ThreadLocal<MessageDigest> SHA2_DIGEST = new ThreadLocal<>();
+    private static final ThreadLocal<CertificateFactory> X509_FACTORY = new ThreadLocal<>();
     
     private CryptoTools()
     {
@@ -50,16 +58,7 @@ final class CryptoTools
     public static byte[] generateRandomBytes(int length)
     {
         byte[] b = new byte[length];
-        LOCK.lock();
-        try
-        {
-            RANDOM.nextBytes(b);
-        }
-        finally
-        {
-            LOCK.unlock();
-        }
-        
+        RANDOM.get().nextBytes(b);
         return b;
     }
     
@@ -71,22 +70,12 @@ final class CryptoTools
     public static byte[] cipherData(byte[] rawData, SecretKey aesSecretKey, byte[] iv) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException, NoSuchPaddingException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException
     {
         // 16 bytes of salt will be added at the beginning of the key
-        byte[] dataSalt = new byte[16];
-        LOCK.lock();
-        try
-        {
-            RANDOM.nextBytes(dataSalt);
-        }
-        finally
-        {
-            LOCK.unlock();
-        }
-        
+        byte[] dataSalt = generateRandomBytes(16);
         byte[] cipherKey = new byte[dataSalt.length + rawData.length];
         System.arraycopy(dataSalt, 0, cipherKey, 0, dataSalt.length);
         System.arraycopy(rawData, 0, cipherKey, dataSalt.length, rawData.length);
         
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        Cipher cipher = getCipher(AES_CIPHER, AES_TRANSFORMATION);
         cipher.init(Cipher.ENCRYPT_MODE, aesSecretKey, new IvParameterSpec(iv));
         return cipher.doFinal(cipherKey);
     }
@@ -94,7 +83,7 @@ final class CryptoTools
     public static byte[] decipherData(byte[] cipheredData, SecretKey aesSecretKey, byte[] iv) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException, NoSuchPaddingException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException
     {
         // 16 bytes of salt will be removed from the beginning of the key
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        Cipher cipher = getCipher(AES_CIPHER, AES_TRANSFORMATION);
         cipher.init(Cipher.DECRYPT_MODE, aesSecretKey, new IvParameterSpec(iv));
         byte[] saltedData = cipher.doFinal(cipheredData);
         return Arrays.copyOfRange(saltedData, 16, saltedData.length);
@@ -102,7 +91,13 @@ final class CryptoTools
 
     public static SecretKey getAESSecretKey(char[] password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException
     {
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        SecretKeyFactory factory = PBKDF2_FACTORY.get();
+        if (factory == null)
+        {
+            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            PBKDF2_FACTORY.set(factory);
+        }
+
         KeySpec spec = new PBEKeySpec(password, salt, 65536, 256);
         SecretKey tmp = factory.generateSecret(spec);
         return new SecretKeySpec(tmp.getEncoded(), "AES");
@@ -110,7 +105,7 @@ final class CryptoTools
     
     public static byte[] cipherData(byte[] rawData, PublicKey publicKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException
     {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        Cipher cipher = getCipher(RSA_CIPHER, RSA_TRANSFORMATION);
         cipher.init(Cipher.ENCRYPT_MODE, publicKey);
         return cipher.doFinal(rawData);
     }
@@ -118,7 +113,7 @@ final class CryptoTools
     
     public static byte[] decipherData(byte[] cipheredData, PrivateKey privateKey) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException
     {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        Cipher cipher = getCipher(RSA_CIPHER, RSA_TRANSFORMATION);
         cipher.init(Cipher.DECRYPT_MODE, privateKey);
         return cipher.doFinal(cipheredData);
     }
@@ -127,7 +122,13 @@ final class CryptoTools
     {
         try (InputStream is = new ByteArrayInputStream(encodedCertificate))
         {
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            CertificateFactory cf = X509_FACTORY.get();
+            if (cf == null)
+            {
+                cf = CertificateFactory.getInstance("X.509");
+                X509_FACTORY.set(cf);
+            }
+
             return cf.generateCertificate(is);
         }
         catch (IOException e)
@@ -137,4 +138,29 @@ final class CryptoTools
             throw new CertificateException(e);
         }
     }
+
+    public static byte[] digestSHA2(byte[] data) throws NoSuchAlgorithmException
+    {
+        MessageDigest md = SHA2_DIGEST.get();
+        if (md == null)
+        {
+            md = MessageDigest.getInstance("SHA-256");
+            SHA2_DIGEST.set(md);
+        }
+
+        return md.digest(data);
+    }
+
+    private static Cipher getCipher(ThreadLocal<Cipher> cipherHolder, String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        // a cipher is reset by each call to init, so it can be reused by the same thread
+        Cipher cipher = cipherHolder.get();
+        if (cipher == null)
+        {
+            cipher = Cipher.getInstance(transformation);
+            cipherHolder.set(cipher);
+        }
+
+        return cipher;
+    }
 }
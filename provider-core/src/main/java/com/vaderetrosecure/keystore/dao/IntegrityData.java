@@ -6,7 +6,6 @@ package com.vaderetrosecure.keystore.dao;
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.spec.InvalidKeySpecException;
@@ -191,8 +190,7 @@ public class IntegrityData
     {
         setIV(CryptoTools.generateIV());
         byte[] integrityData = CryptoTools.generateRandomBytes(64);
-        MessageDigest sha2 = MessageDigest.getInstance("SHA-256");
-        setDataHash(sha2.digest(integrityData));
+        setDataHash(CryptoTools.digestSHA2(integrityData));
         SecretKey secret = CryptoTools.getAESSecretKey(password, getSalt());
         setCipheredData(CryptoTools.cipherData(integrityData, secret, getIV()));
     }
@@ -213,9 +211,8 @@ public class IntegrityData
         try
         {
             SecretKey secret = CryptoTools.getAESSecretKey(password, getSalt());
-            MessageDigest sha2 = MessageDigest.getInstance("SHA-256");
             byte[] data = CryptoTools.decipherData(getCipheredData(), secret, getIV());
-            if (!Arrays.equals(getDataHash(), sha2.digest(data)))
+            if (!Arrays.equals(getDataHash(), CryptoTools.digestSHA2(data)))
                 throw new UnrecoverableKeyException("integrity check failed");
         }
         catch (InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e)
@@ -154,6 +154,20 @@ public class KeyProtection
         return new KeyProtection(sk, iv);
     }
     
+    /**
+     * Generate a {@code KeyProtection} object, given a secret key already derived from a password.
+     * A new initialization vector is generated using a strong random number generator. It avoids deriving
+     * the same password again when several keys are protected with it.<br>
+     * Implementors do not need to call this method.
+     * 
+     * @param key the secret key, derived from a password and salt.
+     * @return an new KeyProtection object.
+     */
+    public static KeyProtection generateKeyProtection(SecretKey key)
+    {
+        return new KeyProtection(key, CryptoTools.generateIV());
+    }
+    
     private SecretKey unlockCipheredKey(byte[] cipheredKey, PrivateKey privateKey) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException
     {
         SecretKey sk = null;
@@ -3,7 +3,11 @@
  */
 package com.vaderetrosecure.keystore.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This class is one of the base classes for implementing a DAO.
@@ -97,7 +101,8 @@ public interface KeyStoreDAO
     
     /**
      * Return each entry that its associated names list matches the name in parameter.
-     * This method is used by the {@code TLSSSLContextSpi} object when performing SNI matching. 
+     * The {@code TLSSSLContextSpi} object performs SNI matching with an in-memory index of these names, so 
+     * this method is not called during handshakes. 
      * 
      * @param name the name entries must match with.
      * @return the list of entries matching the name, or an empty list if not match was found.
@@ -107,6 +112,111 @@ public interface KeyStoreDAO
      */
     List<KeyStoreEntry> getEntries(String name) throws KeyStoreDAOException;
     
+    /**
+     * Return all entries of the store.
+     * It is called to build in-memory indexes, or to preload the key managers. This default implementation reads each alias 
+     * with {@link #getEntry(String)}: implementations should override it to read all entries in bulk.
+     * 
+     * @return the list of all entries, or an empty list if the store is empty.
+     * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
+     * @see com.vaderetrosecure.ssl.SNIX509ExtendedKeyManager
+     */
+    default List<KeyStoreEntry> getAllEntries() throws KeyStoreDAOException
+    {
+        List<KeyStoreEntry> entries = new ArrayList<>();
+        for (String alias : getAliases())
+        {
+            KeyStoreEntry kse = getEntry(alias);
+            if (kse != null)
+                entries.add(kse);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Return the metadata of all entries of the store: alias, type, algorithm, creation date and names.
+     * It is called to build the in-memory indexes of the key managers that do not preload all entries, so the key data and
+     * certificate chains of the returned entries may be left empty: they must not be decoded nor written back. This default
+     * implementation returns {@link #getAllEntries()}: implementations should override it to skip the key data and certificates.
+     *
+     * @return the list of all entries, possibly without key data nor certificate chain, or an empty list if the store is empty.
+     * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
+     * @see com.vaderetrosecure.ssl.SNIX509ExtendedKeyManager
+     */
+    default List<KeyStoreEntry> getAllEntriesMetadata() throws KeyStoreDAOException
+    {
+        return getAllEntries();
+    }
+
+    /**
+     * Return the names of all entries.
+     * It is called to build the name filters rejecting unknown names. This default implementation reads all entries with
+     * {@link #getAllEntries()}: implementations should override it to read the names only.
+     * 
+     * @return the list of names, each given once, or an empty list if no entry has a name.
+     * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
+     * @see com.vaderetrosecure.keystore.dao.CachingKeyStoreDAO
+     */
+    default List<String> getNames() throws KeyStoreDAOException
+    {
+        Set<String> names = new LinkedHashSet<>();
+        for (KeyStoreEntry kse : getAllEntries())
+            names.addAll(kse.getNames());
+
+        return new ArrayList<>(names);
+    }
+    
+    /**
+     * Return the generation of the store.
+     * The generation is a counter incremented by each modification of the entries, including modifications made by other
+     * processes. The key managers compare it with the generation they loaded to detect changes cheaply before reloading 
+     * the entries. This default implementation returns -1, meaning that the implementation can not detect changes: the 
+     * entries are then reloaded at each refresh.
+     * 
+     * @return the generation, or -1 if the implementation does not track modifications.
+     * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
+     * @see com.vaderetrosecure.ssl.SNIX509ExtendedKeyManager
+     */
+    default long getGeneration() throws KeyStoreDAOException
+    {
+        return -1L;
+    }
+    
+    /**
+     * Return the sequence number of the last change logged.
+     * A consumer reads it before loading the entries, then follows the changes made after it with {@link #getChangesSince(long)}.
+     * This default implementation returns -1, meaning that the implementation does not log changes.
+     * 
+     * @return the sequence number of the last change, 0 if no change was logged, or -1 if the implementation does not log changes.
+     * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
+     * @see com.vaderetrosecure.ssl.SNIX509ExtendedKeyManager
+     */
+    default long getLastChangeSequence() throws KeyStoreDAOException
+    {
+        return -1L;
+    }
+    
+    /**
+     * Return the changes made to the entries after a given change.
+     * Changes are read from an append-only log, written in the same transaction as the entries, so that caches and replicas
+     * synchronize in proportion to the number of changes instead of the size of the store. The sequence number is the one
+     * returned by {@link #getLastChangeSequence()} before the entries were loaded, then the one of the last change applied.
+     * An alias may appear in several changes: the last one prevails.<br>
+     * The method returns null when the changes can not be followed: the implementation does not log changes, or the changes
+     * following the sequence number were discarded. Consumers then reload all entries with {@link #getAllEntries()}.
+     * This default implementation returns null.
+     * 
+     * @param sequence the sequence number of the last known change.
+     * @return the list of changes following it, ordered by sequence number, an empty list if there is none, or null if 
+     * they can not be followed.
+     * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
+     */
+    default List<KeyStoreEntryChange> getChangesSince(long sequence) throws KeyStoreDAOException
+    {
+        return null;
+    }
+    
     /**
      * Add an entry to the store.
      * If an entry already exists, it is replaced, whatever the type of entry.
@@ -116,6 +226,21 @@ public interface KeyStoreDAO
      */
     void setEntry(KeyStoreEntry entry) throws KeyStoreDAOException;
     
+    /**
+     * Add entries to the store.
+     * Existing entries are replaced, whatever the type of entry. It is intended for bulk imports: implementations should 
+     * override it to write all entries in a single transaction and as few round trips as possible. This default implementation
+     * calls {@link #setEntry(KeyStoreEntry)} for each entry.
+     * 
+     * @param entries the entries to store.
+     * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
+     */
+    default void setEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        for (KeyStoreEntry entry : entries)
+            setEntry(entry);
+    }
+    
     /**
      * Remove a {@code KeyStoreEntry} object from the underlying store.
      * This method removes all data associated with the alias, including the 
@@ -125,4 +250,18 @@ public interface KeyStoreDAO
      * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
      */
     void deleteEntry(KeyStoreEntry entry) throws KeyStoreDAOException;
+    
+    /**
+     * Remove {@code KeyStoreEntry} objects from the underlying store.
+     * Implementations should override it to delete all entries in a single transaction. This default implementation 
+     * calls {@link #deleteEntry(KeyStoreEntry)} for each entry.
+     * 
+     * @param entries the objects to delete.
+     * @throws KeyStoreDAOException if the implementation can not process because of an underlying error.
+     */
+    default void deleteEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        for (KeyStoreEntry entry : entries)
+            deleteEntry(entry);
+    }
 }
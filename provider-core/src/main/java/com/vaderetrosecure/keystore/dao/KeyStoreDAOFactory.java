@@ -17,6 +17,9 @@ import org.apache.log4j.Logger;
  * <pre>
  * {@code java -Dcom.vaderetrosecure.keystore.dao.factory=com.company.MyDAOFactory ...}</pre>
  * if the implementor's factory is {@code com.company.MyDAOFactory}.
+ * <p>
+ * The reads of the DAO can be cached, whatever its implementation, by setting the {@code com.vaderetrosecure.keystore.dao.cache.ttl}
+ * property: the DAO given by {@link #getKeyStoreDAO()} is then a {@linkplain com.vaderetrosecure.keystore.dao.CachingKeyStoreDAO}.
  */
 public abstract class KeyStoreDAOFactory
 {
@@ -34,7 +37,7 @@ public abstract class KeyStoreDAOFactory
      * Return the current KeyStoreDAOFactory instance.
      * If the instance is not available yet, a new factory is created, given the value of the
      * {@code com.vaderetrosecure.keystore.dao.factory} property. Then, the factory is initialized 
-     * by calling the {@link #init()} method.
+     * by calling the {@link #init()} method. If the cache is enabled, the factory is wrapped so that it gives a cached DAO.
      * 
      * @return the KeyStoreDAOFactory instance.
      * @throws KeyStoreDAOException if an exception occurs when instantiating or initializing the factory.
@@ -63,6 +66,12 @@ public abstract class KeyStoreDAOFactory
             throw new KeyStoreDAOException(e);
         }
         
+        if (CachingKeyStoreDAO.isEnabled())
+        {
+            LOG.info("caching key store DAO of '" + factoryClassStr + "'");
+            factory = new CachingKeyStoreDAOFactory(factory);
+        }
+        
         INSTANCE = factory;
         return INSTANCE;
     }
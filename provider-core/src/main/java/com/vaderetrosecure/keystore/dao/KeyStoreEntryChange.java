@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao;
+
+/**
+ * A change made to an entry of the store, as recorded in the change log of a DAO.
+ * Changes are identified by a sequence number, growing with each change. A change only holds the alias of the entry:
+ * to synchronize with the store, a cache or a replica applies the changes following the last sequence number it knows,
+ * reading the entries that were set and removing the entries that were deleted.
+ *
+ * @see com.vaderetrosecure.keystore.dao.KeyStoreDAO#getChangesSince(long)
+ */
+public class KeyStoreEntryChange
+{
+    /**
+     * The operation made on an entry.
+     */
+    public enum Operation
+    {
+        /**
+         * The entry was added or replaced.
+         */
+        SET,
+
+        /**
+         * The entry was deleted.
+         */
+        DELETE
+    }
+
+    private final long sequence;
+    private final String alias;
+    private final Operation operation;
+
+    /**
+     * Construct a new {@code KeyStoreEntryChange} object.
+     *
+     * @param sequence the sequence number of the change.
+     * @param alias the alias of the entry.
+     * @param operation the operation made on the entry.
+     */
+    public KeyStoreEntryChange(long sequence, String alias, Operation operation)
+    {
+        this.sequence = sequence;
+        this.alias = alias;
+        this.operation = operation;
+    }
+
+    /**
+     * Return the sequence number of the change.
+     *
+     * @return the sequence number.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Return the alias of the entry.
+     *
+     * @return the alias.
+     */
+    public String getAlias()
+    {
+        return alias;
+    }
+
+    /**
+     * Return the operation made on the entry.
+     *
+     * @return the operation.
+     */
+    public Operation getOperation()
+    {
+        return operation;
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.memory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaderetrosecure.keystore.dao.IntegrityData;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryChange;
+
+/**
+ * A DAO holding entries in memory, for tests and single-node deployments.
+ * Entries are held in a concurrent map by alias, with secondary indexes giving the aliases of each name and of each
+ * algorithm: reads never lock, and {@link #getEntries(String)} and {@link #getAliases(String)} do not scan the entries.
+ * Names and algorithms are matched exactly.<br>
+ * The last changes are kept in a bounded log, where the sequence number of a change is the generation of its modification,
+ * so that key managers refresh incrementally: a key manager whose last change was discarded from the log reloads all entries.<br>
+ * Entries are not copied: they must not be modified once stored. Entries are lost when the JVM stops.
+ *
+ * @see com.vaderetrosecure.keystore.dao.memory.ConcurrentKeyStoreDAOFactory
+ */
+public class ConcurrentKeyStoreDAO implements KeyStoreDAO
+{
+    /**
+     * The default number of changes kept in the change log.
+     */
+    public static final int DEFAULT_CHANGE_LOG_CAPACITY = 1024;
+
+    private final Map<String, KeyStoreEntry> entries;
+    private final Map<String, Set<String>> nameIndex;
+    private final Map<String, Set<String>> algorithmIndex;
+    private final AtomicLong generation;
+    private final Deque<KeyStoreEntryChange> changes;
+    private final int changeLogCapacity;
+    private long discardedSequence;
+    private volatile IntegrityData integrityData;
+
+    /**
+     * Construct a new empty {@code ConcurrentKeyStoreDAO} object, keeping the last {@value #DEFAULT_CHANGE_LOG_CAPACITY} changes.
+     */
+    public ConcurrentKeyStoreDAO()
+    {
+        this(DEFAULT_CHANGE_LOG_CAPACITY);
+    }
+
+    /**
+     * Construct a new empty {@code ConcurrentKeyStoreDAO} object.
+     *
+     * @param changeLogCapacity the number of changes kept in the change log.
+     */
+    public ConcurrentKeyStoreDAO(int changeLogCapacity)
+    {
+        if (changeLogCapacity <= 0)
+            throw new IllegalArgumentException("change log capacity must be positive");
+
+        this.changeLogCapacity = changeLogCapacity;
+        this.changes = new ArrayDeque<>();
+        this.discardedSequence = 0L;
+        this.entries = new ConcurrentHashMap<>();
+        this.nameIndex = new ConcurrentHashMap<>();
+        this.algorithmIndex = new ConcurrentHashMap<>();
+        this.generation = new AtomicLong();
+        this.integrityData = null;
+    }
+
+    @Override
+    public void checkDAOStructure() throws KeyStoreDAOException
+    {
+    }
+
+    @Override
+    public int countEntries() throws KeyStoreDAOException
+    {
+        return entries.size();
+    }
+
+    @Override
+    public List<String> getAliases() throws KeyStoreDAOException
+    {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public List<String> getAliases(String algorithm) throws KeyStoreDAOException
+    {
+        Set<String> aliases = algorithmIndex.get(algorithm);
+        if (aliases == null)
+            return Collections.emptyList();
+
+        // the index may briefly hold an alias being replaced: the entry itself is checked
+        List<String> l = new ArrayList<>(aliases.size());
+        for (String alias : aliases)
+        {
+            KeyStoreEntry kse = entries.get(alias);
+            if ((kse != null) && algorithm.equals(kse.getAlgorithm()))
+                l.add(alias);
+        }
+        return l;
+    }
+
+    @Override
+    public IntegrityData getIntegrityData() throws KeyStoreDAOException
+    {
+        return integrityData;
+    }
+
+    @Override
+    public void setIntegrityData(IntegrityData integrityData) throws KeyStoreDAOException
+    {
+        this.integrityData = integrityData;
+    }
+
+    @Override
+    public KeyStoreEntry getEntry(String alias) throws KeyStoreDAOException
+    {
+        return entries.get(alias);
+    }
+
+    @Override
+    public List<KeyStoreEntry> getEntries(String name) throws KeyStoreDAOException
+    {
+        Set<String> aliases = nameIndex.get(name);
+        if (aliases == null)
+            return Collections.emptyList();
+
+        List<KeyStoreEntry> l = new ArrayList<>(aliases.size());
+        for (String alias : aliases)
+        {
+            KeyStoreEntry kse = entries.get(alias);
+            if ((kse != null) && kse.getNames().contains(name))
+                l.add(kse);
+        }
+        return l;
+    }
+
+    @Override
+    public List<KeyStoreEntry> getAllEntries() throws KeyStoreDAOException
+    {
+        return new ArrayList<>(entries.values());
+    }
+
+    @Override
+    public List<String> getNames() throws KeyStoreDAOException
+    {
+        // the index may briefly hold a name being removed: the filters built from it only get a false positive
+        return new ArrayList<>(nameIndex.keySet());
+    }
+
+    @Override
+    public long getGeneration() throws KeyStoreDAOException
+    {
+        return generation.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The sequence number of the last change is the generation.
+     */
+    @Override
+    public long getLastChangeSequence() throws KeyStoreDAOException
+    {
+        return generation.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The changes of a modification share its generation as sequence number. Null is returned if changes following the
+     * sequence number were discarded from the log.
+     */
+    @Override
+    public List<KeyStoreEntryChange> getChangesSince(long sequence) throws KeyStoreDAOException
+    {
+        synchronized (changes)
+        {
+            if (sequence < discardedSequence)
+                return null;
+
+            // the last changes are the most often requested: the log is read backwards
+            List<KeyStoreEntryChange> l = new ArrayList<>();
+            Iterator<KeyStoreEntryChange> it = changes.descendingIterator();
+            while (it.hasNext())
+            {
+                KeyStoreEntryChange change = it.next();
+                if (change.getSequence() <= sequence)
+                    break;
+                l.add(change);
+            }
+            Collections.reverse(l);
+            return l;
+        }
+    }
+
+    @Override
+    public void setEntry(KeyStoreEntry entry) throws KeyStoreDAOException
+    {
+        putEntry(entry);
+        commit(Collections.singletonList(entry), KeyStoreEntryChange.Operation.SET);
+    }
+
+    @Override
+    public void setEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        if (entries.isEmpty())
+            return;
+
+        for (KeyStoreEntry entry : entries)
+            putEntry(entry);
+        commit(entries, KeyStoreEntryChange.Operation.SET);
+    }
+
+    @Override
+    public void deleteEntry(KeyStoreEntry entry) throws KeyStoreDAOException
+    {
+        removeEntry(entry.getAlias());
+        commit(Collections.singletonList(entry), KeyStoreEntryChange.Operation.DELETE);
+    }
+
+    @Override
+    public void deleteEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        if (entries.isEmpty())
+            return;
+
+        for (KeyStoreEntry entry : entries)
+            removeEntry(entry.getAlias());
+        commit(entries, KeyStoreEntryChange.Operation.DELETE);
+    }
+
+    /**
+     * Increment the generation and log the changes of a modification, once its entries are stored.
+     * Both are done under the lock of the log, so that changes are logged in the order of their sequence numbers.
+     */
+    private void commit(Collection<KeyStoreEntry> entries, KeyStoreEntryChange.Operation operation)
+    {
+        synchronized (changes)
+        {
+            long sequence = generation.incrementAndGet();
+            for (KeyStoreEntry entry : entries)
+                changes.addLast(new KeyStoreEntryChange(sequence, entry.getAlias(), operation));
+            while (changes.size() > changeLogCapacity)
+                discardedSequence = changes.removeFirst().getSequence();
+        }
+    }
+
+    private void putEntry(KeyStoreEntry entry)
+    {
+        // updates of an alias are serialized by the map, so that its index keys follow its last entry;
+        // new keys are indexed first, so that a name kept by the new entry is always found
+        entries.compute(entry.getAlias(), (alias, previous) -> {
+            for (String name : entry.getNames())
+                index(nameIndex, name, alias);
+            if (entry.getAlgorithm() != null)
+                index(algorithmIndex, entry.getAlgorithm(), alias);
+            unindex(alias, previous, entry);
+            return entry;
+        });
+    }
+
+    private void removeEntry(String alias)
+    {
+        entries.computeIfPresent(alias, (a, previous) -> {
+            unindex(a, previous, null);
+            return null;
+        });
+    }
+
+    private void unindex(String alias, KeyStoreEntry previous, KeyStoreEntry next)
+    {
+        if (previous == null)
+            return;
+
+        for (String name : previous.getNames())
+            if ((next == null) || !next.getNames().contains(name))
+                unindex(nameIndex, name, alias);
+        String algorithm = previous.getAlgorithm();
+        if ((algorithm != null) && ((next == null) || !algorithm.equals(next.getAlgorithm())))
+            unindex(algorithmIndex, algorithm, alias);
+    }
+
+    private static void index(Map<String, Set<String>> index, String key, String alias)
+    {
+        index.compute(key, (k, aliases) -> {
+            Set<String> s = aliases == null ? ConcurrentHashMap.newKeySet() : aliases;
+            s.add(alias);
+            return s;
+        });
+    }
+
+    private static void unindex(Map<String, Set<String>> index, String key, String alias)
+    {
+        index.computeIfPresent(key, (k, aliases) -> {
+            aliases.remove(alias);
+            return aliases.isEmpty() ? null : aliases;
+        });
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.memory;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOFactory;
+
+/**
+ * This factory instantiates an empty {@code ConcurrentKeyStoreDAO}, holding entries in memory.
+ * It is selected with the property:
+ * <pre>
+ * {@code java -Dcom.vaderetrosecure.keystore.dao.factory=com.vaderetrosecure.keystore.dao.memory.ConcurrentKeyStoreDAOFactory ...}</pre>
+ *
+ * @see com.vaderetrosecure.keystore.dao.KeyStoreDAOFactory
+ * @see com.vaderetrosecure.keystore.dao.memory.ConcurrentKeyStoreDAO
+ */
+public class ConcurrentKeyStoreDAOFactory extends KeyStoreDAOFactory
+{
+    private KeyStoreDAO keyStoreDAO;
+
+    public ConcurrentKeyStoreDAOFactory()
+    {
+        keyStoreDAO = null;
+    }
+
+    @Override
+    protected void init() throws KeyStoreDAOException
+    {
+        keyStoreDAO = new ConcurrentKeyStoreDAO();
+    }
+
+    @Override
+    public KeyStoreDAO getKeyStoreDAO() throws KeyStoreDAOException
+    {
+        return keyStoreDAO;
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ *
+ */
+package com.vaderetrosecure.ssl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
+
+/**
+ * An immutable index of host names and key algorithms to aliases of private key entries.
+ * It is used by the SNI matching and the alias selection to resolve names without accessing the DAO during handshakes.
+ * Modifications never change an existing index: they return a new index instead, so an index can be
+ * shared between threads and swapped atomically.
+ */
+final class SNIHostNameIndex
+{
+    static final SNIHostNameIndex EMPTY = new SNIHostNameIndex(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+    private final Map<String, IndexedAlias> aliases;
+    private final Map<String, List<String>> names;
+    private final Map<String, List<String>> algorithms;
+
+    private SNIHostNameIndex(Map<String, IndexedAlias> aliases, Map<String, List<String>> names, Map<String, List<String>> algorithms)
+    {
+        this.aliases = aliases;
+        this.names = names;
+        this.algorithms = algorithms;
+    }
+
+    /**
+     * Build a new index from entries.
+     *
+     * @param entries the entries to index, usually all entries of a DAO.
+     * @return the new index.
+     */
+    static SNIHostNameIndex build(Collection<KeyStoreEntry> entries)
+    {
+        return EMPTY.withChanges(entries, Collections.emptyList());
+    }
+
+    /**
+     * Return the aliases of the entries matching the name.
+     *
+     * @param name the name, in lower case.
+     * @return the list of aliases, or an empty list if no entry matches.
+     */
+    List<String> getAliases(String name)
+    {
+        List<String> l = names.get(name);
+        return l == null ? Collections.emptyList() : l;
+    }
+
+    /**
+     * Return the aliases of the entries whose wildcard name matches the name.
+     * A wildcard only covers a single label: {@code *.example.com} matches {@code www.example.com}, but neither
+     * {@code example.com} nor {@code a.www.example.com}.
+     *
+     * @param name the name, in lower case.
+     * @return the list of aliases, or an empty list if no wildcard matches.
+     */
+    List<String> getWildcardAliases(String name)
+    {
+        int dot = name.indexOf('.');
+        if ((dot <= 0) || (dot == name.length() - 1))
+            return Collections.emptyList();
+
+        // wildcard names are indexed literally, as they are stored in certificates
+        return getAliases("*" + name.substring(dot));
+    }
+
+    /**
+     * Return the aliases of the entries whose private key uses the algorithm.
+     *
+     * @param algorithm the algorithm, in any case.
+     * @return the list of aliases, or an empty list if no entry uses the algorithm.
+     */
+    List<String> getAliasesByAlgorithm(String algorithm)
+    {
+        List<String> l = algorithms.get(algorithm.toUpperCase());
+        return l == null ? Collections.emptyList() : l;
+    }
+
+    /**
+     * Return the algorithm of the private key identified by the alias.
+     *
+     * @param alias the alias of the entry.
+     * @return the algorithm, or null if the alias is not indexed.
+     */
+    String getAlgorithm(String alias)
+    {
+        IndexedAlias ia = aliases.get(alias);
+        return ia == null ? null : ia.algorithm;
+    }
+
+    /**
+     * Return the creation date of the entry identified by the alias.
+     *
+     * @param alias the alias of the entry.
+     * @return the creation date, or null if the alias is not indexed.
+     */
+    Date getCreationDate(String alias)
+    {
+        IndexedAlias ia = aliases.get(alias);
+        return ia == null ? null : ia.creationDate;
+    }
+
+    /**
+     * Return a copy of this index, where the entry replaces any entry with the same alias.
+     *
+     * @param entry the new entry.
+     * @return the new index.
+     */
+    SNIHostNameIndex withEntry(KeyStoreEntry entry)
+    {
+        return withChanges(Collections.singletonList(entry), Collections.emptyList());
+    }
+
+    /**
+     * Return a copy of this index, where entries replace any entries with the same aliases.
+     *
+     * @param entries the new entries.
+     * @return the new index.
+     */
+    SNIHostNameIndex withEntries(Collection<KeyStoreEntry> entries)
+    {
+        return withChanges(entries, Collections.emptyList());
+    }
+
+    /**
+     * Return a copy of this index, without the entry identified by the alias.
+     *
+     * @param alias the alias of the entry to remove.
+     * @return the new index, or this index if the alias was not indexed.
+     */
+    SNIHostNameIndex withoutEntry(String alias)
+    {
+        if (!aliases.containsKey(alias))
+            return this;
+
+        return withChanges(Collections.emptyList(), Collections.singletonList(alias));
+    }
+
+    /**
+     * Return a copy of this index, where entries replace any entries with the same aliases, and other entries are removed.
+     * The index is copied once for all changes, and each list of aliases at most once, so applying a batch of changes
+     * costs about as much as applying a single one.
+     *
+     * @param entries the new entries.
+     * @param deletedAliases the aliases of the entries to remove.
+     * @return the new index, or this index if there is no change.
+     */
+    SNIHostNameIndex withChanges(Collection<KeyStoreEntry> entries, Collection<String> deletedAliases)
+    {
+        if (entries.isEmpty() && deletedAliases.isEmpty())
+            return this;
+
+        Builder builder = new Builder(this);
+        for (String alias : deletedAliases)
+            builder.remove(alias);
+        for (KeyStoreEntry kse : entries)
+            builder.put(kse);
+        return builder.build();
+    }
+
+    /**
+     * A copy of an index being modified.
+     * Lists of aliases are shared with the original index: a list is copied the first time it is modified, then modified
+     * in place, and made unmodifiable when the new index is built.
+     */
+    private static final class Builder
+    {
+        private final Map<String, IndexedAlias> aliases;
+        private final Map<String, List<String>> names;
+        private final Map<String, List<String>> algorithms;
+        private final Set<String> copiedNames;
+        private final Set<String> copiedAlgorithms;
+
+        private Builder(SNIHostNameIndex index)
+        {
+            this.aliases = new HashMap<>(index.aliases);
+            this.names = new HashMap<>(index.names);
+            this.algorithms = new HashMap<>(index.algorithms);
+            this.copiedNames = new HashSet<>();
+            this.copiedAlgorithms = new HashSet<>();
+        }
+
+        private void put(KeyStoreEntry entry)
+        {
+            if (entry.getEntryType() != KeyStoreEntryType.PRIVATE_KEY)
+            {
+                remove(entry.getAlias());
+                return;
+            }
+
+            List<String> entryNames = new ArrayList<>();
+            for (String name : entry.getNames())
+            {
+                String n = name.toLowerCase();
+                if (!entryNames.contains(n))
+                    entryNames.add(n);
+            }
+
+            // a renewed entry usually keeps its names and algorithm: only the differences are applied to the lists
+            String alias = entry.getAlias();
+            String algorithm = entry.getAlgorithm() == null ? null : entry.getAlgorithm().toUpperCase();
+            IndexedAlias previous = aliases.put(alias, new IndexedAlias(entry.getAlgorithm(), entry.getCreationDate(), entryNames));
+            List<String> previousNames = previous == null ? Collections.emptyList() : previous.names;
+            String previousAlgorithm = (previous == null) || (previous.algorithm == null) ? null : previous.algorithm.toUpperCase();
+
+            for (String n : previousNames)
+                if (!entryNames.contains(n))
+                    removeFromList(names, copiedNames, n, alias);
+            for (String n : entryNames)
+                if (!previousNames.contains(n))
+                    addToList(names, copiedNames, n, alias);
+
+            if ((previousAlgorithm != null) && !previousAlgorithm.equals(algorithm))
+                removeFromList(algorithms, copiedAlgorithms, previousAlgorithm, alias);
+            if ((algorithm != null) && !algorithm.equals(previousAlgorithm))
+                addToList(algorithms, copiedAlgorithms, algorithm, alias);
+        }
+
+        private void remove(String alias)
+        {
+            IndexedAlias ia = aliases.remove(alias);
+            if (ia == null)
+                return;
+
+            for (String n : ia.names)
+                removeFromList(names, copiedNames, n, alias);
+            if (ia.algorithm != null)
+                removeFromList(algorithms, copiedAlgorithms, ia.algorithm.toUpperCase(), alias);
+        }
+
+        private SNIHostNameIndex build()
+        {
+            freeze(names, copiedNames);
+            freeze(algorithms, copiedAlgorithms);
+            return new SNIHostNameIndex(aliases, names, algorithms);
+        }
+
+        private static void addToList(Map<String, List<String>> map, Set<String> copied, String key, String alias)
+        {
+            getCopy(map, copied, key).add(alias);
+        }
+
+        private static void removeFromList(Map<String, List<String>> map, Set<String> copied, String key, String alias)
+        {
+            if (map.containsKey(key))
+                getCopy(map, copied, key).remove(alias);
+        }
+
+        private static List<String> getCopy(Map<String, List<String>> map, Set<String> copied, String key)
+        {
+            if (copied.add(key))
+            {
+                List<String> l = map.get(key);
+                map.put(key, l == null ? new ArrayList<>(1) : new ArrayList<>(l));
+            }
+
+            return map.get(key);
+        }
+
+        private static void freeze(Map<String, List<String>> map, Set<String> copied)
+        {
+            for (String key : copied)
+            {
+                List<String> l = map.get(key);
+                if (l.isEmpty())
+                    map.remove(key);
+                else
+                    map.put(key, Collections.unmodifiableList(l));
+            }
+        }
+    }
+
+    private static final class IndexedAlias
+    {
+        private final String algorithm;
+        private final Date creationDate;
+        private final List<String> names;
+
+        private IndexedAlias(String algorithm, Date creationDate, List<String> names)
+        {
+            this.algorithm = algorithm;
+            this.creationDate = creationDate;
+            this.names = names;
+        }
+    }
+}
@@ -3,6 +3,7 @@
  */
 package com.vaderetrosecure.ssl;
 
+import java.lang.ref.WeakReference;
 import java.net.Socket;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -14,47 +15,308 @@ import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.net.ssl.SNIMatcher;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIServerName;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.X509ExtendedKeyManager;
 
 import org.apache.log4j.Logger;
 
+import com.vaderetrosecure.keystore.KeyStoreEntryListener;
+import com.vaderetrosecure.keystore.VRKeyStoreSpi;
 import com.vaderetrosecure.keystore.dao.CertificateData;
 import com.vaderetrosecure.keystore.dao.KeyProtection;
 import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
 import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
 import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryChange;
 import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
+import com.vaderetrosecure.util.BoundedCache;
 
 /**
- *
+ * The X509 key manager of the Vade Retro Provider.
+ * It selects certificates using the SNI extension and reads keys from the DAO.
+ * A requested host name is resolved with the entries holding this exact name first, then with the entries holding
+ * a wildcard name covering it (such as {@code *.example.com} for {@code www.example.com}). If no entry matches,
+ * a default entry can be selected for each key type (see {@link VRKeyManagerFactoryParameters}). The private keys and chains
+ * of default entries are preloaded, so that handshakes falling back to them never access the DAO.
+ * In the eager mode, all entries are preloaded: they are read in bulk, then unwrapped and decoded in parallel, so that
+ * the first handshakes are as fast as the next ones. Otherwise, the index is built from the metadata of the entries only
+ * (see {@link KeyStoreDAO#getAllEntriesMetadata()}), the default entries are read one by one, and unwrapped private keys
+ * and decoded certificate chains are cached, so that only the first handshake using an alias pays the deciphering and parsing costs.
+ * Entries modified by other processes, such as certificate renewals written directly in the store, are picked up by a periodic
+ * refresh (see {@link VRKeyManagerFactoryParameters#setRefreshPeriod(long)}): a new snapshot is built in the background, from the
+ * entries changed since the previous refresh if the DAO logs changes, and published atomically, so that handshakes never wait for it.
+ * The refresh stops once the key manager is no longer referenced. The caches can be configured with the following system properties:
+ * <ul>
+ * <li>{@code com.vaderetrosecure.ssl.keycache.size}: the maximum number of cached private keys and chains (default: 10000)</li>
+ * <li>{@code com.vaderetrosecure.ssl.keycache.ttl}: the time in seconds a private key or a chain stays in the cache (default: 3600)</li>
+ * <li>{@code com.vaderetrosecure.ssl.sni.defaultalias}: the alias of the entry selected when no entry matches the requested host names,
+ * or when the client does not send any, for key types without a default alias of their own (default: none).</li>
+ * </ul>
  */
 public class SNIX509ExtendedKeyManager extends X509ExtendedKeyManager
 {
     private static final Logger LOG = Logger.getLogger(SNIX509ExtendedKeyManager.class);
 
+    static final String KEY_CACHE_SIZE_PROPERTY = "com.vaderetrosecure.ssl.keycache.size";
+    static final String KEY_CACHE_TTL_PROPERTY = "com.vaderetrosecure.ssl.keycache.ttl";
+    static final String DEFAULT_ALIAS_PROPERTY = "com.vaderetrosecure.ssl.sni.defaultalias";
+
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "vaderetro-keymanager-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
     private KeyStoreDAO keyStoreDAO;
     private PrivateKey privateKey;
+    private final AtomicReference<SNIHostNameIndex> sniHostNameIndex;
+    private final String defaultAlias;
+    private final Map<String, String> defaultAliases;
+    private final Set<String> defaultEntryAliases;
+    private final boolean preloadAll;
+    private final Map<String, PreloadedEntry> preloadedEntries;
+    private final BoundedCache<String, CachedValue<PrivateKey>> privateKeyCache;
+    private final BoundedCache<String, CachedValue<X509Certificate[]>> certificateChainCache;
+    private final KeyStoreEntryListener keyStoreEntryListener;
+    private volatile long generation;
+    private volatile long changeSequence;
+
+    SNIX509ExtendedKeyManager(KeyStoreDAO keyStoreDAO, PrivateKey privateKey) throws KeyStoreDAOException
+    {
+        this(keyStoreDAO, privateKey, Collections.emptyMap(), false, 0L);
+    }
 
-    SNIX509ExtendedKeyManager(KeyStoreDAO keyStoreDAO, PrivateKey privateKey)
+    /**
+     * Construct a new key manager, with default aliases and an optional eager mode.
+     *
+     * @param keyStoreDAO the DAO to read.
+     * @param privateKey the private key unlocking key protections, or null if they are not locked.
+     * @param defaultAliases the aliases of the default entries, by key type in upper case.
+     * @param preloadAll true to preload all entries, false to only preload default entries.
+     * @param refreshPeriod the period in seconds between two checks of the DAO generation, or 0 to disable the refresh.
+     * @throws KeyStoreDAOException if the DAO can not be read.
+     */
+    SNIX509ExtendedKeyManager(KeyStoreDAO keyStoreDAO, PrivateKey privateKey, Map<String, String> defaultAliases, boolean preloadAll, long refreshPeriod) throws KeyStoreDAOException
     {
         super();
+        long start = System.nanoTime();
+        this.generation = keyStoreDAO.getGeneration();
+        this.changeSequence = keyStoreDAO.getLastChangeSequence();
+        // without eager mode, the index is built from the metadata only: the key data and certificates are not read
+        List<KeyStoreEntry> entries = preloadAll ? keyStoreDAO.getAllEntries() : keyStoreDAO.getAllEntriesMetadata();
         this.keyStoreDAO = keyStoreDAO;
         this.privateKey = privateKey;
+        this.sniHostNameIndex = new AtomicReference<>(SNIHostNameIndex.build(entries));
+        this.defaultAlias = System.getProperty(DEFAULT_ALIAS_PROPERTY);
+        this.defaultAliases = new HashMap<>(defaultAliases);
+        this.defaultEntryAliases = new HashSet<>(defaultAliases.values());
+        if (defaultAlias != null)
+            defaultEntryAliases.add(defaultAlias);
+        this.preloadAll = preloadAll;
+        this.preloadedEntries = new ConcurrentHashMap<>();
+        int cacheSize = Integer.getInteger(KEY_CACHE_SIZE_PROPERTY, 10000);
+        long cacheTimeToLive = Long.getLong(KEY_CACHE_TTL_PROPERTY, 3600L);
+        this.privateKeyCache = new BoundedCache<>(cacheSize, cacheTimeToLive, TimeUnit.SECONDS);
+        this.certificateChainCache = new BoundedCache<>(cacheSize, cacheTimeToLive, TimeUnit.SECONDS);
+        this.keyStoreEntryListener = new IndexUpdater();
+        VRKeyStoreSpi.addKeyStoreEntryListener(keyStoreDAO, keyStoreEntryListener);
+
+        // unwrapping keys is the costly part of the warm-up: entries are spread over all cores
+        if (preloadAll)
+            entries.parallelStream().forEach(this::preloadEntry);
+        else
+            preloadDefaultEntries();
+        for (String alias : defaultEntryAliases)
+            if (!preloadedEntries.containsKey(alias))
+                LOG.warn("default entry not found: " + alias);
+        if (preloadAll)
+            LOG.info(preloadedEntries.size() + " of " + entries.size() + " entries preloaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        if (refreshPeriod > 0)
+            RefreshTask.schedule(this, refreshPeriod);
+    }
+
+    /**
+     * Read and preload the default entries found in the index, one by one.
+     *
+     * @throws KeyStoreDAOException if the DAO can not be read.
+     */
+    private void preloadDefaultEntries() throws KeyStoreDAOException
+    {
+        SNIHostNameIndex index = sniHostNameIndex.get();
+        for (String alias : defaultEntryAliases)
+        {
+            KeyStoreEntry kse = index.getCreationDate(alias) != null ? keyStoreDAO.getEntry(alias) : null;
+            if (kse != null)
+                preloadEntry(kse);
+        }
     }
 
     KeyStoreDAO getKeyStoreDAO()
     {
         return keyStoreDAO;
     }
+
+    SNIHostNameIndex getSNIHostNameIndex()
+    {
+        return sniHostNameIndex.get();
+    }
+
+    /**
+     * Tell if a default entry can be selected in a snapshot of the index.
+     * A configured default alias only counts if its entry exists and, for a key type default, has this key type.
+     *
+     * @param index the snapshot of the index.
+     * @return true if a default entry exists in the snapshot, false otherwise.
+     */
+    boolean hasDefaultEntry(SNIHostNameIndex index)
+    {
+        if ((defaultAlias != null) && (index.getAlgorithm(defaultAlias) != null))
+            return true;
+
+        for (Map.Entry<String, String> e : defaultAliases.entrySet())
+            if (e.getKey().equalsIgnoreCase(index.getAlgorithm(e.getValue())))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Apply the changes made to the DAO since the entries were loaded, and publish a new snapshot.
+     * If the DAO logs changes, only the entries set or deleted since the last refresh are read; otherwise all entries are reloaded,
+     * as when the generation changed without any new change logged.
+     * Only the entries whose creation date changed are unwrapped again: the others keep their preloaded and cached values.
+     * The new index replaces the previous one atomically, so handshakes in progress keep the snapshot they started with
+     * and never wait for the refresh.
+     *
+     * @return true if a new snapshot was published, false otherwise.
+     * @throws KeyStoreDAOException if the DAO can not be read.
+     */
+    boolean refresh() throws KeyStoreDAOException
+    {
+        long start = System.nanoTime();
+        // the generation is read first: a modification committed during the reload is seen by the next refresh
+        long newGeneration = keyStoreDAO.getGeneration();
+        if ((newGeneration >= 0) && (newGeneration == generation))
+            return false;
+
+        SNIHostNameIndex index = sniHostNameIndex.get();
+        long sequence = changeSequence;
+        List<KeyStoreEntryChange> changes = sequence >= 0 ? keyStoreDAO.getChangesSince(sequence) : null;
+        // the generation moved without any change logged: the store was modified by a writer that does not log its changes
+        if ((changes == null) || changes.isEmpty())
+            return reload(index, newGeneration, start);
+
+        // the last change of an alias prevails
+        Map<String, KeyStoreEntryChange.Operation> operations = new LinkedHashMap<>();
+        for (KeyStoreEntryChange change : changes)
+        {
+            operations.put(change.getAlias(), change.getOperation());
+            sequence = change.getSequence();
+        }
+
+        List<KeyStoreEntry> entries = new ArrayList<>();
+        List<String> deletedAliases = new ArrayList<>();
+        for (Map.Entry<String, KeyStoreEntryChange.Operation> e : operations.entrySet())
+        {
+            KeyStoreEntry kse = e.getValue() == KeyStoreEntryChange.Operation.SET ? keyStoreDAO.getEntry(e.getKey()) : null;
+            if (kse == null)
+                deletedAliases.add(e.getKey());
+            else
+                entries.add(kse);
+        }
+
+        if (!publish(index, index.withChanges(entries, deletedAliases), entries, deletedAliases, newGeneration, sequence))
+            return false;
+
+        LOG.info(operations.size() + " entries changed, snapshot refreshed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return true;
+    }
+
+    private boolean reload(SNIHostNameIndex index, long newGeneration, long start) throws KeyStoreDAOException
+    {
+        // the sequence is read before the entries, as the generation
+        long sequence = keyStoreDAO.getLastChangeSequence();
+        List<KeyStoreEntry> entries = keyStoreDAO.getAllEntries();
+        if (!publish(index, SNIHostNameIndex.build(entries), entries, Collections.emptyList(), newGeneration, sequence))
+            return false;
+
+        LOG.info(entries.size() + " entries reloaded, snapshot refreshed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Publish a new index, unless a key store listener patched the current one meanwhile: the next refresh then reads the changes again.
+     *
+     * @param index the index the changes were read against.
+     * @param newIndex the new index.
+     * @param entries the entries read from the DAO.
+     * @param deletedAliases the aliases of the deleted entries.
+     * @param newGeneration the generation of the DAO read before the changes.
+     * @param sequence the sequence number of the last change read.
+     * @return true if the new index was published, false otherwise.
+     */
+    private boolean publish(SNIHostNameIndex index, SNIHostNameIndex newIndex, List<KeyStoreEntry> entries, List<String> deletedAliases, long newGeneration, long sequence)
+    {
+        List<KeyStoreEntry> changedEntries = new ArrayList<>();
+        for (KeyStoreEntry kse : entries)
+            if ((kse.getEntryType() == KeyStoreEntryType.PRIVATE_KEY) && !kse.getCreationDate().equals(index.getCreationDate(kse.getAlias())))
+                changedEntries.add(kse);
+
+        changedEntries.parallelStream().filter(kse -> isPreloaded(kse.getAlias())).forEach(this::preloadEntry);
+        if (!sniHostNameIndex.compareAndSet(index, newIndex))
+            return false;
+
+        generation = newGeneration;
+        changeSequence = sequence;
+        for (KeyStoreEntry kse : changedEntries)
+        {
+            privateKeyCache.invalidate(kse.getAlias());
+            certificateChainCache.invalidate(kse.getAlias());
+        }
+        for (String alias : deletedAliases)
+        {
+            privateKeyCache.invalidate(alias);
+            certificateChainCache.invalidate(alias);
+        }
+        preloadedEntries.keySet().removeIf(alias -> newIndex.getCreationDate(alias) == null);
+        return true;
+    }
+
+    private void scheduledRefresh()
+    {
+        // an exception would cancel the next executions
+        try
+        {
+            refresh();
+        }
+        catch (KeyStoreDAOException | RuntimeException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+        }
+    }
     
     @Override
     public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine)
@@ -65,11 +327,7 @@ public class SNIX509ExtendedKeyManager extends X509ExtendedKeyManager
     @Override
     public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine)
     {
-        String[] aliases = getServerAliases(keyType, issuers);
-        if (aliases == null)
-            return null;
-        
-        return getSelectedSNIAlias(keyType, engine.getSSLParameters().getSNIMatchers());
+        return chooseServerAlias(keyType, issuers, getRequestedServerNames(engine.getHandshakeSession()));
     }
 
     @Override
@@ -81,26 +339,29 @@ public class SNIX509ExtendedKeyManager extends X509ExtendedKeyManager
     @Override
     public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket)
     {
-        String[] aliases = getServerAliases(keyType, issuers);
-        if (aliases == null)
-            return null;
-        
-        return getSelectedSNIAlias(keyType, ((SSLSocket) socket).getSSLParameters().getSNIMatchers());
+        return chooseServerAlias(keyType, issuers, getRequestedServerNames(((SSLSocket) socket).getHandshakeSession()));
     }
 
     @Override
     public X509Certificate[] getCertificateChain(String alias)
     {
+        // the cached array is shared: callers get a copy, the certificates themselves are immutable
+        PreloadedEntry pe = getPreloadedEntry(alias);
+        X509Certificate[] chain = pe != null ? pe.certificateChain : getCachedValue(certificateChainCache, alias);
+        if (chain != null)
+            return chain.clone();
+
         try
         {
             KeyStoreEntry kse = keyStoreDAO.getEntry(alias);
-            if ((kse != null) && (kse.getEntryType() == KeyStoreEntryType.PRIVATE_KEY) && !kse.getCertificateChain().isEmpty())
+            if ((kse != null) && (kse.getEntryType() == KeyStoreEntryType.PRIVATE_KEY))
             {
-                List<X509Certificate> certs = new ArrayList<>();
-                for (CertificateData ce : kse.getCertificateChain())
-                    certs.add((X509Certificate) ce.getCertificate());
-                
-                return certs.toArray(new X509Certificate[] {});
+                chain = decodeCertificateChain(kse);
+                if (chain != null)
+                {
+                    certificateChainCache.put(alias, new CachedValue<>(kse.getCreationDate(), chain));
+                    return chain.clone();
+                }
             }
         }
         catch (KeyStoreDAOException | CertificateException e)
@@ -121,13 +382,19 @@ public class SNIX509ExtendedKeyManager extends X509ExtendedKeyManager
     @Override
     public PrivateKey getPrivateKey(String alias)
     {
+        PreloadedEntry pe = getPreloadedEntry(alias);
+        PrivateKey pk = pe != null ? pe.privateKey : getCachedValue(privateKeyCache, alias);
+        if (pk != null)
+            return pk;
+
         try
         {
             KeyStoreEntry kse = keyStoreDAO.getEntry(alias);
-            if (kse.getEntryType() == KeyStoreEntryType.PRIVATE_KEY)
+            if ((kse != null) && (kse.getEntryType() == KeyStoreEntryType.PRIVATE_KEY))
             {
-                KeyProtection kp = new KeyProtection(kse.getLockedKeyProtection(), privateKey);
-                return (PrivateKey) kse.getKey(kp);
+                pk = unwrapPrivateKey(kse);
+                privateKeyCache.put(alias, new CachedValue<>(kse.getCreationDate(), pk));
+                return pk;
             }
         }
         catch (KeyStoreDAOException | NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException | InvalidKeySpecException | InvalidAlgorithmParameterException e)
@@ -142,40 +409,262 @@ public class SNIX509ExtendedKeyManager extends X509ExtendedKeyManager
     @Override
     public String[] getServerAliases(String keyType, Principal[] issuers)
     {
+        // answered from the index, kept up to date by the key store, as JSSE asks for each candidate key type
+        List<String> aliases = sniHostNameIndex.get().getAliasesByAlgorithm(keyType);
+        if (aliases.isEmpty())
+            return null;
+        
+        return aliases.toArray(new String[] {});
+    }
+
+    /**
+     * Choose the alias of the server entry matching a host name requested by the client.
+     * Each name is resolved exactly, then with wildcard names. The default alias is chosen if no name is resolved.
+     * The selection only reads the SNI index: it never accesses the DAO, and exact matches do not allocate objects.
+     *
+     * @param keyType the algorithm of the private key.
+     * @param issuers unused.
+     * @param serverNames the server names requested by the client, from the handshake session.
+     * @return the alias of the first entry matching both a requested host name and the key type, the default alias
+     * if its entry matches the key type, or null.
+     */
+    String chooseServerAlias(String keyType, Principal[] issuers, List<SNIServerName> serverNames)
+    {
+        SNIHostNameIndex index = sniHostNameIndex.get();
+        if (index.getAliasesByAlgorithm(keyType).isEmpty())
+            return null;
+
+        // indexed loops: requested names and indexed aliases are random access lists, iterators would be allocated
+        for (int i = 0; i < serverNames.size(); i++)
+        {
+            String name = VRSNIMatcher.toHostName(serverNames.get(i));
+            if (name == null)
+                continue;
+
+            String alias = selectAlias(index, index.getAliases(name), keyType);
+            if (alias == null)
+                alias = selectAlias(index, index.getWildcardAliases(name), keyType);
+            if (alias != null)
+                return alias;
+        }
+
+        // key types are upper case names, so toUpperCase does not allocate
+        String alias = defaultAliases.get(keyType.toUpperCase());
+        if (alias == null)
+            alias = defaultAlias;
+        if ((alias != null) && keyType.equalsIgnoreCase(index.getAlgorithm(alias)))
+            return alias;
+        
+        return null;
+    }
+
+    private static String selectAlias(SNIHostNameIndex index, List<String> aliases, String keyType)
+    {
+        for (int i = 0; i < aliases.size(); i++)
+        {
+            String alias = aliases.get(i);
+            String algo = index.getAlgorithm(alias);
+            if ((algo != null) && algo.equalsIgnoreCase(keyType))
+                return alias;
+        }
+
+        return null;
+    }
+
+    /**
+     * Return the server names requested by the client during a handshake.
+     * The SNI extension of the client hello is stored in the handshake session before the key manager is asked for an alias.
+     *
+     * @param handshakeSession the session being negotiated.
+     * @return the requested server names, or an empty list if the client did not send any.
+     */
+    private static List<SNIServerName> getRequestedServerNames(SSLSession handshakeSession)
+    {
+        if (!ExtendedSSLSession.class.isInstance(handshakeSession))
+            return Collections.emptyList();
+
+        return ((ExtendedSSLSession) handshakeSession).getRequestedServerNames();
+    }
+
+    private PrivateKey unwrapPrivateKey(KeyStoreEntry kse) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidKeySpecException, InvalidAlgorithmParameterException
+    {
+        KeyProtection kp = new KeyProtection(kse.getLockedKeyProtection(), privateKey);
+        return (PrivateKey) kse.getKey(kp);
+    }
+
+    private X509Certificate[] decodeCertificateChain(KeyStoreEntry kse) throws CertificateException
+    {
+        if (kse.getCertificateChain().isEmpty())
+            return null;
+
+        List<X509Certificate> certs = new ArrayList<>();
+        for (CertificateData ce : kse.getCertificateChain())
+            certs.add((X509Certificate) ce.getCertificate());
+        return certs.toArray(new X509Certificate[] {});
+    }
+
+    /**
+     * Unwrap and decode an entry, so that selecting it never accesses the DAO.
+     * It is called again each time a preloaded entry is modified.
+     *
+     * @param kse the entry to preload.
+     */
+    private void preloadEntry(KeyStoreEntry kse)
+    {
+        if (kse.getEntryType() != KeyStoreEntryType.PRIVATE_KEY)
+        {
+            preloadedEntries.remove(kse.getAlias());
+            return;
+        }
+
         try
         {
-            List<String> aliases = keyStoreDAO.getAliases(keyType);
-            if (aliases.isEmpty())
-                return null;
-            
-            return aliases.toArray(new String[] {});
+            preloadedEntries.put(kse.getAlias(), new PreloadedEntry(kse.getCreationDate(), unwrapPrivateKey(kse), decodeCertificateChain(kse)));
         }
-        catch (KeyStoreDAOException e)
+        catch (CertificateException | NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException | InvalidKeySpecException | InvalidAlgorithmParameterException e)
         {
             LOG.debug(e, e);
             LOG.error(e);
+            preloadedEntries.remove(kse.getAlias());
         }
+    }
 
-        return null;
+    private boolean isPreloaded(String alias)
+    {
+        return preloadAll || defaultEntryAliases.contains(alias);
     }
 
-    private String getSelectedSNIAlias(String keyType, Collection<SNIMatcher> sniMatchers)
+    /**
+     * Return a preloaded entry if it was read from the indexed version of the entry.
+     *
+     * @param alias the alias of the entry.
+     * @return the preloaded entry, or null if the entry is not preloaded or if it changed since it was preloaded.
+     */
+    private PreloadedEntry getPreloadedEntry(String alias)
     {
-        Collection<VRSNIMatcher> vrSniMatchers = sniMatchers.stream()
-                .filter(m -> VRSNIMatcher.class.isInstance(m))
-                .map(m -> (VRSNIMatcher) m)
-                .collect(Collectors.toList());
-        
-        for (VRSNIMatcher m : vrSniMatchers)
+        PreloadedEntry pe = preloadedEntries.get(alias);
+        if (pe == null)
+            return null;
+
+        return pe.creationDate.equals(sniHostNameIndex.get().getCreationDate(alias)) ? pe : null;
+    }
+
+    /**
+     * Return a cached value if it was read from the indexed version of the entry.
+     *
+     * @param cache the cache to read.
+     * @param alias the alias of the entry.
+     * @return the value, or null if it is not cached or if the entry changed since it was cached.
+     */
+    private <V> V getCachedValue(BoundedCache<String, CachedValue<V>> cache, String alias)
+    {
+        Date creationDate = sniHostNameIndex.get().getCreationDate(alias);
+        if (creationDate == null)
+            return null;
+
+        CachedValue<V> cv = cache.get(alias);
+        return (cv != null) && cv.creationDate.equals(creationDate) ? cv.value : null;
+    }
+
+    /**
+     * Patch the SNI host name index and invalidate cached values when entries are modified through a {@code VRKeyStoreSpi} object.
+     */
+    private class IndexUpdater implements KeyStoreEntryListener
+    {
+        @Override
+        public void entrySet(KeyStoreEntry entry)
         {
-            for (KeyStoreEntry kse : m.getSelectedEntries())
+            sniHostNameIndex.updateAndGet(i -> i.withEntry(entry));
+            privateKeyCache.invalidate(entry.getAlias());
+            certificateChainCache.invalidate(entry.getAlias());
+            if (isPreloaded(entry.getAlias()))
+                preloadEntry(entry);
+        }
+
+        @Override
+        public void entriesSet(Collection<KeyStoreEntry> entries)
+        {
+            // the index is copied once for the whole batch
+            sniHostNameIndex.updateAndGet(i -> i.withEntries(entries));
+            for (KeyStoreEntry entry : entries)
             {
-                String algo = kse.getAlgorithm();
-                if ((algo != null) && algo.equalsIgnoreCase(keyType))
-                    return kse.getAlias();
+                privateKeyCache.invalidate(entry.getAlias());
+                certificateChainCache.invalidate(entry.getAlias());
             }
+            entries.parallelStream().filter(kse -> isPreloaded(kse.getAlias())).forEach(SNIX509ExtendedKeyManager.this::preloadEntry);
+        }
+
+        @Override
+        public void entryDeleted(String alias)
+        {
+            sniHostNameIndex.updateAndGet(i -> i.withoutEntry(alias));
+            privateKeyCache.invalidate(alias);
+            certificateChainCache.invalidate(alias);
+            preloadedEntries.remove(alias);
+        }
+    }
+
+    /**
+     * A value read from an entry, associated with the creation date of this entry.
+     */
+    private static final class CachedValue<V>
+    {
+        private final Date creationDate;
+        private final V value;
+
+        private CachedValue(Date creationDate, V value)
+        {
+            this.creationDate = creationDate;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The private key and the certificate chain of a default entry, associated with the creation date of this entry.
+     */
+    private static final class PreloadedEntry
+    {
+        private final Date creationDate;
+        private final PrivateKey privateKey;
+        private final X509Certificate[] certificateChain;
+
+        private PreloadedEntry(Date creationDate, PrivateKey privateKey, X509Certificate[] certificateChain)
+        {
+            this.creationDate = creationDate;
+            this.privateKey = privateKey;
+            this.certificateChain = certificateChain;
+        }
+    }
+
+    /**
+     * The periodic refresh of a key manager.
+     * The task only holds a weak reference to the key manager, so that a discarded key manager can be collected: the task
+     * then cancels itself.
+     */
+    private static final class RefreshTask implements Runnable
+    {
+        private final WeakReference<SNIX509ExtendedKeyManager> keyManager;
+        private volatile ScheduledFuture<?> future;
+
+        private RefreshTask(SNIX509ExtendedKeyManager keyManager)
+        {
+            this.keyManager = new WeakReference<>(keyManager);
+        }
+
+        private static void schedule(SNIX509ExtendedKeyManager keyManager, long refreshPeriod)
+        {
+            RefreshTask task = new RefreshTask(keyManager);
+            task.future = REFRESHER.scheduleWithFixedDelay(task, refreshPeriod, refreshPeriod, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void run()
+        {
+            SNIX509ExtendedKeyManager km = keyManager.get();
+            if (km != null)
+                km.scheduledRefresh();
+            else if (future != null)
+                future.cancel(false);
         }
-        
-        return null;
     }
 }
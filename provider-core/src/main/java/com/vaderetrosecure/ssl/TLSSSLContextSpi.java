@@ -7,8 +7,8 @@ import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SNIMatcher;
@@ -42,11 +42,11 @@ public class TLSSSLContextSpi extends SSLContextSpi
     private static final Logger LOG = Logger.getLogger(TLSSSLContextSpi.class);
 
     private SSLContext delegate;
-    private List<SNIX509ExtendedKeyManager> sniX509ExtendedKeyManagers;
+    private List<SNIMatcher> sniMatchers;
 
     public TLSSSLContextSpi()
     {
-        sniX509ExtendedKeyManagers = new ArrayList<>();
+        sniMatchers = Collections.emptyList();
 
         try
         {
@@ -64,7 +64,6 @@ public class TLSSSLContextSpi extends SSLContextSpi
     {
         SSLEngine sslEngine = delegate.createSSLEngine();
         SSLParameters sslParams = sslEngine.getSSLParameters();
-        List<SNIMatcher> sniMatchers = createSNIMatchers(sniX509ExtendedKeyManagers);
         if (!sniMatchers.isEmpty())
             sslParams.setSNIMatchers(sniMatchers);
         sslEngine.setSSLParameters(sslParams);
@@ -76,7 +75,6 @@ public class TLSSSLContextSpi extends SSLContextSpi
     {
         SSLEngine sslEngine = delegate.createSSLEngine(peerHost, peerPort);
         SSLParameters sslParams = sslEngine.getSSLParameters();
-        List<SNIMatcher> sniMatchers = createSNIMatchers(sniX509ExtendedKeyManagers);
         if (!sniMatchers.isEmpty())
             sslParams.setSNIMatchers(sniMatchers);
         LOG.debug("CIPHER SUITES: " + String.join(",", sslParams.getCipherSuites()));
@@ -111,15 +109,13 @@ public class TLSSSLContextSpi extends SSLContextSpi
     @Override
     protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom random) throws KeyManagementException
     {
+        // matchers are stateless: they are created once and shared by all engines
+        List<SNIMatcher> matchers = new ArrayList<>();
         for (KeyManager k : km)
             if (SNIX509ExtendedKeyManager.class.isInstance(k))
-                sniX509ExtendedKeyManagers.add((SNIX509ExtendedKeyManager) k);
+                matchers.add(new VRSNIMatcher((SNIX509ExtendedKeyManager) k));
+        sniMatchers = Collections.unmodifiableList(matchers);
 
         delegate.init(km, tm, random);
     }
-    
-    private List<SNIMatcher> createSNIMatchers(List<SNIX509ExtendedKeyManager> sniX509ExtendedKeyManagers)
-    {
-        return sniX509ExtendedKeyManagers.stream().map(k -> new VRSNIMatcher(k.getKeyStoreDAO())).collect(Collectors.toList());
-    }
 }
@@ -0,0 +1,147 @@
+/**
+ * 
+ */
+package com.vaderetrosecure.ssl;
+
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.ManagerFactoryParameters;
+
+/**
+ * The parameters of the Vade Retro key manager factory.
+ * Besides the key store and its integrity password, they hold a default alias for each key type. The default entry is
+ * selected when a client does not send any host name, or when no entry matches the requested names. Its private key and
+ * certificate chain are loaded when the factory is initialized.
+ * In the eager mode, all entries are loaded when the factory is initialized, so that the server reaches its steady-state
+ * latency before accepting connections. It is enabled by default when the system property {@code com.vaderetrosecure.ssl.preload}
+ * is set to {@code true}.
+ * Entries modified by other processes are picked up by a periodic refresh. It is disabled by default, unless the system property
+ * {@code com.vaderetrosecure.ssl.refresh.period} is set to a period in seconds.
+ * To use it:
+ * <pre>
+ * <code>
+ * KeyStore ks = KeyStore.getInstance("KS", VadeRetroProvider.VR_PROVIDER);
+ * VRKeyManagerFactoryParameters params = new VRKeyManagerFactoryParameters(ks, null);
+ * params.setDefaultAlias("RSA", "default-rsa");
+ * params.setDefaultAlias("EC", "default-ec");
+ * params.setPreloadAll(true);
+ * params.setRefreshPeriod(60);
+ * KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509", VadeRetroProvider.VR_PROVIDER);
+ * kmf.init(params);</code></pre>
+ * 
+ * @see com.vaderetrosecure.ssl.VRKeyManagerFactorySpi
+ */
+public class VRKeyManagerFactoryParameters implements ManagerFactoryParameters
+{
+    static final String PRELOAD_PROPERTY = "com.vaderetrosecure.ssl.preload";
+    static final String REFRESH_PERIOD_PROPERTY = "com.vaderetrosecure.ssl.refresh.period";
+
+    private final KeyStore keyStore;
+    private final char[] password;
+    private final Map<String, String> defaultAliases;
+    private boolean preloadAll;
+    private long refreshPeriod;
+
+    /**
+     * Construct a new {@code VRKeyManagerFactoryParameters} object, without default aliases.
+     * 
+     * @param keyStore the key store of the Vade Retro provider.
+     * @param password the integrity password, if set to <code>null</code>, the integrity check will not be performed.
+     */
+    public VRKeyManagerFactoryParameters(KeyStore keyStore, char[] password)
+    {
+        this.keyStore = keyStore;
+        this.password = password;
+        this.defaultAliases = new HashMap<>();
+        this.preloadAll = Boolean.getBoolean(PRELOAD_PROPERTY);
+        this.refreshPeriod = Long.getLong(REFRESH_PERIOD_PROPERTY, 0L);
+    }
+
+    /**
+     * Return the key store.
+     * 
+     * @return the key store.
+     */
+    public KeyStore getKeyStore()
+    {
+        return keyStore;
+    }
+
+    /**
+     * Return the integrity password.
+     * 
+     * @return the password, or null if the integrity check will not be performed.
+     */
+    public char[] getPassword()
+    {
+        return password;
+    }
+
+    /**
+     * Set the alias of the default entry for a key type.
+     * 
+     * @param keyType the key type, such as {@code RSA} or {@code EC}, in any case.
+     * @param alias the alias of a private key entry using this key type.
+     */
+    public void setDefaultAlias(String keyType, String alias)
+    {
+        defaultAliases.put(keyType.toUpperCase(), alias);
+    }
+
+    /**
+     * Return the default aliases.
+     * 
+     * @return the default aliases, by key type in upper case.
+     */
+    public Map<String, String> getDefaultAliases()
+    {
+        return Collections.unmodifiableMap(defaultAliases);
+    }
+
+    /**
+     * Enable or disable the eager mode.
+     * 
+     * @param preloadAll true to load all entries when the factory is initialized, false to only load default entries.
+     */
+    public void setPreloadAll(boolean preloadAll)
+    {
+        this.preloadAll = preloadAll;
+    }
+
+    /**
+     * Return whether the eager mode is enabled.
+     * 
+     * @return true if all entries are loaded when the factory is initialized.
+     */
+    public boolean isPreloadAll()
+    {
+        return preloadAll;
+    }
+
+    /**
+     * Set the period of the refresh.
+     * At each period, the key manager checks the generation of the store, and reloads the entries if it changed.
+     * 
+     * @param refreshPeriod the period in seconds, or 0 to disable the refresh.
+     */
+    public void setRefreshPeriod(long refreshPeriod)
+    {
+        if (refreshPeriod < 0)
+            throw new IllegalArgumentException("refresh period must be positive");
+
+        this.refreshPeriod = refreshPeriod;
+    }
+
+    /**
+     * Return the period of the refresh.
+     * 
+     * @return the period in seconds, or 0 if the refresh is disabled.
+     */
+    public long getRefreshPeriod()
+    {
+        return refreshPeriod;
+    }
+}
@@ -17,6 +17,8 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Collections;
+import java.util.Map;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -40,6 +42,10 @@ import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
  * KeyStore ks = KeyStore.getInstance("KS", VadeRetroProvider.VR_PROVIDER);
  * KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509", VadeRetroProvider.VR_PROVIDER);
  * kmf.init(ks, null);</code></pre>
+ * Default entries, selected when no entry matches the host names requested by a client, are set by initializing the factory
+ * with a {@link VRKeyManagerFactoryParameters} object. This object also enables the eager mode, which loads all entries
+ * when the factory is initialized, and the periodic refresh of the entries; the system properties {@code com.vaderetrosecure.ssl.preload}
+ * and {@code com.vaderetrosecure.ssl.refresh.period} set them for both initialization methods.
  * If stored password protections were ciphered with a public key from {@link com.vaderetrosecure.keystore.VRKeyStoreSpi}, 
  * they are deciphered with a private key. Just add the file {@code com.vaderetrosecure.key.private}, containing 
  * a private key in the PKCS8 DER format. The private key must be at least 2048-bit long.
@@ -70,21 +76,38 @@ public class VRKeyManagerFactorySpi extends KeyManagerFactorySpi
     }
 
     /**
-     * Not implemented.
-     * Throw an UnsupportedOperationException exception.
+     * Initialize the factory with a key store and default aliases.
      * 
      * {@inheritDoc}
      * 
+     * @param spec a {@link VRKeyManagerFactoryParameters} object.
+     * @throws InvalidAlgorithmParameterException if the parameters are not a {@code VRKeyManagerFactoryParameters} object, or if the key managers can not be created.
      * @see javax.net.ssl.KeyManagerFactorySpi#engineInit(javax.net.ssl.ManagerFactoryParameters)
      */
     @Override
     protected void engineInit(ManagerFactoryParameters spec) throws InvalidAlgorithmParameterException
     {
-        throw new UnsupportedOperationException();
+        if (!VRKeyManagerFactoryParameters.class.isInstance(spec))
+            throw new InvalidAlgorithmParameterException("parameters must be a VRKeyManagerFactoryParameters object");
+
+        VRKeyManagerFactoryParameters params = (VRKeyManagerFactoryParameters) spec;
+        try
+        {
+            init(params.getKeyStore(), params.getPassword(), params.getDefaultAliases(), params.isPreloadAll(), params.getRefreshPeriod());
+        }
+        catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException e)
+        {
+            throw new InvalidAlgorithmParameterException(e);
+        }
     }
 
     @Override
     protected void engineInit(KeyStore ks, char[] password) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException
+    {
+        init(ks, password, Collections.emptyMap(), Boolean.getBoolean(VRKeyManagerFactoryParameters.PRELOAD_PROPERTY), Long.getLong(VRKeyManagerFactoryParameters.REFRESH_PERIOD_PROPERTY, 0L));
+    }
+
+    private void init(KeyStore ks, char[] password, Map<String, String> defaultAliases, boolean preloadAll, long refreshPeriod) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException
     {
         if ((ks == null) || (!ks.getProvider().getName().equals(VadeRetroProvider.VR_PROVIDER)))
         {
@@ -100,7 +123,7 @@ public class VRKeyManagerFactorySpi extends KeyManagerFactorySpi
             IntegrityData integrityData = ksdao.getIntegrityData();
             if (password != null)
                 integrityData.checkIntegrity(password);
-            keyManagers = new KeyManager[] { new SNIX509ExtendedKeyManager(ksdao, loadKeyProtectionPrivateKey()) };
+            keyManagers = new KeyManager[] { new SNIX509ExtendedKeyManager(ksdao, loadKeyProtectionPrivateKey(), defaultAliases, preloadAll, refreshPeriod) };
         }
         catch (KeyStoreDAOException e)
         {
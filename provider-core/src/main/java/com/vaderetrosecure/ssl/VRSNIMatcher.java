@@ -4,72 +4,62 @@
 package com.vaderetrosecure.ssl;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
 
 import javax.net.ssl.SNIHostName;
 import javax.net.ssl.SNIMatcher;
 import javax.net.ssl.SNIServerName;
 import javax.net.ssl.StandardConstants;
 
-import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
-import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
-import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
-
 /**
- *
+ * A SNI matcher that resolves host names with the in-memory index of a {@code SNIX509ExtendedKeyManager} object.
+ * No DAO access is performed during the matching.
+ * The matcher holds no state: the key manager selects the alias from the server names of the handshake session,
+ * so a single matcher is shared by all engines of a context.
  */
 class VRSNIMatcher extends SNIMatcher
 {
     private static final Logger LOG = Logger.getLogger(VRSNIMatcher.class);
 
-    private final KeyStoreDAO keyStoreDAO;
-    private List<KeyStoreEntry> selectedEntries;
+    private final SNIX509ExtendedKeyManager keyManager;
 
-    VRSNIMatcher(KeyStoreDAO keyStoreDAO)
+    VRSNIMatcher(SNIX509ExtendedKeyManager keyManager)
     {
         super(StandardConstants.SNI_HOST_NAME);
-        this.keyStoreDAO = keyStoreDAO;
-        selectedEntries = new ArrayList<>();
+        this.keyManager = keyManager;
     }
 
     @Override
     public boolean matches(SNIServerName serverName)
     {
-        String name = "";
-        if (SNIHostName.class.isInstance(serverName))
-            name = ((SNIHostName) serverName).getAsciiName().toLowerCase();
-        else
-            name = new String(serverName.getEncoded(), StandardCharsets.US_ASCII).toLowerCase();
-        
-        LOG.debug("SNIServerName: " + name);
-        
-        try
-        {
-            selectedEntries = keyStoreDAO.getEntries(name);
-            if (LOG.getEffectiveLevel() == Level.DEBUG)
-            {
-                if (selectedEntries.isEmpty())
-                    LOG.debug("no selected entries");
-                else
-                    LOG.debug("selected entries: " + String.join(",", selectedEntries.stream().map(e -> e.getAlias()).collect(Collectors.toList())));
-            }
-            return !selectedEntries.isEmpty();
-        }
-        catch (KeyStoreDAOException e)
+        String name = toHostName(serverName);
+        boolean matched = false;
+        if (name != null)
         {
-            LOG.debug(e, e);
-            LOG.error(e);
+            // an unmatched name aborts the handshake: it is accepted if a default entry can be selected instead
+            SNIHostNameIndex index = keyManager.getSNIHostNameIndex();
+            matched = !index.getAliases(name).isEmpty() || !index.getWildcardAliases(name).isEmpty() || keyManager.hasDefaultEntry(index);
         }
-        return false;
+        if (LOG.isDebugEnabled())
+            LOG.debug("SNIServerName: " + name + (matched ? " matched" : " not matched"));
+        return matched;
     }
-    
-    List<KeyStoreEntry> getSelectedEntries()
+
+    /**
+     * Return the host name of a server name, as indexed.
+     *
+     * @param serverName the server name.
+     * @return the host name in lower case, or null if the server name is not a host name.
+     */
+    static String toHostName(SNIServerName serverName)
     {
-        return selectedEntries;
+        if (serverName.getType() != StandardConstants.SNI_HOST_NAME)
+            return null;
+
+        // toLowerCase returns the same string when it is already in lower case
+        if (SNIHostName.class.isInstance(serverName))
+            return ((SNIHostName) serverName).getAsciiName().toLowerCase();
+        return new String(serverName.getEncoded(), StandardCharsets.US_ASCII).toLowerCase();
     }
 }
@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package com.vaderetrosecure.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Bloom filter of byte arrays.
+ * A Bloom filter tells in constant time and memory whether a value was never added: {@link #mightContain(byte[])}
+ * never returns false for an added value, and returns true for a value that was not added with the false positive
+ * probability given at construction, as long as no more values than expected are added. Values can not be removed.<br>
+ * Bits are held in an array of longs updated atomically, so values can be added while others are tested, without locking.
+ * Each value is hashed once into two 64-bit hashes, combined to select the bits (double hashing).
+ */
+public final class BloomFilter
+{
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * Construct a new {@code BloomFilter} object.
+     *
+     * @param expectedInsertions the number of values expected to be added.
+     * @param falsePositiveProbability the false positive probability when the expected number of values were added, between 0 and 1.
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveProbability)
+    {
+        if (expectedInsertions <= 0)
+            throw new IllegalArgumentException("expected insertions must be positive");
+        if ((falsePositiveProbability <= 0.0) || (falsePositiveProbability >= 1.0))
+            throw new IllegalArgumentException("false positive probability must be between 0 and 1");
+
+        // optimal number of bits and of hash functions for n values and a probability p: m = -n.ln(p)/ln(2)^2, k = m/n.ln(2)
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (Math.max(m, 64L) + 63L) / 64L);
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = 64L * words;
+        this.hashCount = (int) Math.max(1L, Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param value the value.
+     */
+    public void put(byte[] value)
+    {
+        long h1 = hash(value);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < hashCount; i++)
+        {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long w = bits.get(word);
+            while (((w & mask) == 0) && !bits.compareAndSet(word, w, w | mask))
+                w = bits.get(word);
+        }
+    }
+
+    /**
+     * Add a string, encoded in UTF-8.
+     *
+     * @param value the value.
+     */
+    public void put(String value)
+    {
+        put(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tell if a value might have been added.
+     *
+     * @param value the value.
+     * @return false if the value was never added, true if it was probably added.
+     */
+    public boolean mightContain(byte[] value)
+    {
+        long h1 = hash(value);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < hashCount; i++)
+        {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Tell if a string, encoded in UTF-8, might have been added.
+     *
+     * @param value the value.
+     * @return false if the value was never added, true if it was probably added.
+     */
+    public boolean mightContain(String value)
+    {
+        return mightContain(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Return the number of bits of the filter.
+     *
+     * @return the number of bits.
+     */
+    public long getBitCount()
+    {
+        return bitCount;
+    }
+
+    /**
+     * Return the number of bits set for each value.
+     *
+     * @return the number of hash functions.
+     */
+    public int getHashCount()
+    {
+        return hashCount;
+    }
+
+    private static long hash(byte[] value)
+    {
+        // FNV-1a, then a finalizer spreading the bits: the low bits of FNV-1a are poorly distributed
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value)
+        {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h)
+    {
+        // finalizer of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
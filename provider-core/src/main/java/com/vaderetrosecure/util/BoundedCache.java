@@ -0,0 +1,354 @@
+/**
+ *
+ */
+package com.vaderetrosecure.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe cache bounded in size and in time.
+ * Reads never lock: values are held in a concurrent map, and insertions are recorded in a queue
+ * used to evict the oldest values first when the cache is full. Eviction is first in, first out: reading a value does not
+ * delay its eviction, so that reads never write to a shared structure. Only the values held count toward the maximum size:
+ * replaced and invalidated values are skipped at eviction, and purged from the queue once they outnumber the values held.
+ * A value older than the time to live is never returned. An optional removal listener is called with each value leaving the cache, whatever
+ * the cause (eviction, expiration, replacement or invalidation).<br>
+ * The cache may also be bounded in weight: a weigher then gives the weight of each value, such as its size in bytes,
+ * and the oldest values are evicted while the total weight exceeds the maximum weight.
+ *
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ */
+public final class BoundedCache<K, V>
+{
+    private final int maximumSize;
+    private final long maximumWeight;
+    private final ToLongFunction<? super V> weigher;
+    private final long timeToLiveNanos;
+    private final Map<K, Node<K, V>> values;
+    private final Queue<Node<K, V>> insertions;
+    private final AtomicInteger queueLength;
+    private final AtomicBoolean purging;
+    private final AtomicLong weight;
+    private final LongAdder hitCount;
+    private final LongAdder missCount;
+    private final Consumer<? super V> removalListener;
+
+    /**
+     * Construct a new {@code BoundedCache} object.
+     *
+     * @param maximumSize the maximum number of values held by the cache.
+     * @param timeToLive the time a value stays in the cache after its insertion, or 0 if values do not expire.
+     * @param unit the unit of {@code timeToLive}.
+     */
+    public BoundedCache(int maximumSize, long timeToLive, TimeUnit unit)
+    {
+        this(maximumSize, timeToLive, unit, v -> {});
+    }
+
+    /**
+     * Construct a new {@code BoundedCache} object, with a removal listener.
+     *
+     * @param maximumSize the maximum number of values held by the cache.
+     * @param timeToLive the time a value stays in the cache after its insertion, or 0 if values do not expire.
+     * @param unit the unit of {@code timeToLive}.
+     * @param removalListener called with each value removed from the cache.
+     */
+    public BoundedCache(int maximumSize, long timeToLive, TimeUnit unit, Consumer<? super V> removalListener)
+    {
+        this(maximumSize, Long.MAX_VALUE, v -> 0L, timeToLive, unit, removalListener);
+    }
+
+    /**
+     * Construct a new {@code BoundedCache} object, bounded in weight.
+     * A value heavier than the maximum weight is evicted as soon as it is inserted.
+     *
+     * @param maximumSize the maximum number of values held by the cache.
+     * @param maximumWeight the maximum total weight of the values held by the cache.
+     * @param weigher gives the weight of a value, which must not change while the value is in the cache.
+     * @param timeToLive the time a value stays in the cache after its insertion, or 0 if values do not expire.
+     * @param unit the unit of {@code timeToLive}.
+     * @param removalListener called with each value removed from the cache.
+     */
+    public BoundedCache(int maximumSize, long maximumWeight, ToLongFunction<? super V> weigher, long timeToLive, TimeUnit unit, Consumer<? super V> removalListener)
+    {
+        if (maximumSize < 0)
+            throw new IllegalArgumentException("maximum size must be positive");
+        if (maximumWeight < 0)
+            throw new IllegalArgumentException("maximum weight must be positive");
+
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.values = new ConcurrentHashMap<>();
+        this.insertions = new ConcurrentLinkedQueue<>();
+        this.queueLength = new AtomicInteger();
+        this.purging = new AtomicBoolean();
+        this.weight = new AtomicLong();
+        this.hitCount = new LongAdder();
+        this.missCount = new LongAdder();
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Return the value associated with the key.
+     *
+     * @param key the key.
+     * @return the value, or null if the cache does not hold it or if it expired.
+     */
+    public V get(K key)
+    {
+        Node<K, V> node = values.get(key);
+        if ((node == null) || isExpired(node))
+        {
+            if (node != null)
+                remove(node);
+            missCount.increment();
+            return null;
+        }
+
+        hitCount.increment();
+        return node.value;
+    }
+
+    /**
+     * Associate a value with a key, replacing any previous value.
+     * The oldest inserted values are evicted if the cache becomes full.
+     *
+     * @param key the key.
+     * @param value the value, must not be null.
+     */
+    public void put(K key, V value)
+    {
+        if (maximumSize == 0)
+        {
+            removalListener.accept(value);
+            return;
+        }
+
+        Node<K, V> node = new Node<>(key, value, weigher.applyAsLong(value), System.nanoTime());
+        weight.addAndGet(node.weight);
+        Node<K, V> previous = values.put(key, node);
+        if (previous != null)
+        {
+            weight.addAndGet(-previous.weight);
+            removalListener.accept(previous.value);
+        }
+        insertions.add(node);
+        if (queueLength.incrementAndGet() > 2 * Math.max(values.size(), 16))
+            purge();
+
+        // the queue may hold replaced or invalidated nodes: removing them from the map has no effect
+        while ((values.size() > maximumSize) || (weight.get() > maximumWeight))
+        {
+            Node<K, V> oldest = insertions.poll();
+            if (oldest == null)
+                break;
+
+            queueLength.decrementAndGet();
+            remove(oldest);
+        }
+    }
+
+    /**
+     * Remove the value associated with the key, if any.
+     *
+     * @param key the key.
+     */
+    public void invalidate(K key)
+    {
+        Node<K, V> node = values.remove(key);
+        if (node != null)
+        {
+            weight.addAndGet(-node.weight);
+            removalListener.accept(node.value);
+        }
+    }
+
+    /**
+     * Remove all values.
+     */
+    public void invalidateAll()
+    {
+        for (K key : values.keySet())
+            invalidate(key);
+    }
+
+    /**
+     * Remove the values whose key matches a predicate.
+     * It scans all keys: it is intended for infrequent invalidations, such as after a write.
+     *
+     * @param predicate the predicate matching the keys to remove.
+     */
+    public void invalidateAll(Predicate<? super K> predicate)
+    {
+        for (K key : values.keySet())
+        {
+            if (predicate.test(key))
+                invalidate(key);
+        }
+    }
+
+    /**
+     * Remove the values that expired.
+     * Expired values are otherwise removed lazily, when they are read or when the cache is full.
+     */
+    public void cleanUp()
+    {
+        if (timeToLiveNanos <= 0)
+            return;
+
+        // values are queued in insertion order, so the expired ones are at the head of the queue
+        Node<K, V> oldest;
+        while (((oldest = insertions.peek()) != null) && isExpired(oldest))
+        {
+            if (insertions.remove(oldest))
+            {
+                queueLength.decrementAndGet();
+                remove(oldest);
+            }
+        }
+    }
+
+    /**
+     * Return the maximum number of values held by the cache.
+     *
+     * @return the maximum size.
+     */
+    public int getMaximumSize()
+    {
+        return maximumSize;
+    }
+
+    /**
+     * Return the maximum total weight of the values held by the cache.
+     *
+     * @return the maximum weight.
+     */
+    public long getMaximumWeight()
+    {
+        return maximumWeight;
+    }
+
+    /**
+     * Return the total weight of the values held by the cache.
+     *
+     * @return the weight.
+     */
+    public long getWeight()
+    {
+        return weight.get();
+    }
+
+    /**
+     * Return the number of values held by the cache, including values that expired but were not evicted yet.
+     *
+     * @return the number of values.
+     */
+    public int size()
+    {
+        return values.size();
+    }
+
+    /**
+     * Return the number of calls to {@link #get(Object)} that returned a value.
+     *
+     * @return the number of hits.
+     */
+    public long getHitCount()
+    {
+        return hitCount.sum();
+    }
+
+    /**
+     * Return the number of calls to {@link #get(Object)} that did not return a value.
+     *
+     * @return the number of misses.
+     */
+    public long getMissCount()
+    {
+        return missCount.sum();
+    }
+
+    private void remove(Node<K, V> node)
+    {
+        if (values.remove(node.key, node))
+        {
+            weight.addAndGet(-node.weight);
+            removalListener.accept(node.value);
+        }
+    }
+
+    /**
+     * Remove the replaced and invalidated nodes from the queue, so that it does not grow with them when values are rarely evicted.
+     * One thread purges at a time; the queue length is approximate, as a node may be polled meanwhile.
+     */
+    private void purge()
+    {
+        if (!purging.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            int purged = 0;
+            for (Iterator<Node<K, V>> it = insertions.iterator(); it.hasNext();)
+            {
+                Node<K, V> node = it.next();
+                if (values.get(node.key) != node)
+                {
+                    it.remove();
+                    purged++;
+                }
+            }
+            queueLength.addAndGet(-purged);
+        }
+        finally
+        {
+            purging.set(false);
+        }
+    }
+
+    /**
+     * Return the number of nodes in the insertion queue, including the replaced and invalidated ones not purged yet.
+     *
+     * @return the approximate queue length.
+     */
+    int getQueueLength()
+    {
+        return queueLength.get();
+    }
+
+    private boolean isExpired(Node<K, V> node)
+    {
+        return (timeToLiveNanos > 0) && (System.nanoTime() - node.insertionTime > timeToLiveNanos);
+    }
+
+    private static final class Node<K, V>
+    {
+        private final K key;
+        private final V value;
+        private final long weight;
+        private final long insertionTime;
+
+        private Node(K key, V value, long weight, long insertionTime)
+        {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.insertionTime = insertionTime;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package com.vaderetrosecure.util;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A thread-safe {@link BloomFilter} of all names of a store, rejecting most unknown names in constant time and memory.
+ * The filter is built from the names given by the store, and tagged with the generation of the store at that time.
+ * Once the refresh period elapsed, the generation is checked again in a background thread, and the filter is rebuilt
+ * there if it changed, so that names set by other processes are accepted: lookups never wait for a build, and keep
+ * using the previous filter meanwhile. A refresh period of 0 disables refreshing: the filter is built once, and names
+ * set by other processes are rejected until it is {@linkplain #invalidate() invalidated}.<br>
+ * Names set through the owner of the filter must be {@linkplain #put(Collection) added} at once: they are added before
+ * and after being written, so that a filter built meanwhile does not miss them. Names can not be removed: removed names
+ * are false positives until the next build.
+ */
+public final class NameFilter
+{
+    private static final Logger LOG = Logger.getLogger(NameFilter.class);
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "vaderetro-namefilter-build");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Callable<Long> generationSupplier;
+    private final Callable<? extends Collection<String>> namesSupplier;
+    private final long refreshPeriodNanos;
+    private final ReentrantLock buildLock;
+    private final AtomicBoolean buildScheduled;
+    private final Queue<String> pendingNames;
+    private volatile Snapshot snapshot;
+    private volatile boolean building;
+
+    /**
+     * Construct a new {@code NameFilter} object, without any filter: it is built by {@link #build()}, or in the
+     * background at the first lookup.
+     *
+     * @param generationSupplier the supplier of the generation of the store, or -1 if the store does not track modifications.
+     * @param namesSupplier the supplier of all names of the store.
+     * @param refreshPeriod the period of the checks for changes made by other processes, or 0 to never check.
+     * @param unit the unit of {@code refreshPeriod}.
+     */
+    public NameFilter(Callable<Long> generationSupplier, Callable<? extends Collection<String>> namesSupplier, long refreshPeriod, TimeUnit unit)
+    {
+        this.generationSupplier = generationSupplier;
+        this.namesSupplier = namesSupplier;
+        this.refreshPeriodNanos = unit.toNanos(refreshPeriod);
+        this.buildLock = new ReentrantLock();
+        this.buildScheduled = new AtomicBoolean();
+        this.pendingNames = new ConcurrentLinkedQueue<>();
+        this.snapshot = null;
+        this.building = false;
+    }
+
+    /**
+     * Tell if a name might be a name of the store.
+     * A build is requested in the background if there is no filter yet, or if the refresh period elapsed.
+     *
+     * @param name the name.
+     * @return false if the name is unknown, true if it is probably known or if there is no filter yet.
+     */
+    public boolean mightContain(String name)
+    {
+        Snapshot s = snapshot;
+        if ((s == null) || s.isExpired())
+            scheduleBuild();
+        return (s == null) || s.filter.mightContain(name);
+    }
+
+    /**
+     * Add names set through the owner of the filter.
+     *
+     * @param names the names.
+     */
+    public void put(Collection<String> names)
+    {
+        for (String name : names)
+        {
+            if (building)
+                pendingNames.add(name);
+            Snapshot s = snapshot;
+            if (s != null)
+                s.filter.put(name);
+        }
+    }
+
+    /**
+     * Drop the filter, so that it is built again at the next lookup.
+     * It must be called after the store was modified without the owner of the filter.
+     */
+    public void invalidate()
+    {
+        snapshot = null;
+    }
+
+    /**
+     * Build the filter in the calling thread, unless the generation of the store did not change since the previous build.
+     * The filter is sized for twice the names, so that names added before the next build do not degrade it.
+     *
+     * @throws Exception if the generation or the names of the store can not be read: the previous filter is kept.
+     */
+    public void build() throws Exception
+    {
+        buildLock.lock();
+        try
+        {
+            Snapshot previous = snapshot;
+            long generation = generationSupplier.call();
+            if ((previous != null) && (generation >= 0L) && (generation == previous.generation))
+            {
+                snapshot = new Snapshot(previous.filter, generation, System.nanoTime());
+                return;
+            }
+
+            long start = System.nanoTime();
+            building = true;
+            Collection<String> names = namesSupplier.call();
+            BloomFilter filter = new BloomFilter(Math.max(1024L, 2L * names.size()), FALSE_POSITIVE_PROBABILITY);
+            for (String name : names)
+                filter.put(name);
+
+            snapshot = new Snapshot(filter, generation, System.nanoTime());
+            LOG.info("name filter of " + names.size() + " names built in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + filter.getBitCount() / 8L + " bytes");
+        }
+        finally
+        {
+            building = false;
+            // names added while the filter was built were queued before being added to the previous filter
+            Snapshot s = snapshot;
+            String name;
+            while ((name = pendingNames.poll()) != null)
+            {
+                if (s != null)
+                    s.filter.put(name);
+            }
+            buildLock.unlock();
+        }
+    }
+
+    private void scheduleBuild()
+    {
+        // a single build at a time: the other lookups keep using the previous filter meanwhile
+        if (!buildScheduled.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            BUILDER.execute(this::refresh);
+        }
+        catch (RejectedExecutionException e)
+        {
+            LOG.debug(e, e);
+            buildScheduled.set(false);
+        }
+    }
+
+    /**
+     * Build the filter in the background. If the build fails, the previous filter is kept for another period.
+     */
+    private void refresh()
+    {
+        Snapshot previous = snapshot;
+        try
+        {
+            build();
+        }
+        catch (Exception e)
+        {
+            LOG.debug(e, e);
+            LOG.warn(e);
+            if ((previous != null) && (snapshot == previous))
+                snapshot = new Snapshot(previous.filter, previous.generation, System.nanoTime());
+        }
+        finally
+        {
+            buildScheduled.set(false);
+        }
+    }
+
+    private final class Snapshot
+    {
+        private final BloomFilter filter;
+        private final long generation;
+        private final long buildTime;
+
+        private Snapshot(BloomFilter filter, long generation, long buildTime)
+        {
+            this.filter = filter;
+            this.generation = generation;
+            this.buildTime = buildTime;
+        }
+
+        private boolean isExpired()
+        {
+            return (refreshPeriodNanos > 0L) && (System.nanoTime() - buildTime > refreshPeriodNanos);
+        }
+    }
+}
@@ -4,16 +4,34 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import com.vaderetrosecure.keystore.DerivedKeyCacheTest;
+import com.vaderetrosecure.keystore.KeyStoreImporterTest;
 import com.vaderetrosecure.keystore.VRKeyStoreSpiTest;
+import com.vaderetrosecure.keystore.dao.CachingKeyStoreDAOTest;
+import com.vaderetrosecure.keystore.dao.CertificateDataTest;
+import com.vaderetrosecure.keystore.dao.CryptoToolsTest;
 import com.vaderetrosecure.keystore.dao.IntegrityDataTest;
+import com.vaderetrosecure.keystore.dao.memory.ConcurrentKeyStoreDAOTest;
+import com.vaderetrosecure.ssl.SNIHostNameIndexTest;
 import com.vaderetrosecure.ssl.SNIX509ExtendedKeyManagerTest;
+import com.vaderetrosecure.util.BloomFilterTest;
+import com.vaderetrosecure.util.BoundedCacheTest;
 
 @RunWith(Suite.class)
 @SuiteClasses({
     VadeRetroProviderTest.class,
     IntegrityDataTest.class,
+    CertificateDataTest.class,
+    CryptoToolsTest.class,
+    CachingKeyStoreDAOTest.class,
+    ConcurrentKeyStoreDAOTest.class,
     VRKeyStoreSpiTest.class,
-    SNIX509ExtendedKeyManagerTest.class
+    DerivedKeyCacheTest.class,
+    KeyStoreImporterTest.class,
+    SNIX509ExtendedKeyManagerTest.class,
+    SNIHostNameIndexTest.class,
+    BoundedCacheTest.class,
+    BloomFilterTest.class
 })
 public class AllTests
 {
@@ -0,0 +1,50 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class DerivedKeyCacheTest
+{
+    private static final char[] PASSWORD = "password".toCharArray();
+    private static final byte[] SALT = "salt".getBytes();
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @Test
+    public void testDisabledByDefault()
+    {
+        DerivedKeyCache dkc = new DerivedKeyCache();
+        dkc.put(PASSWORD, SALT, KEY);
+        Assert.assertNull(dkc.get(PASSWORD, SALT));
+    }
+
+    @Test
+    public void testGetAndPut()
+    {
+        DerivedKeyCache dkc = new DerivedKeyCache(10, 1, TimeUnit.HOURS);
+        Assert.assertNull(dkc.get(PASSWORD, SALT));
+        dkc.put(PASSWORD, SALT, KEY);
+        Assert.assertEquals(KEY, dkc.get(PASSWORD, SALT));
+        Assert.assertNull(dkc.get("other-password".toCharArray(), SALT));
+        Assert.assertNull(dkc.get(PASSWORD, "other-salt".getBytes()));
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException
+    {
+        DerivedKeyCache dkc = new DerivedKeyCache(10, 10, TimeUnit.MILLISECONDS);
+        dkc.put(PASSWORD, SALT, KEY);
+        Thread.sleep(50);
+        Assert.assertNull(dkc.get(PASSWORD, SALT));
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.vaderetrosecure.keystore.dao.IntegrityData;
+import com.vaderetrosecure.keystore.dao.KeyProtection;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
+
+/**
+ *
+ */
+public class KeyStoreImporterTest
+{
+    private static final String MASTER_PASSWORD = "master-password";
+    private static final String SOURCE_PASSWORD = "source-password";
+    private static final String KEY_PASSWORD = "key-password";
+
+    private static IntegrityData integrityData;
+    private static PrivateKey privateKey;
+    private static Certificate certificate;
+    private KeyStore source;
+    private KeyStoreDAO ksdao;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+        integrityData = new IntegrityData(MASTER_PASSWORD.toCharArray());
+
+        URL url = Thread.currentThread().getContextClassLoader().getResource("test.com.key");
+        byte[] encData = Files.readAllBytes(Paths.get(url.toURI()));
+        privateKey = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(encData));
+
+        try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream("test.com.crt"))
+        {
+            certificate = CertificateFactory.getInstance("X.509").generateCertificate(is);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        source = KeyStore.getInstance("JKS");
+        source.load(null, null);
+        for (int i = 0; i < 3; i++)
+            source.setKeyEntry("key-" + i, privateKey, SOURCE_PASSWORD.toCharArray(), new Certificate[] { certificate });
+        source.setCertificateEntry("trusted", certificate);
+
+        ksdao = mock(KeyStoreDAO.class);
+        when(ksdao.getIntegrityData()).thenReturn(integrityData);
+        when(ksdao.getAliases()).thenReturn(Collections.singletonList("key-1"));
+    }
+
+    @Test
+    public void testImportKeyStore() throws Exception
+    {
+        KeyStoreImporter importer = new KeyStoreImporter(ksdao, ForkJoinPool.commonPool(), 2);
+        Assert.assertEquals(3, importer.importKeyStore(source, SOURCE_PASSWORD.toCharArray(), KEY_PASSWORD.toCharArray()));
+
+        // the existing alias is skipped, the others are written in batches of 2 entries
+        Map<String, KeyStoreEntry> entries = getWrittenEntries(2);
+        Assert.assertEquals(3, entries.size());
+        Assert.assertFalse(entries.containsKey("key-1"));
+        Assert.assertEquals(KeyStoreEntryType.TRUSTED_CERTIFICATE, entries.get("trusted").getEntryType());
+
+        for (String alias : new String[] { "key-0", "key-2" })
+        {
+            KeyStoreEntry kse = entries.get(alias);
+            Assert.assertEquals(KeyStoreEntryType.PRIVATE_KEY, kse.getEntryType());
+            Assert.assertTrue(kse.getNames().contains(alias));
+            Assert.assertEquals(1, kse.getCertificateChain().size());
+            KeyProtection kp = KeyProtection.generateKeyProtection(KEY_PASSWORD.toCharArray(), integrityData.getSalt(), kse.getLockedKeyProtection().getIV());
+            Assert.assertArrayEquals(privateKey.getEncoded(), kse.getKey(kp).getEncoded());
+        }
+
+        // keys share the derived key, but not their initialization vectors
+        Assert.assertFalse(Arrays.equals(entries.get("key-0").getLockedKeyProtection().getIV(), entries.get("key-2").getLockedKeyProtection().getIV()));
+    }
+
+    @Test
+    public void testImportKeyStoreReplaceExisting() throws Exception
+    {
+        KeyStoreEntryListener listener = mock(KeyStoreEntryListener.class);
+        VRKeyStoreSpi.addKeyStoreEntryListener(ksdao, listener);
+        try
+        {
+            KeyStoreImporter importer = new KeyStoreImporter(ksdao);
+            importer.setReplaceExisting(true);
+            Assert.assertEquals(4, importer.importKeyStore(source, SOURCE_PASSWORD.toCharArray(), KEY_PASSWORD.toCharArray()));
+        }
+        finally
+        {
+            VRKeyStoreSpi.removeKeyStoreEntryListener(listener);
+        }
+
+        Assert.assertEquals(4, getWrittenEntries(1).size());
+        verify(ksdao, never()).getAliases();
+        // listeners are notified once for the whole batch
+        verify(listener, times(1)).entriesSet(any());
+        verify(listener, never()).entrySet(any(KeyStoreEntry.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, KeyStoreEntry> getWrittenEntries(int batchCount) throws Exception
+    {
+        ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(ksdao, times(batchCount)).setEntries(captor.capture());
+        verify(ksdao, never()).setEntry(any(KeyStoreEntry.class));
+
+        Map<String, KeyStoreEntry> entries = new HashMap<>();
+        List<Collection> batches = new ArrayList<>(captor.getAllValues());
+        for (Collection<KeyStoreEntry> batch : batches)
+            for (KeyStoreEntry kse : batch)
+                entries.put(kse.getAlias(), kse);
+        return entries;
+    }
+}
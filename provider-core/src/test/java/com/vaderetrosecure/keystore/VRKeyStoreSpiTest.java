@@ -5,7 +5,9 @@ package com.vaderetrosecure.keystore;
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
@@ -14,6 +16,7 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -21,20 +24,33 @@ import java.security.KeyFactory;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.SecretKeyFactorySpi;
 import javax.crypto.spec.SecretKeySpec;
 import javax.naming.InvalidNameException;
 
@@ -152,6 +168,126 @@ public class VRKeyStoreSpiTest
         Assert.assertArrayEquals(cert.getEncoded(), kse.getCertificateChain().get(0).getCertificate().getEncoded());
     }
 
+    @Test
+    public void testBulkWriteSession() throws Exception
+    {
+        ArgumentCaptor<KeyStoreEntry> argument = ArgumentCaptor.forClass(KeyStoreEntry.class);
+        byte[] salt = ksdao.getIntegrityData().getSalt();
+
+        keystore.engineLoad(new BulkWriteParameter(MASTER_PASSWORD.toCharArray()));
+        // both keys are protected by the same derived key, derived once
+        Assert.assertEquals(1, countKeyDerivations(() -> {
+            keystore.engineSetKeyEntry(SECRET_KEY_ALIAS, secretKey, "password".toCharArray(), null);
+            keystore.engineSetKeyEntry(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, privKey, "password".toCharArray(), new Certificate[]{ cert });
+            return null;
+        }));
+
+        // each key has its own initialization vector
+        verify(ksdao, times(2)).setEntry(argument.capture());
+        KeyStoreEntry kseSecret = argument.getAllValues().get(0);
+        KeyStoreEntry ksePrivate = argument.getAllValues().get(1);
+        Assert.assertArrayEquals(kseSecret.getLockedKeyProtection().getCipheredKey(), ksePrivate.getLockedKeyProtection().getCipheredKey());
+        Assert.assertFalse(Arrays.equals(kseSecret.getLockedKeyProtection().getIV(), ksePrivate.getLockedKeyProtection().getIV()));
+        KeyProtection kp = KeyProtection.generateKeyProtection("password".toCharArray(), salt, ksePrivate.getLockedKeyProtection().getIV());
+        Assert.assertArrayEquals(privKey.getEncoded(), ksePrivate.getKey(kp).getEncoded());
+
+        // loading the key store ends the session: each key is derived again
+        keystore.engineLoad(null, MASTER_PASSWORD.toCharArray());
+        Assert.assertEquals(2, countKeyDerivations(() -> {
+            keystore.engineSetKeyEntry(SECRET_KEY_ALIAS, secretKey, "password".toCharArray(), null);
+            keystore.engineSetKeyEntry(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, privKey, "password".toCharArray(), new Certificate[]{ cert });
+            return null;
+        }));
+    }
+
+    @Test
+    public void testBulkWriteSessionEndsAfterDuration() throws Exception
+    {
+        keystore.engineLoad(new BulkWriteParameter(MASTER_PASSWORD.toCharArray(), 2, TimeUnit.SECONDS));
+        Assert.assertEquals(1, countKeyDerivations(() -> {
+            keystore.engineSetKeyEntry(SECRET_KEY_ALIAS, secretKey, "password".toCharArray(), null);
+            keystore.engineSetKeyEntry(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, privKey, "password".toCharArray(), new Certificate[]{ cert });
+            return null;
+        }));
+        Assert.assertNotNull(keystore.getSessionKeyCache());
+
+        // once the duration elapsed, the next write ends the session: each key is derived again
+        Thread.sleep(2100L);
+        Assert.assertEquals(2, countKeyDerivations(() -> {
+            keystore.engineSetKeyEntry(SECRET_KEY_ALIAS, secretKey, "password".toCharArray(), null);
+            keystore.engineSetKeyEntry(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, privKey, "password".toCharArray(), new Certificate[]{ cert });
+            return null;
+        }));
+        Assert.assertNull(keystore.getSessionKeyCache());
+    }
+
+    /**
+     * Count the keys derived from passwords by an action.
+     * The action runs in a new thread, as key derivation factories are kept by thread once created.
+     */
+    private static int countKeyDerivations(Callable<?> action) throws Exception
+    {
+        Provider provider = new CountingProvider();
+        Security.insertProviderAt(provider, 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            CountingSecretKeyFactory.COUNT.set(0);
+            executor.submit(action).get();
+            return CountingSecretKeyFactory.COUNT.get();
+        }
+        finally
+        {
+            executor.shutdown();
+            Security.removeProvider(provider.getName());
+        }
+    }
+
+    @Test
+    public void testKeyStoreEntryListener() throws NoSuchAlgorithmException, CertificateException, IOException, KeyStoreException, KeyStoreDAOException
+    {
+        List<String> events = new ArrayList<>();
+        KeyStoreEntryListener listener = new KeyStoreEntryListener()
+        {
+            @Override
+            public void entrySet(KeyStoreEntry entry)
+            {
+                events.add("set:" + entry.getAlias());
+            }
+
+            @Override
+            public void entryDeleted(String alias)
+            {
+                events.add("deleted:" + alias);
+            }
+        };
+
+        KeyStoreEntryListener otherListener = mock(KeyStoreEntryListener.class);
+
+        VRKeyStoreSpi.addKeyStoreEntryListener(ksdao, listener);
+        VRKeyStoreSpi.addKeyStoreEntryListener(mock(KeyStoreDAO.class), otherListener);
+        try
+        {
+            keystore.engineLoad(null, null);
+            keystore.engineSetKeyEntry(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, privKey, null, new Certificate[]{ cert });
+            
+            ArgumentCaptor<KeyStoreEntry> argPKEntry = ArgumentCaptor.forClass(KeyStoreEntry.class);
+            verify(ksdao).setEntry(argPKEntry.capture());
+            when(ksdao.getEntry(anyString())).thenReturn(argPKEntry.getValue());
+            keystore.engineDeleteEntry(PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        }
+        finally
+        {
+            VRKeyStoreSpi.removeKeyStoreEntryListener(listener);
+            VRKeyStoreSpi.removeKeyStoreEntryListener(otherListener);
+        }
+
+        verifyZeroInteractions(otherListener);
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals("set:" + PRIVATE_KEY_AND_CERTIFICATE_ALIAS, events.get(0));
+        Assert.assertEquals("deleted:" + PRIVATE_KEY_AND_CERTIFICATE_ALIAS, events.get(1));
+    }
+
     @Test(expected=UnrecoverableKeyException.class)
     public void testEngineGetKeyEntryWithPrivateKey() throws InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, KeyStoreDAOException, CertificateException, IOException, UnrecoverableKeyException
     {
@@ -192,4 +328,52 @@ public class VRKeyStoreSpiTest
             return null;
         }
     }
+
+    /**
+     * A provider counting the keys derived with PBKDF2.
+     */
+    private static final class CountingProvider extends Provider
+    {
+        private static final long serialVersionUID = 1L;
+
+        private CountingProvider()
+        {
+            super("VRCountingTest", 1.0, "counts PBKDF2 derivations");
+            put("SecretKeyFactory.PBKDF2WithHmacSHA256", CountingSecretKeyFactory.class.getName());
+        }
+    }
+
+    /**
+     * A PBKDF2 factory counting the derived keys, delegating to the factory of the platform.
+     */
+    public static final class CountingSecretKeyFactory extends SecretKeyFactorySpi
+    {
+        static final AtomicInteger COUNT = new AtomicInteger();
+
+        private final SecretKeyFactory factory;
+
+        public CountingSecretKeyFactory() throws GeneralSecurityException
+        {
+            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256", "SunJCE");
+        }
+
+        @Override
+        protected SecretKey engineGenerateSecret(KeySpec keySpec) throws InvalidKeySpecException
+        {
+            COUNT.incrementAndGet();
+            return factory.generateSecret(keySpec);
+        }
+
+        @Override
+        protected KeySpec engineGetKeySpec(SecretKey key, @SuppressWarnings("rawtypes") Class keySpec) throws InvalidKeySpecException
+        {
+            return factory.getKeySpec(key, keySpec);
+        }
+
+        @Override
+        protected SecretKey engineTranslateKey(SecretKey key) throws InvalidKeyException
+        {
+            return factory.translateKey(key);
+        }
+    }
 }
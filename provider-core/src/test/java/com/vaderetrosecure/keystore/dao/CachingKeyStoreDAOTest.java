@@ -0,0 +1,200 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CachingKeyStoreDAOTest
+{
+    private KeyStoreDAO keyStoreDAO;
+    private CachingKeyStoreDAO dao;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        keyStoreDAO = mock(KeyStoreDAO.class);
+        dao = new CachingKeyStoreDAO(keyStoreDAO, 100, 1024L * 1024L, 0L, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testReadsAreCached() throws Exception
+    {
+        KeyStoreEntry kse = createEntry("alias", "RSA", "www.example.com");
+        IntegrityData id = new IntegrityData(new byte[] { 1 }, new byte[] { 2 }, new byte[] { 3 }, new byte[] { 4 });
+        when(keyStoreDAO.getEntry("alias")).thenReturn(kse);
+        when(keyStoreDAO.getEntries("www.example.com")).thenReturn(Collections.singletonList(kse));
+        when(keyStoreDAO.getAliases("RSA")).thenReturn(Collections.singletonList("alias"));
+        when(keyStoreDAO.getIntegrityData()).thenReturn(id);
+
+        for (int i = 0; i < 3; i++)
+        {
+            Assert.assertEquals("alias", dao.getEntry("alias").getAlias());
+            Assert.assertEquals(kse.getNames(), dao.getEntries("www.example.com").get(0).getNames());
+            Assert.assertEquals(Collections.singletonList("alias"), dao.getAliases("RSA"));
+            Assert.assertSame(id, dao.getIntegrityData());
+        }
+
+        verify(keyStoreDAO, times(1)).getEntry("alias");
+        verify(keyStoreDAO, times(1)).getEntries("www.example.com");
+        verify(keyStoreDAO, times(1)).getAliases("RSA");
+        verify(keyStoreDAO, times(1)).getIntegrityData();
+        Assert.assertEquals(8, dao.getHitCount());
+        Assert.assertEquals(4, dao.getMissCount());
+        Assert.assertTrue(dao.getWeight() > 0);
+    }
+
+    @Test
+    public void testUnknownNamesAreCached() throws Exception
+    {
+        when(keyStoreDAO.getEntries("unknown.example.com")).thenReturn(Collections.emptyList());
+
+        Assert.assertTrue(dao.getEntries("unknown.example.com").isEmpty());
+        Assert.assertTrue(dao.getEntries("unknown.example.com").isEmpty());
+        verify(keyStoreDAO, times(1)).getEntries("unknown.example.com");
+
+        // unknown aliases are not
+        Assert.assertNull(dao.getEntry("unknown"));
+        Assert.assertNull(dao.getEntry("unknown"));
+        verify(keyStoreDAO, times(2)).getEntry("unknown");
+    }
+
+    @Test
+    public void testNameFilter() throws Exception
+    {
+        dao = new CachingKeyStoreDAO(keyStoreDAO, 100, 1024L * 1024L, 100, true, 0L, TimeUnit.SECONDS);
+        KeyStoreEntry kse = createEntry("alias", "RSA", "www.example.com");
+        when(keyStoreDAO.getNames()).thenReturn(Collections.singletonList("www.example.com"));
+        when(keyStoreDAO.getEntries("www.example.com")).thenReturn(Collections.singletonList(kse));
+        when(keyStoreDAO.getEntries("new.example.com")).thenReturn(Collections.emptyList());
+
+        // the filter is built in the background: names are looked up until it is ready
+        Assert.assertEquals(1, dao.getEntries("www.example.com").size());
+        for (int i = 0; (dao.getRejectedCount() == 0) && (i < 500); i++)
+        {
+            dao.getEntries("probe-" + i + ".example.com");
+            Thread.sleep(10L);
+        }
+        long rejected = dao.getRejectedCount();
+        Assert.assertTrue(rejected > 0);
+        for (int i = 0; i < 1000; i++)
+            Assert.assertTrue(dao.getEntries("scan-" + i + ".example.com").isEmpty());
+        Assert.assertTrue(dao.getRejectedCount() - rejected > 990);
+        verify(keyStoreDAO, times(1)).getNames();
+        verify(keyStoreDAO, never()).getAllEntries();
+
+        // a name written through the cache passes the filter, and is no longer unknown
+        Assert.assertTrue(dao.getEntries("new.example.com").isEmpty());
+        KeyStoreEntry newEntry = createEntry("new", "RSA", "new.example.com");
+        dao.setEntry(newEntry);
+        when(keyStoreDAO.getEntries("new.example.com")).thenReturn(Collections.singletonList(newEntry));
+        Assert.assertEquals("new", dao.getEntries("new.example.com").get(0).getAlias());
+    }
+
+    @Test
+    public void testWritesInvalidate() throws Exception
+    {
+        KeyStoreEntry kse1 = createEntry("alias", "RSA", "www.example.com");
+        KeyStoreEntry kse2 = createEntry("alias", "RSA", "mail.example.com");
+        when(keyStoreDAO.getEntry("alias")).thenReturn(kse1, kse2, null);
+        when(keyStoreDAO.getEntries("www.example.com")).thenReturn(Collections.singletonList(kse1), Collections.emptyList());
+        dao.getEntry("alias");
+        dao.getEntries("www.example.com");
+
+        // the previous names of the replaced entry are invalidated as well
+        dao.setEntry(kse2);
+        verify(keyStoreDAO).setEntry(kse2);
+        Assert.assertSame(kse2, dao.getEntry("alias"));
+        Assert.assertTrue(dao.getEntries("www.example.com").isEmpty());
+
+        dao.deleteEntries(Collections.singletonList(kse2));
+        verify(keyStoreDAO).deleteEntries(Collections.singletonList(kse2));
+        Assert.assertNull(dao.getEntry("alias"));
+        verify(keyStoreDAO, times(3)).getEntry("alias");
+    }
+
+    @Test
+    public void testWritesInvalidateOnlyTheirNames() throws Exception
+    {
+        KeyStoreEntry kse = createEntry("alias", "RSA", "www.example.com");
+        KeyStoreEntry other = createEntry("other", "EC", "other.example.com");
+        when(keyStoreDAO.getEntry("alias")).thenReturn(kse);
+        when(keyStoreDAO.getEntries("other.example.com")).thenReturn(Collections.singletonList(other));
+        when(keyStoreDAO.getAliases("EC")).thenReturn(Collections.singletonList("other"));
+        when(keyStoreDAO.getAliases("RSA")).thenReturn(Collections.singletonList("alias"));
+        dao.getEntries("other.example.com");
+        dao.getAliases("EC");
+        dao.getAliases("RSA");
+
+        // the previous entry is read before the write, and results by its names and algorithm are invalidated
+        dao.setEntry(createEntry("alias", "EC", "mail.example.com"));
+        verify(keyStoreDAO, times(1)).getEntry("alias");
+        dao.getEntries("other.example.com");
+        dao.getAliases("EC");
+        dao.getAliases("RSA");
+        verify(keyStoreDAO, times(1)).getEntries("other.example.com");
+        verify(keyStoreDAO, times(2)).getAliases("EC");
+        verify(keyStoreDAO, times(2)).getAliases("RSA");
+    }
+
+    @Test
+    public void testCachedEntriesAreCopied() throws Exception
+    {
+        KeyStoreEntry kse = createEntry("alias", "RSA", "www.example.com");
+        when(keyStoreDAO.getEntry("alias")).thenReturn(kse);
+        when(keyStoreDAO.getEntries("www.example.com")).thenReturn(Collections.singletonList(kse));
+
+        dao.getEntry("alias").setAlgorithm("EC");
+        dao.getEntry("alias").setNames(Collections.emptyList());
+        dao.getEntries("www.example.com");
+        dao.getEntries("www.example.com").get(0).getNames().clear();
+
+        KeyStoreEntry cached = dao.getEntry("alias");
+        Assert.assertEquals("RSA", cached.getAlgorithm());
+        Assert.assertEquals(Collections.singletonList("www.example.com"), cached.getNames());
+        Assert.assertEquals(Collections.singletonList("www.example.com"), dao.getEntries("www.example.com").get(0).getNames());
+        verify(keyStoreDAO, times(1)).getEntry("alias");
+    }
+
+    @Test
+    public void testWeightEviction() throws Exception
+    {
+        dao = new CachingKeyStoreDAO(keyStoreDAO, 100, 2048L, 0L, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++)
+        {
+            KeyStoreEntry kse = createEntry("alias-" + i, "RSA", "www.example.com");
+            kse.setEntryData(new byte[512]);
+            when(keyStoreDAO.getEntry(kse.getAlias())).thenReturn(kse);
+            dao.getEntry(kse.getAlias());
+        }
+
+        Assert.assertTrue(dao.getWeight() <= 2048L);
+        dao.getEntry("alias-9");
+        dao.getEntry("alias-0");
+        verify(keyStoreDAO, times(1)).getEntry("alias-9");
+        verify(keyStoreDAO, times(2)).getEntry("alias-0");
+    }
+
+    private static KeyStoreEntry createEntry(String alias, String algorithm, String... names)
+    {
+        return new KeyStoreEntry(alias, new Date(1000L), KeyStoreEntryType.PRIVATE_KEY, algorithm, new byte[] { 1, 2, 3 },
+                new LockedKeyProtection(new byte[] { 4, 5 }, new byte[] { 6, 7 }),
+                Arrays.asList(new CertificateData(new byte[] { 8 })), Arrays.asList(names));
+    }
+}
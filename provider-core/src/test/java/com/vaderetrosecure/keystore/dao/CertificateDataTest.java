@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao;
+
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CertificateDataTest
+{
+    private static Certificate certificate;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+        try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream("test.com.crt"))
+        {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            certificate = cf.generateCertificate(is);
+        }
+    }
+
+    @Test
+    public void testGetCertificateIsDecodedOnce() throws Exception
+    {
+        CertificateData cd = new CertificateData(certificate.getEncoded());
+        Certificate c = cd.getCertificate();
+        Assert.assertEquals(certificate, c);
+        Assert.assertSame(c, cd.getCertificate());
+    }
+
+    @Test
+    public void testSetEncodedCertificate() throws Exception
+    {
+        CertificateData cd = new CertificateData(certificate);
+        Assert.assertSame(certificate, cd.getCertificate());
+        cd.setEncodedCertificate(certificate.getEncoded());
+        Assert.assertEquals(certificate, cd.getCertificate());
+    }
+}
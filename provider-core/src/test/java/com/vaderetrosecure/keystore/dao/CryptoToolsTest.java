@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The primitives of {@code CryptoTools} are reused by each thread: their results are compared with fresh instances.
+ */
+public class CryptoToolsTest
+{
+    private static final byte[] DATA = "some data to protect".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OTHER_DATA = "some other data, longer than a single AES block".getBytes(StandardCharsets.US_ASCII);
+
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception
+    {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        keyPair = kpg.generateKeyPair();
+    }
+
+    @Test
+    public void testAESCipherIsReinitialized() throws Exception
+    {
+        SecretKey key1 = CryptoTools.getAESSecretKey("password-1".toCharArray(), CryptoTools.generateRandomBytes(16));
+        SecretKey key2 = CryptoTools.getAESSecretKey("password-2".toCharArray(), CryptoTools.generateRandomBytes(16));
+        byte[] iv1 = CryptoTools.generateIV();
+        byte[] iv2 = CryptoTools.generateIV();
+
+        // the same cipher is used with other keys, ivs and modes
+        byte[] ciphered1 = CryptoTools.cipherData(DATA, key1, iv1);
+        byte[] ciphered2 = CryptoTools.cipherData(OTHER_DATA, key2, iv2);
+        Assert.assertArrayEquals(OTHER_DATA, CryptoTools.decipherData(ciphered2, key2, iv2));
+        Assert.assertArrayEquals(DATA, CryptoTools.decipherData(ciphered1, key1, iv1));
+        Assert.assertArrayEquals(DATA, freshAESDecipher(ciphered1, key1, iv1));
+        Assert.assertArrayEquals(OTHER_DATA, freshAESDecipher(ciphered2, key2, iv2));
+
+        // a failed operation does not leave the cipher in a broken state
+        try
+        {
+            CryptoTools.decipherData(Arrays.copyOf(ciphered1, ciphered1.length - 1), key1, iv1);
+            Assert.fail("the truncated data should not be deciphered");
+        }
+        catch (BadPaddingException | IllegalBlockSizeException e)
+        {
+            // expected
+        }
+        Assert.assertArrayEquals(OTHER_DATA, CryptoTools.decipherData(ciphered2, key2, iv2));
+    }
+
+    @Test
+    public void testRSACipherIsReinitialized() throws Exception
+    {
+        byte[] ciphered = CryptoTools.cipherData(DATA, keyPair.getPublic());
+        Assert.assertArrayEquals(DATA, CryptoTools.decipherData(ciphered, keyPair.getPrivate()));
+        Assert.assertArrayEquals(OTHER_DATA, CryptoTools.decipherData(CryptoTools.cipherData(OTHER_DATA, keyPair.getPublic()), keyPair.getPrivate()));
+
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+        Assert.assertArrayEquals(DATA, cipher.doFinal(ciphered));
+        cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+        Assert.assertArrayEquals(DATA, CryptoTools.decipherData(cipher.doFinal(DATA), keyPair.getPrivate()));
+    }
+
+    @Test
+    public void testDigestSHA2() throws Exception
+    {
+        byte[] digest = CryptoTools.digestSHA2(DATA);
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(DATA), digest);
+        // the digest is reset between calls
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(OTHER_DATA), CryptoTools.digestSHA2(OTHER_DATA));
+        Assert.assertArrayEquals(digest, CryptoTools.digestSHA2(DATA));
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(new byte[0]), CryptoTools.digestSHA2(new byte[0]));
+    }
+
+    @Test
+    public void testGetAESSecretKey() throws Exception
+    {
+        byte[] salt = CryptoTools.generateRandomBytes(16);
+        SecretKey key = CryptoTools.getAESSecretKey("password".toCharArray(), salt);
+        Assert.assertEquals("AES", key.getAlgorithm());
+        Assert.assertArrayEquals(freshAESSecretKey("password".toCharArray(), salt), key.getEncoded());
+        Assert.assertArrayEquals(freshAESSecretKey("other".toCharArray(), salt), CryptoTools.getAESSecretKey("other".toCharArray(), salt).getEncoded());
+        Assert.assertArrayEquals(key.getEncoded(), CryptoTools.getAESSecretKey("password".toCharArray(), salt).getEncoded());
+    }
+
+    @Test
+    public void testResultsAcrossThreads() throws Exception
+    {
+        byte[] salt = CryptoTools.generateRandomBytes(16);
+        byte[] expectedKey = freshAESSecretKey("password".toCharArray(), salt);
+        byte[] expectedDigest = MessageDigest.getInstance("SHA-256").digest(DATA);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+            {
+                tasks.add(() -> {
+                    SecretKey key = CryptoTools.getAESSecretKey("password".toCharArray(), salt);
+                    Assert.assertArrayEquals(expectedKey, key.getEncoded());
+                    for (int i = 0; i < 50; i++)
+                    {
+                        Assert.assertArrayEquals(expectedDigest, CryptoTools.digestSHA2(DATA));
+                        byte[] iv = CryptoTools.generateIV();
+                        byte[] ciphered = CryptoTools.cipherData(DATA, key, iv);
+                        Assert.assertArrayEquals(DATA, freshAESDecipher(ciphered, key, iv));
+                        Assert.assertArrayEquals(DATA, CryptoTools.decipherData(ciphered, key, iv));
+                        Assert.assertArrayEquals(DATA, CryptoTools.decipherData(CryptoTools.cipherData(DATA, keyPair.getPublic()), keyPair.getPrivate()));
+                    }
+                    return null;
+                });
+            }
+
+            for (Future<Void> f : executor.invokeAll(tasks))
+                f.get();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] freshAESDecipher(byte[] ciphered, SecretKey key, byte[] iv) throws Exception
+    {
+        // the ciphered data starts with 16 bytes of salt
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        byte[] salted = cipher.doFinal(ciphered);
+        return Arrays.copyOfRange(salted, 16, salted.length);
+    }
+
+    private static byte[] freshAESSecretKey(char[] password, byte[] salt) throws Exception
+    {
+        return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(new PBEKeySpec(password, salt, 65536, 256)).getEncoded();
+    }
+}
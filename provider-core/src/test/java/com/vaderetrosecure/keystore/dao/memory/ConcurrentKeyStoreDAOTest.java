@@ -0,0 +1,161 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryChange;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
+import com.vaderetrosecure.keystore.dao.LockedKeyProtection;
+
+/**
+ *
+ */
+public class ConcurrentKeyStoreDAOTest
+{
+    private ConcurrentKeyStoreDAO dao;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dao = new ConcurrentKeyStoreDAO();
+    }
+
+    @Test
+    public void testSetAndGetEntries() throws Exception
+    {
+        dao.setEntries(Arrays.asList(createEntry("alias-1", "RSA", "www.example.com", "example.com"), createEntry("alias-2", "EC", "example.com")));
+
+        Assert.assertEquals(2, dao.countEntries());
+        Assert.assertEquals("alias-1", dao.getEntry("alias-1").getAlias());
+        Assert.assertEquals(2, dao.getEntries("example.com").size());
+        Assert.assertEquals(1, dao.getEntries("www.example.com").size());
+        Assert.assertTrue(dao.getEntries("unknown.example.com").isEmpty());
+        Assert.assertEquals(Collections.singletonList("alias-2"), dao.getAliases("EC"));
+        Assert.assertTrue(dao.getAliases("DSA").isEmpty());
+        Assert.assertEquals(1L, dao.getGeneration());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("www.example.com", "example.com")), new HashSet<>(dao.getNames()));
+
+        // a replaced entry is no longer found by its previous names and algorithm
+        dao.setEntry(createEntry("alias-1", "EC", "mail.example.com"));
+        Assert.assertTrue(dao.getEntries("www.example.com").isEmpty());
+        Assert.assertEquals(1, dao.getEntries("example.com").size());
+        Assert.assertEquals(1, dao.getEntries("mail.example.com").size());
+        Assert.assertTrue(dao.getAliases("RSA").isEmpty());
+        Assert.assertEquals(2, dao.getAliases("EC").size());
+        Assert.assertEquals(2L, dao.getGeneration());
+    }
+
+    @Test
+    public void testDeleteEntries() throws Exception
+    {
+        KeyStoreEntry kse1 = createEntry("alias-1", "RSA", "www.example.com");
+        KeyStoreEntry kse2 = createEntry("alias-2", "RSA", "www.example.com");
+        dao.setEntries(Arrays.asList(kse1, kse2));
+
+        dao.deleteEntry(kse1);
+        Assert.assertNull(dao.getEntry("alias-1"));
+        Assert.assertEquals(Collections.singletonList("alias-2"), dao.getAliases("RSA"));
+
+        dao.deleteEntries(Collections.singletonList(kse2));
+        Assert.assertEquals(0, dao.countEntries());
+        Assert.assertTrue(dao.getEntries("www.example.com").isEmpty());
+        Assert.assertTrue(dao.getAliases("RSA").isEmpty());
+        Assert.assertEquals(3L, dao.getGeneration());
+    }
+
+    @Test
+    public void testConcurrentReplacements() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++)
+            {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 1000; i++)
+                    {
+                        dao.setEntry(createEntry("alias-" + (i % 10), "RSA", "host-" + thread + ".example.com", "example.com"));
+                        Assert.assertFalse(dao.getEntries("example.com").isEmpty());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        // each alias is indexed by the names of its last entry only
+        Assert.assertEquals(10, dao.getEntries("example.com").size());
+        int count = 0;
+        for (int t = 0; t < 4; t++)
+            count += dao.getEntries("host-" + t + ".example.com").size();
+        Assert.assertEquals(10, count);
+        Assert.assertEquals(10, dao.getAliases("RSA").size());
+    }
+
+    @Test
+    public void testGetChangesSince() throws Exception
+    {
+        dao = new ConcurrentKeyStoreDAO(3);
+        Assert.assertEquals(0L, dao.getLastChangeSequence());
+        Assert.assertTrue(dao.getChangesSince(0L).isEmpty());
+
+        KeyStoreEntry kse1 = createEntry("alias-1", "RSA", "www.example.com");
+        dao.setEntries(Arrays.asList(kse1, createEntry("alias-2", "RSA", "www.example.com")));
+        dao.deleteEntry(kse1);
+        Assert.assertEquals(2L, dao.getLastChangeSequence());
+
+        List<KeyStoreEntryChange> changes = dao.getChangesSince(0L);
+        Assert.assertEquals(3, changes.size());
+        Assert.assertEquals(1L, changes.get(0).getSequence());
+        Assert.assertEquals("alias-2", changes.get(1).getAlias());
+        Assert.assertEquals(KeyStoreEntryChange.Operation.SET, changes.get(1).getOperation());
+        Assert.assertEquals(2L, changes.get(2).getSequence());
+        Assert.assertEquals("alias-1", changes.get(2).getAlias());
+        Assert.assertEquals(KeyStoreEntryChange.Operation.DELETE, changes.get(2).getOperation());
+        Assert.assertEquals(1, dao.getChangesSince(1L).size());
+        Assert.assertTrue(dao.getChangesSince(2L).isEmpty());
+
+        // the first change is discarded from the log: it can not be followed from the start anymore
+        dao.setEntry(createEntry("alias-3", "EC", "www.example.com"));
+        Assert.assertNull(dao.getChangesSince(0L));
+        changes = dao.getChangesSince(1L);
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals("alias-3", changes.get(1).getAlias());
+        Assert.assertEquals(3L, changes.get(1).getSequence());
+    }
+
+    @Test
+    public void testFactory() throws Exception
+    {
+        ConcurrentKeyStoreDAOFactory factory = new ConcurrentKeyStoreDAOFactory();
+        factory.init();
+        Assert.assertTrue(factory.getKeyStoreDAO() instanceof ConcurrentKeyStoreDAO);
+    }
+
+    private static KeyStoreEntry createEntry(String alias, String algorithm, String... names)
+    {
+        return new KeyStoreEntry(alias, new Date(), KeyStoreEntryType.PRIVATE_KEY, algorithm, new byte[] { 1 }, new LockedKeyProtection(), Collections.emptyList(), Arrays.asList(names));
+    }
+}
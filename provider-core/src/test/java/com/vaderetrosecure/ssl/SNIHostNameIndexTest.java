@@ -0,0 +1,123 @@
+/**
+ *
+ */
+package com.vaderetrosecure.ssl;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
+
+/**
+ *
+ */
+public class SNIHostNameIndexTest
+{
+    private KeyStoreEntry rsaEntry;
+    private KeyStoreEntry ecEntry;
+    private SNIHostNameIndex index;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        rsaEntry = new KeyStoreEntry("rsa-alias", Date.from(Instant.now()), KeyStoreEntryType.PRIVATE_KEY, "RSA", new byte[]{}, null, Collections.emptyList(), Arrays.asList("Test.com", "www.test.com"));
+        ecEntry = new KeyStoreEntry("ec-alias", Date.from(Instant.now()), KeyStoreEntryType.PRIVATE_KEY, "EC", new byte[]{}, null, Collections.emptyList(), Collections.singletonList("test.com"));
+
+        index = SNIHostNameIndex.build(Arrays.asList(rsaEntry, ecEntry));
+    }
+
+    @Test
+    public void testBuild()
+    {
+        Assert.assertEquals(Arrays.asList("rsa-alias", "ec-alias"), index.getAliases("test.com"));
+        Assert.assertEquals(Collections.singletonList("rsa-alias"), index.getAliases("www.test.com"));
+        Assert.assertTrue(index.getAliases("unknown.com").isEmpty());
+        Assert.assertEquals("RSA", index.getAlgorithm("rsa-alias"));
+        Assert.assertEquals(ecEntry.getCreationDate(), index.getCreationDate("ec-alias"));
+        Assert.assertNull(index.getAlgorithm("unknown-alias"));
+        Assert.assertEquals(Collections.singletonList("rsa-alias"), index.getAliasesByAlgorithm("rsa"));
+        Assert.assertEquals(Collections.singletonList("ec-alias"), index.getAliasesByAlgorithm("EC"));
+        Assert.assertTrue(index.getAliasesByAlgorithm("DSA").isEmpty());
+    }
+
+    @Test
+    public void testGetWildcardAliases()
+    {
+        KeyStoreEntry wildcardEntry = new KeyStoreEntry("wildcard-alias", Date.from(Instant.now()), KeyStoreEntryType.PRIVATE_KEY, "RSA", new byte[]{}, null, Collections.emptyList(), Collections.singletonList("*.Test.com"));
+        SNIHostNameIndex newIndex = index.withEntry(wildcardEntry);
+
+        Assert.assertEquals(Collections.singletonList("wildcard-alias"), newIndex.getWildcardAliases("www.test.com"));
+        Assert.assertEquals(Collections.singletonList("wildcard-alias"), newIndex.getWildcardAliases("mail.test.com"));
+        Assert.assertTrue(newIndex.getWildcardAliases("test.com").isEmpty());
+        Assert.assertTrue(newIndex.getWildcardAliases("a.www.test.com").isEmpty());
+        Assert.assertTrue(newIndex.getWildcardAliases("com").isEmpty());
+        Assert.assertTrue(newIndex.getWildcardAliases("test.").isEmpty());
+    }
+
+    @Test
+    public void testWithEntry()
+    {
+        KeyStoreEntry newEntry = new KeyStoreEntry("rsa-alias", Date.from(Instant.now()), KeyStoreEntryType.PRIVATE_KEY, "EC", new byte[]{}, null, Collections.emptyList(), Collections.singletonList("other.com"));
+        SNIHostNameIndex newIndex = index.withEntry(newEntry);
+        Assert.assertTrue(newIndex.getAliasesByAlgorithm("RSA").isEmpty());
+        Assert.assertEquals(Arrays.asList("ec-alias", "rsa-alias"), newIndex.getAliasesByAlgorithm("EC"));
+
+        Assert.assertEquals(Collections.singletonList("ec-alias"), newIndex.getAliases("test.com"));
+        Assert.assertTrue(newIndex.getAliases("www.test.com").isEmpty());
+        Assert.assertEquals(Collections.singletonList("rsa-alias"), newIndex.getAliases("other.com"));
+
+        // the original index is left untouched
+        Assert.assertEquals(Arrays.asList("rsa-alias", "ec-alias"), index.getAliases("test.com"));
+        Assert.assertTrue(index.getAliases("other.com").isEmpty());
+    }
+
+    @Test
+    public void testWithEntryIgnoresTrustedCertificates()
+    {
+        KeyStoreEntry certEntry = new KeyStoreEntry("cert-alias", Date.from(Instant.now()), KeyStoreEntryType.TRUSTED_CERTIFICATE, null, new byte[]{}, null, Collections.emptyList(), Collections.singletonList("cert.com"));
+        SNIHostNameIndex newIndex = index.withEntry(certEntry);
+
+        Assert.assertTrue(newIndex.getAliases("cert.com").isEmpty());
+        Assert.assertNull(newIndex.getCreationDate("cert-alias"));
+    }
+
+    @Test
+    public void testWithChanges()
+    {
+        KeyStoreEntry renewedEntry = new KeyStoreEntry("rsa-alias", Date.from(Instant.now()), KeyStoreEntryType.PRIVATE_KEY, "RSA", new byte[]{}, null, Collections.emptyList(), Arrays.asList("test.com", "mail.test.com"));
+        KeyStoreEntry newEntry = new KeyStoreEntry("new-alias", Date.from(Instant.now()), KeyStoreEntryType.PRIVATE_KEY, "RSA", new byte[]{}, null, Collections.emptyList(), Collections.singletonList("test.com"));
+        SNIHostNameIndex newIndex = index.withChanges(Arrays.asList(renewedEntry, newEntry), Collections.singletonList("ec-alias"));
+
+        Assert.assertEquals(Arrays.asList("rsa-alias", "new-alias"), newIndex.getAliases("test.com"));
+        Assert.assertTrue(newIndex.getAliases("www.test.com").isEmpty());
+        Assert.assertEquals(Collections.singletonList("rsa-alias"), newIndex.getAliases("mail.test.com"));
+        Assert.assertEquals(renewedEntry.getCreationDate(), newIndex.getCreationDate("rsa-alias"));
+        Assert.assertEquals(Arrays.asList("rsa-alias", "new-alias"), newIndex.getAliasesByAlgorithm("RSA"));
+        Assert.assertTrue(newIndex.getAliasesByAlgorithm("EC").isEmpty());
+        Assert.assertNull(newIndex.getAlgorithm("ec-alias"));
+        Assert.assertSame(index, index.withChanges(Collections.emptyList(), Collections.emptyList()));
+
+        // the original index is left untouched
+        Assert.assertEquals(Arrays.asList("rsa-alias", "ec-alias"), index.getAliases("test.com"));
+        Assert.assertEquals(Collections.singletonList("rsa-alias"), index.getAliasesByAlgorithm("RSA"));
+    }
+
+    @Test
+    public void testWithoutEntry()
+    {
+        SNIHostNameIndex newIndex = index.withoutEntry("rsa-alias");
+
+        Assert.assertEquals(Collections.singletonList("ec-alias"), newIndex.getAliases("test.com"));
+        Assert.assertTrue(newIndex.getAliases("www.test.com").isEmpty());
+        Assert.assertNull(newIndex.getAlgorithm("rsa-alias"));
+        Assert.assertTrue(newIndex.getAliasesByAlgorithm("RSA").isEmpty());
+        Assert.assertSame(newIndex, newIndex.withoutEntry("rsa-alias"));
+    }
+}
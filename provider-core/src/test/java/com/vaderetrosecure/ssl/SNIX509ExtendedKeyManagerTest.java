@@ -3,11 +3,17 @@
  */
 package com.vaderetrosecure.ssl;
 
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -21,9 +27,14 @@ import java.security.cert.X509Certificate;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLEngine;
+
 import org.apache.log4j.Logger;
 import org.junit.Assert;
 import org.junit.Before;
@@ -35,6 +46,7 @@ import com.vaderetrosecure.keystore.dao.IntegrityData;
 import com.vaderetrosecure.keystore.dao.KeyProtection;
 import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
 import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryChange;
 
 /**
  *
@@ -120,7 +132,13 @@ public class SNIX509ExtendedKeyManagerTest
         ksdao = mock(KeyStoreDAO.class);
         when(ksdao.getIntegrityData()).thenReturn(integrityData);
         when(ksdao.getEntry(eq(PRIVATE_KEY_AND_CERTIFICATE_ALIAS))).thenReturn(privateKeyEntry);
+        when(ksdao.getAliases()).thenReturn(Collections.singletonList(PRIVATE_KEY_AND_CERTIFICATE_ALIAS));
+        when(ksdao.getAllEntries()).thenReturn(Collections.singletonList(privateKeyEntry));
+        when(ksdao.getAllEntriesMetadata()).thenReturn(Collections.singletonList(metadata(privateKeyEntry)));
         when(ksdao.getAliases(eq("RSA"))).thenReturn(Collections.singletonList(PRIVATE_KEY_AND_CERTIFICATE_ALIAS));
+        // changes are not logged, unless a test says otherwise
+        when(ksdao.getLastChangeSequence()).thenReturn(-1L);
+        when(ksdao.getChangesSince(anyLong())).thenReturn(null);
         
         keyManager = new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey);
 //        keyManager = new SNIX509ExtendedKeyManager(ksdao, null);
@@ -132,11 +150,178 @@ public class SNIX509ExtendedKeyManagerTest
         keyManager.chooseEngineClientAlias(null, null, null);
     }
 
-//    @Test
-//    public void testChooseEngineServerAlias()
-//    {
-//        keyManager.chooseEngineServerAlias(null, null, null);
-//    }
+    @Test
+    public void testChooseEngineServerAlias() throws Exception
+    {
+        ExtendedSSLSession session = mock(ExtendedSSLSession.class);
+        when(session.getRequestedServerNames()).thenReturn(Arrays.asList(new SNIHostName("unknown.com"), new SNIHostName("TEST.com")));
+        SSLEngine engine = mock(SSLEngine.class);
+        when(engine.getHandshakeSession()).thenReturn(session);
+
+        Assert.assertEquals(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, keyManager.chooseEngineServerAlias("RSA", null, engine));
+        Assert.assertNull(keyManager.chooseEngineServerAlias("EC", null, engine));
+        // aliases are selected from the index, without any DAO query
+        verify(ksdao, never()).getAliases(anyString());
+    }
+
+    @Test
+    public void testChooseEngineServerAliasWithWildcardAndDefault() throws Exception
+    {
+        KeyStoreEntry wildcardEntry = new KeyStoreEntry("wildcard-alias", Date.from(Instant.now()), privateKey, KeyProtection.generateKeyProtection(KEY_PASSWORD.toCharArray(), integrityData.getSalt()), Collections.emptyList(), Collections.singletonList("*.test.com"));
+        when(ksdao.getEntry(eq("wildcard-alias"))).thenReturn(wildcardEntry);
+        when(ksdao.getAliases()).thenReturn(Arrays.asList(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, "wildcard-alias"));
+        when(ksdao.getAllEntries()).thenReturn(Arrays.asList(privateKeyEntry, wildcardEntry));
+        when(ksdao.getAllEntriesMetadata()).thenReturn(Arrays.asList(metadata(privateKeyEntry), metadata(wildcardEntry)));
+
+        System.setProperty(SNIX509ExtendedKeyManager.DEFAULT_ALIAS_PROPERTY, PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        try
+        {
+            keyManager = new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey);
+        }
+        finally
+        {
+            System.clearProperty(SNIX509ExtendedKeyManager.DEFAULT_ALIAS_PROPERTY);
+        }
+
+        Assert.assertEquals("wildcard-alias", keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("www.test.com"))));
+        // exact names take precedence over wildcards
+        Assert.assertEquals(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("test.com"))));
+        // names not covered by any entry fall back to the default entry
+        Assert.assertEquals(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("a.www.test.com"))));
+        Assert.assertEquals(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, keyManager.chooseServerAlias("RSA", null, Collections.emptyList()));
+        Assert.assertNull(keyManager.chooseServerAlias("EC", null, Collections.emptyList()));
+
+        VRSNIMatcher matcher = new VRSNIMatcher(keyManager);
+        Assert.assertTrue(matcher.matches(new SNIHostName("unknown.com")));
+    }
+
+    @Test
+    public void testDefaultEntryIsPreloaded() throws Exception
+    {
+        VRKeyManagerFactoryParameters params = new VRKeyManagerFactoryParameters(null, null);
+        params.setDefaultAlias("rsa", PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        keyManager = new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey, params.getDefaultAliases(), params.isPreloadAll(), params.getRefreshPeriod());
+
+        String alias = keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("unknown.com")));
+        Assert.assertEquals(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, alias);
+        Assert.assertNull(keyManager.chooseServerAlias("EC", null, Collections.emptyList()));
+        Assert.assertArrayEquals(privateKey.getEncoded(), keyManager.getPrivateKey(alias).getEncoded());
+        Assert.assertArrayEquals(certificate.getEncoded(), keyManager.getCertificateChain(alias)[0].getEncoded());
+        // the index is built from the metadata, and only the default entry is read, once
+        verify(ksdao, never()).getAllEntries();
+        verify(ksdao, times(1)).getEntry(eq(PRIVATE_KEY_AND_CERTIFICATE_ALIAS));
+    }
+
+    @Test
+    public void testSNIMatcherWithMissingDefaultEntry() throws Exception
+    {
+        VRKeyManagerFactoryParameters params = new VRKeyManagerFactoryParameters(null, null);
+        params.setDefaultAlias("rsa", "missing-alias");
+        // the entry exists, but it is not an EC entry
+        params.setDefaultAlias("ec", PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        keyManager = new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey, params.getDefaultAliases(), params.isPreloadAll(), params.getRefreshPeriod());
+
+        VRSNIMatcher matcher = new VRSNIMatcher(keyManager);
+        Assert.assertTrue(matcher.matches(new SNIHostName("test.com")));
+        Assert.assertFalse(matcher.matches(new SNIHostName("unknown.com")));
+        Assert.assertNull(keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("unknown.com"))));
+    }
+
+    @Test
+    public void testAllEntriesArePreloaded() throws Exception
+    {
+        VRKeyManagerFactoryParameters params = new VRKeyManagerFactoryParameters(null, null);
+        params.setPreloadAll(true);
+        keyManager = new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey, params.getDefaultAliases(), params.isPreloadAll(), params.getRefreshPeriod());
+        // one bulk read, the key manager of setUp only reads the metadata
+        verify(ksdao, times(1)).getAllEntries();
+
+        PrivateKey pk = keyManager.getPrivateKey(PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        Assert.assertArrayEquals(privateKey.getEncoded(), pk.getEncoded());
+        Assert.assertSame(pk, keyManager.getPrivateKey(PRIVATE_KEY_AND_CERTIFICATE_ALIAS));
+        Assert.assertArrayEquals(certificate.getEncoded(), keyManager.getCertificateChain(PRIVATE_KEY_AND_CERTIFICATE_ALIAS)[0].getEncoded());
+        verify(ksdao, never()).getEntry(anyString());
+    }
+
+    @Test
+    public void testRefresh() throws Exception
+    {
+        when(ksdao.getGeneration()).thenReturn(1L);
+        keyManager = new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey, Collections.emptyMap(), true, 0L);
+        PrivateKey pk = keyManager.getPrivateKey(PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        // the generation did not change: the entries are not reloaded
+        Assert.assertFalse(keyManager.refresh());
+        verify(ksdao, times(1)).getAllEntries();
+
+        KeyProtection kp = KeyProtection.generateKeyProtection(KEY_PASSWORD.toCharArray(), integrityData.getSalt());
+        KeyStoreEntry renewedEntry = new KeyStoreEntry("renewed-alias", Date.from(Instant.now()), privateKey, kp, Collections.singletonList(new CertificateData(certificate)), Collections.singletonList("renewed.com"));
+        renewedEntry.setLockedKeyProtection(kp.getLockedKeyProtection(vrKeyStorePublicKey));
+        when(ksdao.getGeneration()).thenReturn(2L);
+        when(ksdao.getAllEntries()).thenReturn(Arrays.asList(privateKeyEntry, renewedEntry));
+        Assert.assertTrue(keyManager.refresh());
+        Assert.assertEquals("renewed-alias", keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("renewed.com"))));
+        Assert.assertArrayEquals(privateKey.getEncoded(), keyManager.getPrivateKey("renewed-alias").getEncoded());
+        // the unchanged entry keeps its unwrapped key
+        Assert.assertSame(pk, keyManager.getPrivateKey(PRIVATE_KEY_AND_CERTIFICATE_ALIAS));
+        verify(ksdao, never()).getEntry(anyString());
+
+        when(ksdao.getGeneration()).thenReturn(3L);
+        when(ksdao.getAllEntries()).thenReturn(Collections.singletonList(renewedEntry));
+        Assert.assertTrue(keyManager.refresh());
+        Assert.assertNull(keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("test.com"))));
+    }
+
+    @Test
+    public void testIncrementalRefresh() throws Exception
+    {
+        when(ksdao.getGeneration()).thenReturn(1L);
+        when(ksdao.getLastChangeSequence()).thenReturn(5L);
+        keyManager = new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey, Collections.emptyMap(), false, 0L);
+
+        KeyProtection kp = KeyProtection.generateKeyProtection(KEY_PASSWORD.toCharArray(), integrityData.getSalt());
+        KeyStoreEntry renewedEntry = new KeyStoreEntry("renewed-alias", Date.from(Instant.now()), privateKey, kp, Collections.singletonList(new CertificateData(certificate)), Collections.singletonList("renewed.com"));
+        renewedEntry.setLockedKeyProtection(kp.getLockedKeyProtection(vrKeyStorePublicKey));
+        when(ksdao.getEntry(eq("renewed-alias"))).thenReturn(renewedEntry);
+        when(ksdao.getGeneration()).thenReturn(2L);
+        when(ksdao.getChangesSince(eq(5L))).thenReturn(Arrays.asList(
+                new KeyStoreEntryChange(6L, "renewed-alias", KeyStoreEntryChange.Operation.SET),
+                new KeyStoreEntryChange(7L, PRIVATE_KEY_AND_CERTIFICATE_ALIAS, KeyStoreEntryChange.Operation.DELETE)));
+        Assert.assertTrue(keyManager.refresh());
+        Assert.assertEquals("renewed-alias", keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("renewed.com"))));
+        Assert.assertNull(keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("test.com"))));
+        // only the changed entry is read: the key managers only read the metadata of all entries
+        verify(ksdao, times(2)).getAllEntriesMetadata();
+        verify(ksdao, never()).getAllEntries();
+        verify(ksdao, never()).getEntry(eq(PRIVATE_KEY_AND_CERTIFICATE_ALIAS));
+
+        // the next refresh follows the changes from the last one applied
+        when(ksdao.getGeneration()).thenReturn(3L);
+        when(ksdao.getChangesSince(eq(7L))).thenReturn(Collections.singletonList(new KeyStoreEntryChange(8L, "renewed-alias", KeyStoreEntryChange.Operation.SET)));
+        Assert.assertTrue(keyManager.refresh());
+        verify(ksdao, times(1)).getChangesSince(eq(7L));
+        verify(ksdao, never()).getAllEntries();
+
+        // the generation moved without any change logged: all entries are reloaded
+        when(ksdao.getGeneration()).thenReturn(4L);
+        when(ksdao.getChangesSince(eq(8L))).thenReturn(Collections.emptyList());
+        when(ksdao.getLastChangeSequence()).thenReturn(8L);
+        when(ksdao.getAllEntries()).thenReturn(Arrays.asList(privateKeyEntry, renewedEntry));
+        Assert.assertTrue(keyManager.refresh());
+        verify(ksdao, times(1)).getAllEntries();
+        Assert.assertEquals(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, keyManager.chooseServerAlias("RSA", null, Collections.singletonList(new SNIHostName("test.com"))));
+    }
+
+    @Test
+    public void testChooseEngineServerAliasWithoutServerNames()
+    {
+        SSLEngine engine = mock(SSLEngine.class);
+        Assert.assertNull(keyManager.chooseEngineServerAlias("RSA", null, engine));
+
+        ExtendedSSLSession session = mock(ExtendedSSLSession.class);
+        when(session.getRequestedServerNames()).thenReturn(Collections.emptyList());
+        when(engine.getHandshakeSession()).thenReturn(session);
+        Assert.assertNull(keyManager.chooseEngineServerAlias("RSA", null, engine));
+    }
 
     @Test(expected=UnsupportedOperationException.class)
     public void testChooseClientAlias()
@@ -162,6 +347,17 @@ public class SNIX509ExtendedKeyManagerTest
         Assert.assertArrayEquals(certificate.getEncoded(), certs[0].getEncoded());
     }
 
+    @Test
+    public void testGetCertificateChainIsCached() throws Exception
+    {
+        X509Certificate[] certs1 = keyManager.getCertificateChain(PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        certs1[0] = null;
+        X509Certificate[] certs2 = keyManager.getCertificateChain(PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        Assert.assertNotNull(certs2[0]);
+        // the index is built from the metadata, so the only read decodes the chain
+        verify(ksdao, times(1)).getEntry(eq(PRIVATE_KEY_AND_CERTIFICATE_ALIAS));
+    }
+
     @Test(expected=UnsupportedOperationException.class)
     public void testGetClientAliases()
     {
@@ -176,6 +372,16 @@ public class SNIX509ExtendedKeyManagerTest
         Assert.assertArrayEquals(privateKey.getEncoded(), pk.getEncoded());
     }
 
+    @Test
+    public void testGetPrivateKeyIsCached() throws Exception
+    {
+        PrivateKey pk1 = keyManager.getPrivateKey(PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        PrivateKey pk2 = keyManager.getPrivateKey(PRIVATE_KEY_AND_CERTIFICATE_ALIAS);
+        Assert.assertSame(pk1, pk2);
+        // the index is built from the metadata, so the only read unwraps the key
+        verify(ksdao, times(1)).getEntry(eq(PRIVATE_KEY_AND_CERTIFICATE_ALIAS));
+    }
+
     @Test
     public void testGetServerAliases()
     {
@@ -183,4 +389,40 @@ public class SNIX509ExtendedKeyManagerTest
         Assert.assertEquals(1, aliases.length);
         Assert.assertEquals(PRIVATE_KEY_AND_CERTIFICATE_ALIAS, aliases[0]);
     }
+
+    @Test
+    public void testSNIMatcher()
+    {
+        VRSNIMatcher matcher = new VRSNIMatcher(keyManager);
+        Assert.assertTrue(matcher.matches(new SNIHostName("TEST.com")));
+        Assert.assertFalse(matcher.matches(new SNIHostName("unknown.com")));
+    }
+
+    @Test
+    public void testDiscardedKeyManagerIsCollected() throws Exception
+    {
+        WeakReference<SNIX509ExtendedKeyManager> ref = new WeakReference<>(new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey));
+        Assert.assertTrue(isCollected(ref));
+        // the scheduled refresh does not keep the key manager either
+        ref = new WeakReference<>(new SNIX509ExtendedKeyManager(ksdao, keyManagerPrivateKey, Collections.emptyMap(), false, 1L));
+        Assert.assertTrue(isCollected(ref));
+    }
+
+    /**
+     * Return the metadata of an entry, without key data nor certificate chain, as read by the key managers to build their index.
+     */
+    static KeyStoreEntry metadata(KeyStoreEntry kse)
+    {
+        return new KeyStoreEntry(kse.getAlias(), kse.getCreationDate(), kse.getEntryType(), kse.getAlgorithm(), null, null, Collections.emptyList(), kse.getNames());
+    }
+
+    static boolean isCollected(WeakReference<?> ref) throws InterruptedException
+    {
+        for (int i = 0; (i < 50) && (ref.get() != null); i++)
+        {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return ref.get() == null;
+    }
 }
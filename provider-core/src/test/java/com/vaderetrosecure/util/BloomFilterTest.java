@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package com.vaderetrosecure.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class BloomFilterTest
+{
+    @Test
+    public void testMightContain()
+    {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++)
+            filter.put("www" + i + ".example.com");
+
+        for (int i = 0; i < 10000; i++)
+            Assert.assertTrue(filter.mightContain("www" + i + ".example.com"));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+        {
+            if (filter.mightContain("mail" + i + ".example.com"))
+                falsePositives++;
+        }
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 200);
+    }
+
+    @Test
+    public void testSizing()
+    {
+        BloomFilter filter = new BloomFilter(1000000, 0.01);
+        // about 9.6 bits and 7 hash functions per value
+        Assert.assertTrue(filter.getBitCount() >= 9585059L);
+        Assert.assertTrue(filter.getBitCount() < 9585059L + 64L);
+        Assert.assertEquals(7, filter.getHashCount());
+        Assert.assertFalse(filter.mightContain(new byte[0]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProbability()
+    {
+        new BloomFilter(100, 1.0);
+    }
+}
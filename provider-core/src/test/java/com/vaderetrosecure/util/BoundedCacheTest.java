@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package com.vaderetrosecure.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class BoundedCacheTest
+{
+    @Test
+    public void testGetAndPut()
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 0, TimeUnit.SECONDS);
+        Assert.assertNull(cache.get("key"));
+        cache.put("key", "value");
+        Assert.assertEquals("value", cache.get("key"));
+        cache.put("key", "other-value");
+        Assert.assertEquals("other-value", cache.get("key"));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testEviction()
+    {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(3, 0, TimeUnit.SECONDS);
+        for (int i = 0 ; i < 5 ; i++)
+            cache.put(i, i);
+
+        Assert.assertEquals(3, cache.size());
+        Assert.assertNull(cache.get(0));
+        Assert.assertNull(cache.get(1));
+        Assert.assertEquals(Integer.valueOf(4), cache.get(4));
+    }
+
+    @Test
+    public void testEvictionIsFirstInFirstOut()
+    {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(3, 0, TimeUnit.SECONDS);
+        for (int i = 0 ; i < 3 ; i++)
+            cache.put(i, i);
+
+        // reading a value does not delay its eviction
+        Assert.assertEquals(Integer.valueOf(0), cache.get(0));
+        cache.put(3, 3);
+        Assert.assertNull(cache.get(0));
+        Assert.assertEquals(Integer.valueOf(1), cache.get(1));
+    }
+
+    @Test
+    public void testReplacedAndInvalidatedValuesDoNotCount()
+    {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(3, 0, TimeUnit.SECONDS);
+        cache.put("a", 0);
+        cache.put("b", 0);
+        cache.put("c", 0);
+        for (int i = 1 ; i <= 5 ; i++)
+            cache.put("a", i);
+
+        // the replaced values left in the queue do not evict the values held
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(Integer.valueOf(5), cache.get("a"));
+        Assert.assertEquals(Integer.valueOf(0), cache.get("b"));
+        Assert.assertEquals(Integer.valueOf(0), cache.get("c"));
+
+        cache.invalidate("b");
+        cache.put("d", 0);
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(Integer.valueOf(5), cache.get("a"));
+        Assert.assertEquals(Integer.valueOf(0), cache.get("c"));
+        Assert.assertEquals(Integer.valueOf(0), cache.get("d"));
+
+        // the queue does not grow with replacements and invalidations
+        for (int i = 0 ; i < 10000 ; i++)
+        {
+            cache.put("e", i);
+            cache.invalidate("e");
+        }
+        Assert.assertTrue(cache.getQueueLength() <= 2 * 16 + 1);
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 10, TimeUnit.MILLISECONDS);
+        cache.put("key", "value");
+        Thread.sleep(50);
+        Assert.assertNull(cache.get("key"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testWeightEviction()
+    {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(10, 10, String::length, 0, TimeUnit.SECONDS, v -> {});
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+        Assert.assertEquals(8, cache.getWeight());
+        cache.put(3, "cccc");
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(8, cache.getWeight());
+        Assert.assertNull(cache.get(1));
+        cache.invalidateAll(k -> k == 2);
+        Assert.assertEquals(4, cache.getWeight());
+        Assert.assertEquals("cccc", cache.get(3));
+
+        // a value heavier than the maximum weight is not kept
+        cache.put(4, "ddddddddddd");
+        Assert.assertNull(cache.get(4));
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 0, TimeUnit.SECONDS);
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+        cache.invalidate("key1");
+        Assert.assertNull(cache.get("key1"));
+        Assert.assertEquals("value2", cache.get("key2"));
+        cache.invalidateAll();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemovalListener() throws InterruptedException
+    {
+        List<String> removed = new ArrayList<>();
+        BoundedCache<String, String> cache = new BoundedCache<>(2, 100, TimeUnit.MILLISECONDS, removed::add);
+        cache.put("key1", "value1");
+        cache.put("key1", "value2");
+        cache.put("key2", "value3");
+        cache.put("key3", "value4");
+        cache.invalidate("key3");
+        Assert.assertEquals(Arrays.asList("value1", "value2", "value4"), removed);
+
+        Thread.sleep(200);
+        cache.cleanUp();
+        Assert.assertEquals(Arrays.asList("value1", "value2", "value4", "value3"), removed);
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package com.vaderetrosecure.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class NameFilterTest
+{
+    private final AtomicLong generation = new AtomicLong(1L);
+    private final List<String> names = Collections.synchronizedList(new ArrayList<>(Collections.singletonList("www.example.com")));
+    private final AtomicInteger builds = new AtomicInteger();
+
+    @Test
+    public void testBuild() throws Exception
+    {
+        NameFilter filter = createNameFilter(0L);
+        filter.build();
+        Assert.assertEquals(1, builds.get());
+        Assert.assertTrue(filter.mightContain("www.example.com"));
+        Assert.assertFalse(filter.mightContain("scan.example.com"));
+
+        // names set through the owner are added at once
+        filter.put(Collections.singletonList("new.example.com"));
+        Assert.assertTrue(filter.mightContain("new.example.com"));
+
+        // the names are not read again while the generation does not change
+        filter.build();
+        Assert.assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void testBuildInBackground() throws Exception
+    {
+        NameFilter filter = createNameFilter(0L);
+
+        // the first lookups are not filtered, while the filter is built
+        Assert.assertTrue(filter.mightContain("scan.example.com"));
+        waitForBuilds(1);
+        Assert.assertFalse(filter.mightContain("scan.example.com"));
+    }
+
+    @Test
+    public void testRefreshOnGenerationChange() throws Exception
+    {
+        NameFilter filter = createNameFilter(10L);
+        filter.build();
+        Assert.assertFalse(filter.mightContain("other.example.com"));
+
+        // a name set by another process is accepted once the filter is rebuilt in the background
+        names.add("other.example.com");
+        generation.incrementAndGet();
+        Thread.sleep(20L);
+        filter.mightContain("other.example.com");
+        waitForBuilds(2);
+        Assert.assertTrue(filter.mightContain("other.example.com"));
+    }
+
+    @Test
+    public void testNoRefreshWithZeroPeriod() throws Exception
+    {
+        NameFilter filter = createNameFilter(0L);
+        filter.build();
+
+        names.add("other.example.com");
+        generation.incrementAndGet();
+        Thread.sleep(20L);
+        Assert.assertFalse(filter.mightContain("other.example.com"));
+        Thread.sleep(50L);
+        Assert.assertEquals(1, builds.get());
+
+        // an invalidated filter is built again
+        filter.invalidate();
+        filter.mightContain("other.example.com");
+        waitForBuilds(2);
+        Assert.assertTrue(filter.mightContain("other.example.com"));
+    }
+
+    private NameFilter createNameFilter(long refreshPeriodMillis)
+    {
+        return new NameFilter(generation::get, () -> {
+            builds.incrementAndGet();
+            synchronized (names)
+            {
+                return new ArrayList<>(names);
+            }
+        }, refreshPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void waitForBuilds(int count) throws InterruptedException
+    {
+        for (int i = 0; (builds.get() < count) && (i < 500); i++)
+            Thread.sleep(10L);
+        Assert.assertEquals(count, builds.get());
+        // the filter is published after the names are read
+        Thread.sleep(50L);
+    }
+}
@@ -0,0 +1,869 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.file;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.vaderetrosecure.keystore.dao.IntegrityData;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.file.LogRecord.IndexEntry;
+
+/**
+ * This class implements the DAO backed by an append-only log file.
+ * <p>
+ * Each modification appends records to the log, followed by a commit record, and the log is synchronized to the disk
+ * before the modification returns. The log is mapped in memory, and an index gives the position of the last record of
+ * each alias and the aliases of each name: a lookup decodes the entry from the mapped memory, without any system call.
+ * The file is preallocated beyond the end of the log and mapped as a whole, so that appends are read through the same
+ * mapping: the file is only extended and mapped again, doubling its size, when an append does not fit. The zeros following
+ * the log never form a valid record.<br>
+ * When the records replaced or deleted exceed a ratio of the log, the log is compacted: live records are copied to a
+ * new file, which atomically replaces the log once it is synchronized. The copy runs under the read lock, so that lookups
+ * go on while writes wait, and the log is only replaced under the write lock. A crash at any time leaves either the old
+ * or the new log, and records torn by a crash are discarded when the log is opened.<br>
+ * A mapping is released explicitly before its file is replaced or cleared, as some platforms forbid these operations
+ * on a mapped file, and the garbage collector releases mappings late.<br>
+ * The directory of the log is locked, so that a single process uses it at a time. The log is limited to 2 GB.
+ * Please, refer to the associated factory to know how to use it properly.
+ *
+ * @see FileKeyStoreDAOFactory
+ * @see com.vaderetrosecure.keystore.dao.file.LogRecord
+ */
+class FileKeyStoreDAO implements KeyStoreDAO
+{
+    private static final Logger LOG = Logger.getLogger(FileKeyStoreDAO.class);
+
+    static final String LOG_FILE_NAME = "keystore.log";
+    static final String COMPACTION_FILE_NAME = "keystore.log.compact";
+    static final String LOCK_FILE_NAME = "keystore.lock";
+
+    private static final int MAGIC = 0x56524b53;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final long MINIMUM_FILE_SIZE = 1L << 20;
+
+    private final Path directory;
+    private final double compactionRatio;
+    private final long compactionMinimumSize;
+    private final ReadWriteLock lock;
+    private final Lock compactionLock;
+    private final Map<String, IndexEntry> aliasIndex;
+    private final Map<String, Set<String>> nameIndex;
+    private FileChannel lockChannel;
+    private FileLock fileLock;
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private ByteBuffer log;
+    private int integrityPosition;
+    private int integritySize;
+    private long generation;
+    private long deadSize;
+
+    /**
+     * Construct a new {@code FileKeyStoreDAO} object.
+     * The log must be opened with {@link #open()} before use.
+     *
+     * @param directory the directory of the log.
+     * @param compactionRatio the ratio of the log taken by replaced or deleted records that triggers a compaction.
+     * @param compactionMinimumSize the size of the log under which it is never compacted.
+     */
+    FileKeyStoreDAO(Path directory, double compactionRatio, long compactionMinimumSize)
+    {
+        if ((compactionRatio <= 0.0) || (compactionRatio > 1.0))
+            throw new IllegalArgumentException("compaction ratio must be in ]0, 1]");
+
+        this.directory = directory;
+        this.compactionRatio = compactionRatio;
+        this.compactionMinimumSize = compactionMinimumSize;
+        this.lock = new ReentrantReadWriteLock();
+        this.compactionLock = new ReentrantLock();
+        this.aliasIndex = new LinkedHashMap<>();
+        this.nameIndex = new HashMap<>();
+        this.integrityPosition = -1;
+        this.integritySize = 0;
+        this.generation = 0L;
+        this.deadSize = 0L;
+    }
+
+    /**
+     * Open the log, creating it if needed, and rebuild the index.
+     * Records following the last commit record are discarded.
+     *
+     * @throws KeyStoreDAOException if the directory is locked by another process, or the log can not be read.
+     */
+    void open() throws KeyStoreDAOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Files.createDirectories(directory);
+            lockChannel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try
+            {
+                fileLock = lockChannel.tryLock();
+            }
+            catch (OverlappingFileLockException e)
+            {
+                fileLock = null;
+            }
+            if (fileLock == null)
+            {
+                lockChannel.close();
+                throw new KeyStoreDAOException("key store directory is locked by another DAO: " + directory);
+            }
+
+            // an interrupted compaction leaves the previous log intact
+            Files.deleteIfExists(directory.resolve(COMPACTION_FILE_NAME));
+
+            channel = FileChannel.open(directory.resolve(LOG_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() == 0)
+            {
+                writeFileHeader(channel);
+                channel.force(true);
+            }
+
+            long start = System.nanoTime();
+            replay();
+            LOG.info("key store log opened: " + aliasIndex.size() + " entries in " + (System.nanoTime() - start) / 1000000L + " ms");
+        }
+        catch (IOException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Close the log and release the lock of its directory.
+     *
+     * @throws KeyStoreDAOException if the log can not be closed.
+     */
+    void close() throws KeyStoreDAOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            unmap();
+            if (channel != null)
+                channel.close();
+            if (fileLock != null)
+                fileLock.release();
+            if (lockChannel != null)
+                lockChannel.close();
+            channel = null;
+            fileLock = null;
+            lockChannel = null;
+        }
+        catch (IOException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the size of the log.
+     *
+     * @return the size in bytes.
+     */
+    long getLogSize()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return log.limit();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The log is compacted if the records replaced or deleted exceed the compaction ratio.
+     */
+    @Override
+    public void checkDAOStructure() throws KeyStoreDAOException
+    {
+        try
+        {
+            compactIfNeeded();
+        }
+        catch (IOException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+
+    @Override
+    public int countEntries() throws KeyStoreDAOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            return aliasIndex.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getAliases() throws KeyStoreDAOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            return new ArrayList<>(aliasIndex.keySet());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getAliases(String algorithm) throws KeyStoreDAOException
+    {
+        List<String> aliases = new ArrayList<>();
+        lock.readLock().lock();
+        try
+        {
+            for (IndexEntry ie : aliasIndex.values())
+                if (algorithm.equals(ie.algorithm))
+                    aliases.add(ie.alias);
+            return aliases;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public IntegrityData getIntegrityData() throws KeyStoreDAOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            checkLogIsOpened();
+            return integrityPosition < 0 ? null : LogRecord.decodeIntegrityData(log, integrityPosition);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setIntegrityData(IntegrityData integrityData) throws KeyStoreDAOException
+    {
+        append(LogRecord.INTEGRITY, Collections.singletonList(LogRecord.encodeIntegrityData(integrityData)));
+    }
+
+    @Override
+    public KeyStoreEntry getEntry(String alias) throws KeyStoreDAOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            checkLogIsOpened();
+            IndexEntry ie = aliasIndex.get(alias);
+            return ie == null ? null : LogRecord.decodeEntry(log, ie.position);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<KeyStoreEntry> getEntries(String name) throws KeyStoreDAOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            checkLogIsOpened();
+            Set<String> aliases = nameIndex.get(name);
+            if (aliases == null)
+                return Collections.emptyList();
+
+            List<KeyStoreEntry> entries = new ArrayList<>(aliases.size());
+            for (String alias : aliases)
+                entries.add(LogRecord.decodeEntry(log, aliasIndex.get(alias).position));
+            return entries;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<KeyStoreEntry> getAllEntries() throws KeyStoreDAOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            checkLogIsOpened();
+            List<KeyStoreEntry> entries = new ArrayList<>(aliasIndex.size());
+            for (IndexEntry ie : aliasIndex.values())
+                entries.add(LogRecord.decodeEntry(log, ie.position));
+            return entries;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Names are read from the index, without decoding any entry.
+     */
+    @Override
+    public List<String> getNames() throws KeyStoreDAOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            checkLogIsOpened();
+            return new ArrayList<>(nameIndex.keySet());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getGeneration() throws KeyStoreDAOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            return generation;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setEntry(KeyStoreEntry entry) throws KeyStoreDAOException
+    {
+        setEntries(Collections.singletonList(entry));
+    }
+
+    /**
+     * {@inheritDoc}
+     * All entries are appended in a single transaction, synchronized to the disk once.
+     */
+    @Override
+    public void setEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        if (entries.isEmpty())
+            return;
+
+        // records are encoded before the log is locked
+        List<byte[]> payloads = new ArrayList<>(entries.size());
+        for (KeyStoreEntry kse : entries)
+            payloads.add(LogRecord.encodeEntry(kse));
+        append(LogRecord.ENTRY, payloads);
+    }
+
+    @Override
+    public void deleteEntry(KeyStoreEntry entry) throws KeyStoreDAOException
+    {
+        deleteEntries(Collections.singletonList(entry));
+    }
+
+    /**
+     * {@inheritDoc}
+     * All entries are deleted in a single transaction, synchronized to the disk once.
+     */
+    @Override
+    public void deleteEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        if (entries.isEmpty())
+            return;
+
+        List<byte[]> payloads = new ArrayList<>(entries.size());
+        for (KeyStoreEntry kse : entries)
+            payloads.add(LogRecord.encodeAlias(kse.getAlias()));
+        append(LogRecord.DELETE, payloads);
+    }
+
+    /**
+     * Append a transaction to the log, then apply it to the index.
+     * If the log can not be written, the written bytes are cleared, so that the transaction is not partially written.
+     * The log is compacted after the transaction, if needed.
+     */
+    private void append(byte type, List<byte[]> payloads) throws KeyStoreDAOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            checkLogIsOpened();
+
+            long sequence = generation + 1;
+            ByteBuffer[] records = new ByteBuffer[payloads.size() + 1];
+            long size = 0;
+            for (int i = 0; i < payloads.size(); i++)
+            {
+                records[i] = LogRecord.frame(sequence, type, payloads.get(i));
+                size += records[i].capacity();
+            }
+            records[payloads.size()] = LogRecord.frame(sequence, LogRecord.COMMIT, new byte[0]);
+            size += LogRecord.HEADER_SIZE;
+
+            int start = log.limit();
+            if (start + size > Integer.MAX_VALUE)
+                throw new KeyStoreDAOException("key store log exceeds 2 GB: it must be compacted");
+
+            try
+            {
+                channel.position(start);
+                while (records[records.length - 1].hasRemaining())
+                    channel.write(records);
+                channel.force(false);
+            }
+            catch (IOException e)
+            {
+                clear(start, start + size);
+                throw e;
+            }
+
+            // the mapping covers the preallocated file, and sees the bytes written through the channel as they share the
+            // page cache: it is only replaced when the log outgrows it
+            if (start + size > mapping.capacity())
+                map(start + size);
+            else
+                log = limit(mapping, start + size);
+
+            int position = start;
+            for (int i = 0; i < payloads.size(); i++)
+            {
+                int recordSize = records[i].capacity();
+                apply(type, position, recordSize);
+                position += recordSize;
+            }
+            deadSize += LogRecord.HEADER_SIZE;
+            generation = sequence;
+        }
+        catch (IOException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        try
+        {
+            compactIfNeeded();
+        }
+        catch (IOException | KeyStoreDAOException e)
+        {
+            // the transaction is committed: the compaction is tried again with the next one
+            LOG.debug(e, e);
+            LOG.warn("key store log compaction failed", e);
+        }
+    }
+
+    /**
+     * Rebuild the index from the log.
+     * The bytes following the last commit record are cleared: they are either the preallocated zeros, or records torn by a crash.
+     */
+    private void replay() throws IOException, KeyStoreDAOException
+    {
+        long fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE)
+            throw new KeyStoreDAOException("key store log exceeds 2 GB");
+
+        unmap();
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        log = limit(mapping, fileSize);
+        if ((log.limit() < FILE_HEADER_SIZE) || (log.getInt(0) != MAGIC))
+            throw new KeyStoreDAOException("not a key store log: " + directory.resolve(LOG_FILE_NAME));
+        if (log.getInt(4) != VERSION)
+            throw new KeyStoreDAOException("unsupported key store log version: " + log.getInt(4));
+
+        aliasIndex.clear();
+        nameIndex.clear();
+        integrityPosition = -1;
+        integritySize = 0;
+        generation = 0L;
+        deadSize = 0L;
+
+        int position = FILE_HEADER_SIZE;
+        int committed = position;
+        List<int[]> pending = new ArrayList<>();
+        int recordSize;
+        while ((recordSize = LogRecord.check(log, position)) > 0)
+        {
+            byte type = LogRecord.getType(log, position);
+            if (type == LogRecord.COMMIT)
+            {
+                for (int[] record : pending)
+                    apply(LogRecord.getType(log, record[0]), record[0], record[1]);
+                pending.clear();
+                deadSize += recordSize;
+                generation = LogRecord.getSequence(log, position);
+                committed = position + recordSize;
+            }
+            else
+                pending.add(new int[] { position, recordSize });
+
+            position += recordSize;
+        }
+
+        int end = log.limit();
+        while ((end > committed) && (log.get(end - 1) == 0))
+            end--;
+        if (end > committed)
+        {
+            LOG.warn("discarding " + (end - committed) + " bytes of uncommitted or corrupted records from the key store log");
+            clear(committed, end);
+            channel.force(true);
+        }
+        map(committed);
+    }
+
+    /**
+     * Preallocate the file to twice the size of the log, then map it as a whole.
+     * The previous mapping is released: it must not be used anymore.
+     *
+     * @param size the size of the log.
+     */
+    private void map(long size) throws IOException
+    {
+        long fileSize = Math.min(Integer.MAX_VALUE, Math.max(2 * size, MINIMUM_FILE_SIZE));
+        if (channel.size() < fileSize)
+            channel.write(ByteBuffer.allocate(1), fileSize - 1);
+
+        MappedByteBuffer previous = mapping;
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        log = limit(mapping, size);
+        unmap(previous);
+    }
+
+    /**
+     * Release the current mapping, before its file is replaced or closed.
+     * The log must not be read until it is mapped again.
+     */
+    private void unmap()
+    {
+        MappedByteBuffer previous = mapping;
+        mapping = null;
+        log = null;
+        unmap(previous);
+    }
+
+    /**
+     * Release a mapping without waiting for the garbage collector.
+     * It is only called under the write lock, once the mapping is no longer referenced: no reader can access it anymore.
+     * If the platform does not allow it, the mapping is released by the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        if (buffer == null)
+            return;
+
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try
+            {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Java 8: the cleaner of the buffer is called directly
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            LOG.debug(e, e);
+        }
+    }
+
+    private static ByteBuffer limit(MappedByteBuffer mapping, long size)
+    {
+        ByteBuffer b = mapping.duplicate();
+        b.limit((int) size);
+        return b;
+    }
+
+    /**
+     * Overwrite a range of the file with zeros, so that it is read as preallocated space.
+     */
+    private void clear(long from, long to) throws IOException
+    {
+        ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+        for (long position = from; position < to; position += zeros.capacity())
+        {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), to - position));
+            while (zeros.hasRemaining())
+                channel.write(zeros, position + zeros.position());
+        }
+    }
+
+    /**
+     * Apply a committed record to the index, and account for the records it makes obsolete.
+     */
+    private void apply(byte type, int position, int recordSize)
+    {
+        switch (type)
+        {
+        case LogRecord.INTEGRITY:
+            deadSize += integritySize;
+            integrityPosition = position;
+            integritySize = recordSize;
+            break;
+        case LogRecord.ENTRY:
+            IndexEntry ie = LogRecord.decodeIndexEntry(log, position, recordSize);
+            removeFromIndex(aliasIndex.put(ie.alias, ie));
+            for (String name : ie.names)
+                nameIndex.computeIfAbsent(name, k -> new HashSet<>()).add(ie.alias);
+            break;
+        case LogRecord.DELETE:
+            deadSize += recordSize;
+            removeFromIndex(aliasIndex.remove(LogRecord.decodeAlias(log, position)));
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void removeFromIndex(IndexEntry ie)
+    {
+        if (ie == null)
+            return;
+
+        deadSize += ie.size;
+        for (String name : ie.names)
+        {
+            Set<String> aliases = nameIndex.get(name);
+            if (aliases != null)
+            {
+                aliases.remove(ie.alias);
+                if (aliases.isEmpty())
+                    nameIndex.remove(name);
+            }
+        }
+    }
+
+    private boolean isCompactionNeeded()
+    {
+        return (log != null) && (log.limit() >= compactionMinimumSize) && (deadSize >= log.limit() * compactionRatio);
+    }
+
+    /**
+     * Copy the live records to a new log, then replace the log with it, if the records replaced or deleted exceed the compaction ratio.
+     * The live records are copied under the read lock: lookups go on, and writes wait. The new log is synchronized to the disk,
+     * then atomically replaces the previous one under the write lock, unless a write was made meanwhile: the compaction is
+     * then tried again with the next write. A crash during the compaction leaves the previous log intact.
+     */
+    private void compactIfNeeded() throws IOException, KeyStoreDAOException
+    {
+        // a single compaction at a time: the others would write the same file
+        if (!compactionLock.tryLock())
+            return;
+
+        try
+        {
+            long start = System.nanoTime();
+            Path compactionPath = directory.resolve(COMPACTION_FILE_NAME);
+            Map<String, IndexEntry> compactedIndex = new LinkedHashMap<>();
+            int compactedIntegrityPosition = -1;
+            int previousSize;
+            long compactedGeneration;
+            int compactedSize;
+
+            lock.readLock().lock();
+            try
+            {
+                checkLogIsOpened();
+                if (!isCompactionNeeded())
+                    return;
+
+                previousSize = log.limit();
+                compactedGeneration = generation;
+                try (FileChannel out = FileChannel.open(compactionPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+                {
+                    writeFileHeader(out);
+                    int position = FILE_HEADER_SIZE;
+                    if (integrityPosition >= 0)
+                    {
+                        copyRecord(out, integrityPosition, integritySize);
+                        compactedIntegrityPosition = position;
+                        position += integritySize;
+                    }
+
+                    for (IndexEntry ie : aliasIndex.values())
+                    {
+                        copyRecord(out, ie.position, ie.size);
+                        compactedIndex.put(ie.alias, ie.moveTo(position));
+                        position += ie.size;
+                    }
+
+                    // the copied records are committed together, under the current generation
+                    ByteBuffer commit = LogRecord.frame(compactedGeneration, LogRecord.COMMIT, new byte[0]);
+                    while (commit.hasRemaining())
+                        out.write(commit);
+                    compactedSize = position + LogRecord.HEADER_SIZE;
+                    out.force(true);
+                }
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+
+            lock.writeLock().lock();
+            try
+            {
+                if ((log == null) || (generation != compactedGeneration))
+                {
+                    Files.deleteIfExists(compactionPath);
+                    return;
+                }
+
+                Path logPath = directory.resolve(LOG_FILE_NAME);
+                int logSize = log.limit();
+                unmap();
+                try
+                {
+                    Files.move(compactionPath, logPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch (IOException e)
+                {
+                    // the previous log is still valid
+                    map(logSize);
+                    throw e;
+                }
+                syncDirectory();
+
+                channel.close();
+                channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                map(compactedSize);
+                aliasIndex.clear();
+                aliasIndex.putAll(compactedIndex);
+                integrityPosition = compactedIntegrityPosition;
+                deadSize = LogRecord.HEADER_SIZE;
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+
+            LOG.info("key store log compacted from " + previousSize + " to " + compactedSize + " bytes in " + (System.nanoTime() - start) / 1000000L + " ms");
+        }
+        finally
+        {
+            compactionLock.unlock();
+        }
+    }
+
+    private void copyRecord(FileChannel out, int position, int size) throws IOException
+    {
+        ByteBuffer record = log.duplicate();
+        record.limit(position + size);
+        record.position(position);
+        while (record.hasRemaining())
+            out.write(record);
+    }
+
+    private void syncDirectory()
+    {
+        // a directory can not be opened on every platform: the rename is then synchronized by the file system only
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ))
+        {
+            dir.force(true);
+        }
+        catch (IOException e)
+        {
+            LOG.debug(e, e);
+        }
+    }
+
+    private void checkLogIsOpened() throws KeyStoreDAOException
+    {
+        if (log == null)
+        {
+            final String errorMsg = "key store log is not opened";
+            LOG.fatal(errorMsg);
+            throw new KeyStoreDAOException(errorMsg);
+        }
+    }
+
+    private static void writeFileHeader(FileChannel out) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining())
+            out.write(header);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOFactory;
+
+/**
+ * This class is a part of the implementation of the file DAO.
+ * <p>
+ * This factory instantiates the {@code FileKeyStoreDAO} class, and opens its log. The directory of the log is
+ * locked as long as the JVM runs.
+ * <p>
+ * This factory can be given some properties by adding the file {@code com.vaderetrosecure.keystore.dao.properties}
+ * to the class path:
+ * <ul>
+ * <li>{@code directory}: the directory of the log, created if needed (default: {@code keystore})</li>
+ * <li>{@code compactionRatio}: the ratio of the log taken by replaced or deleted records that triggers a compaction (default: 0.5)</li>
+ * <li>{@code compactionMinimumSize}: the size in bytes under which the log is never compacted (default: 1048576).</li>
+ * </ul>
+ * The compaction is run by the write that triggers it, once its transaction is committed: this write returns when the
+ * live entries are copied, which takes a time proportional to their size. Lookups go on during the copy, and other writes
+ * wait for it.<br>
+ * The log file is preallocated: it takes up to twice the size of the log on the disk.
+ *
+ * @see com.vaderetrosecure.keystore.dao.KeyStoreDAOFactory
+ * @see com.vaderetrosecure.keystore.dao.file.FileKeyStoreDAO
+ */
+public class FileKeyStoreDAOFactory extends KeyStoreDAOFactory
+{
+    private static final Logger LOG = Logger.getLogger(FileKeyStoreDAOFactory.class);
+
+    private static final String DAO_FACTORY_PROPERTIES_FILE_NAME = "com.vaderetrosecure.keystore.dao.properties";
+
+    private KeyStoreDAO keyStoreDAO;
+
+    public FileKeyStoreDAOFactory()
+    {
+        keyStoreDAO = null;
+    }
+
+    @Override
+    protected void init() throws KeyStoreDAOException
+    {
+        Properties prop = loadProperties();
+        try
+        {
+            FileKeyStoreDAO dao = new FileKeyStoreDAO(
+                    Paths.get(prop.getProperty("directory", "keystore")),
+                    Double.parseDouble(prop.getProperty("compactionRatio", "0.5")),
+                    Long.parseLong(prop.getProperty("compactionMinimumSize", "1048576")));
+            dao.open();
+            keyStoreDAO = dao;
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOG.fatal(e, e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+
+    @Override
+    public KeyStoreDAO getKeyStoreDAO() throws KeyStoreDAOException
+    {
+        return keyStoreDAO;
+    }
+
+    private Properties loadProperties()
+    {
+        //  loading properties file
+        Properties prop = new Properties();
+        try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(DAO_FACTORY_PROPERTIES_FILE_NAME))
+        {
+            if (is == null)
+                LOG.warn("unable to load '" + DAO_FACTORY_PROPERTIES_FILE_NAME + "' file");
+            else
+                prop.load(is);
+            return prop;
+        }
+        catch (IOException e)
+        {
+            LOG.warn(e);
+            LOG.debug(e, e);
+        }
+
+        return prop;
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.vaderetrosecure.keystore.dao.CertificateData;
+import com.vaderetrosecure.keystore.dao.IntegrityData;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
+import com.vaderetrosecure.keystore.dao.LockedKeyProtection;
+
+/**
+ * This class encodes and decodes the records of the key store log.
+ * <p>
+ * A record is made of a header and a payload. The header holds, in this order:
+ * <ul>
+ * <li>the CRC-32 of the rest of the record (4 bytes)</li>
+ * <li>the length of the payload (4 bytes)</li>
+ * <li>the sequence number of the transaction writing the record (8 bytes)</li>
+ * <li>the type of record (1 byte).</li>
+ * </ul>
+ * The records of a transaction are followed by a commit record, without payload. Records that are not followed by
+ * a commit record were torn by a crash, and are discarded when the log is opened.<br>
+ * In the payload, arrays of bytes are prefixed with their length, -1 standing for {@code null}, and strings are encoded
+ * as UTF-8 arrays of bytes. The alias, the algorithm and the names come first in an entry payload, so that the index of
+ * the log is rebuilt without decoding the keys and the certificates.
+ */
+final class LogRecord
+{
+    static final int HEADER_SIZE = 17;
+
+    static final byte INTEGRITY = 1;
+    static final byte ENTRY = 2;
+    static final byte DELETE = 3;
+    static final byte COMMIT = 4;
+
+    private static final int TYPE_OFFSET = 16;
+
+    private LogRecord()
+    {
+    }
+
+    /**
+     * Frame a payload into a record.
+     *
+     * @param sequence the sequence number of the transaction.
+     * @param type the type of record.
+     * @param payload the payload.
+     * @return the record, ready to be written.
+     */
+    static ByteBuffer frame(long sequence, byte type, byte[] payload)
+    {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(0);
+        record.putInt(payload.length);
+        record.putLong(sequence);
+        record.put(type);
+        record.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.rewind();
+        return record;
+    }
+
+    /**
+     * Check the record starting at a position of the log.
+     *
+     * @param log the log.
+     * @param position the position of the record.
+     * @return the size of the record, header included, or -1 if the record is truncated or corrupted.
+     */
+    static int check(ByteBuffer log, int position)
+    {
+        if (log.limit() - position < HEADER_SIZE)
+            return -1;
+
+        int length = log.getInt(position + 4);
+        if ((length < 0) || (log.limit() - position - HEADER_SIZE < length))
+            return -1;
+
+        byte type = log.get(position + TYPE_OFFSET);
+        if ((type < INTEGRITY) || (type > COMMIT))
+            return -1;
+
+        ByteBuffer b = log.duplicate();
+        b.limit(position + HEADER_SIZE + length);
+        b.position(position + 4);
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        return (int) crc.getValue() == log.getInt(position) ? HEADER_SIZE + length : -1;
+    }
+
+    /**
+     * Return the sequence number of a record.
+     *
+     * @param log the log.
+     * @param position the position of the record.
+     * @return the sequence number.
+     */
+    static long getSequence(ByteBuffer log, int position)
+    {
+        return log.getLong(position + 8);
+    }
+
+    /**
+     * Return the type of a record.
+     *
+     * @param log the log.
+     * @param position the position of the record.
+     * @return the type.
+     */
+    static byte getType(ByteBuffer log, int position)
+    {
+        return log.get(position + TYPE_OFFSET);
+    }
+
+    /**
+     * Encode the payload of an entry record.
+     *
+     * @param entry the entry.
+     * @return the payload.
+     */
+    static byte[] encodeEntry(KeyStoreEntry entry)
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        try (DataOutputStream out = new DataOutputStream(bos))
+        {
+            writeString(out, entry.getAlias());
+            writeString(out, entry.getAlgorithm());
+            out.writeInt(entry.getNames().size());
+            for (String name : entry.getNames())
+                writeString(out, name);
+            out.writeLong(entry.getCreationDate().getTime());
+            out.writeByte(entry.getEntryType().ordinal());
+            writeBytes(out, entry.getEntryData());
+            LockedKeyProtection lkp = entry.getLockedKeyProtection();
+            writeBytes(out, lkp == null ? null : lkp.getCipheredKey());
+            writeBytes(out, lkp == null ? null : lkp.getIV());
+            out.writeInt(entry.getCertificateChain().size());
+            for (CertificateData cd : entry.getCertificateChain())
+                writeBytes(out, cd.getEncodedCertificate());
+        }
+        catch (IOException e)
+        {
+            // never thrown by a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Encode the payload of a delete record.
+     *
+     * @param alias the alias of the deleted entry.
+     * @return the payload.
+     */
+    static byte[] encodeAlias(String alias)
+    {
+        return alias.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode the payload of an integrity record.
+     *
+     * @param integrityData the integrity data.
+     * @return the payload.
+     */
+    static byte[] encodeIntegrityData(IntegrityData integrityData)
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bos))
+        {
+            writeBytes(out, integrityData.getSalt());
+            writeBytes(out, integrityData.getIV());
+            writeBytes(out, integrityData.getCipheredData());
+            writeBytes(out, integrityData.getDataHash());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decode the indexed fields of an entry record.
+     *
+     * @param log the log.
+     * @param position the position of the record.
+     * @param size the size of the record.
+     * @return the index entry.
+     */
+    static IndexEntry decodeIndexEntry(ByteBuffer log, int position, int size)
+    {
+        ByteBuffer b = payload(log, position);
+        String alias = readString(b);
+        String algorithm = readString(b);
+        int count = b.getInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            names.add(readString(b));
+        return new IndexEntry(alias, algorithm, names, position, size);
+    }
+
+    /**
+     * Decode an entry record.
+     *
+     * @param log the log.
+     * @param position the position of the record.
+     * @return the entry.
+     */
+    static KeyStoreEntry decodeEntry(ByteBuffer log, int position)
+    {
+        ByteBuffer b = payload(log, position);
+        String alias = readString(b);
+        String algorithm = readString(b);
+        int count = b.getInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            names.add(readString(b));
+        Date creationDate = new Date(b.getLong());
+        KeyStoreEntryType entryType = KeyStoreEntryType.values()[b.get()];
+        byte[] data = readBytes(b);
+        byte[] cipheredKey = readBytes(b);
+        byte[] iv = readBytes(b);
+        LockedKeyProtection lkp = (cipheredKey == null) || (iv == null) ? null : new LockedKeyProtection(cipheredKey, iv);
+        count = b.getInt();
+        List<CertificateData> chain = count == 0 ? Collections.emptyList() : new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            chain.add(new CertificateData(readBytes(b)));
+        return new KeyStoreEntry(alias, creationDate, entryType, algorithm, data, lkp, chain, names);
+    }
+
+    /**
+     * Decode a delete record.
+     *
+     * @param log the log.
+     * @param position the position of the record.
+     * @return the alias of the deleted entry.
+     */
+    static String decodeAlias(ByteBuffer log, int position)
+    {
+        byte[] alias = new byte[log.getInt(position + 4)];
+        payload(log, position).get(alias);
+        return new String(alias, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode an integrity record.
+     *
+     * @param log the log.
+     * @param position the position of the record.
+     * @return the integrity data.
+     */
+    static IntegrityData decodeIntegrityData(ByteBuffer log, int position)
+    {
+        ByteBuffer b = payload(log, position);
+        return new IntegrityData(readBytes(b), readBytes(b), readBytes(b), readBytes(b));
+    }
+
+    private static ByteBuffer payload(ByteBuffer log, int position)
+    {
+        ByteBuffer b = log.duplicate();
+        b.position(position + HEADER_SIZE);
+        return b;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException
+    {
+        if (data == null)
+            out.writeInt(-1);
+        else
+        {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String data) throws IOException
+    {
+        writeBytes(out, data == null ? null : data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] readBytes(ByteBuffer b)
+    {
+        int length = b.getInt();
+        if (length < 0)
+            return null;
+
+        byte[] data = new byte[length];
+        b.get(data);
+        return data;
+    }
+
+    private static String readString(ByteBuffer b)
+    {
+        byte[] data = readBytes(b);
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The location and the indexed fields of the last record of an entry.
+     */
+    static final class IndexEntry
+    {
+        final String alias;
+        final String algorithm;
+        final List<String> names;
+        final int position;
+        final int size;
+
+        IndexEntry(String alias, String algorithm, List<String> names, int position, int size)
+        {
+            this.alias = alias;
+            this.algorithm = algorithm;
+            this.names = names;
+            this.position = position;
+            this.size = size;
+        }
+
+        IndexEntry moveTo(int newPosition)
+        {
+            return new IndexEntry(alias, algorithm, names, newPosition, size);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * This package contains a file implementation of the DAO, for nodes without a database.
+ * <p>
+ * <b>Log Architecture</b>
+ * <p>
+ * Entries, with their certificate chains and names, are stored in a single append-only log, {@code keystore.log}, in the
+ * directory given to the factory. The log starts with a header made of the magic number {@code VRKS} and a version, followed
+ * by records. Each record is checked by a CRC-32, and each transaction ends with a commit record, so that records torn
+ * by a crash are detected and discarded when the log is opened.
+ * <p>
+ * The log is mapped in memory, and indexed by alias and by name when it is opened: lookups never access the disk.
+ * The file is preallocated with zeros up to twice the size of the log, so that it is only mapped again when it doubles.
+ * Replaced and deleted entries are removed by compacting the log into {@code keystore.log.compact}, which then
+ * atomically replaces the log. Mappings are released explicitly before the file is replaced, as Windows forbids
+ * replacing a mapped file.
+ * <p>
+ * <b>Improving Security</b>
+ * <p>
+ * Keys are stored ciphered, as in any DAO, but the log must only be readable by the user running the application.
+ * A single process can use the log at a time: the directory is locked by {@code keystore.lock}.
+ */
+package com.vaderetrosecure.keystore.dao.file;
@@ -0,0 +1,14 @@
+package com.vaderetrosecure.keystore.dao.file;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.junit.runners.Suite.SuiteClasses;
+
+@RunWith(Suite.class)
+@SuiteClasses({
+    FileKeyStoreDAOTest.class,
+    FileKeyStoreDAOFactoryTest.class
+})
+public class AllTests
+{
+}
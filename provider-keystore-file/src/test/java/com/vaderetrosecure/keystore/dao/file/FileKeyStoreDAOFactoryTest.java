@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.file;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+
+/**
+ *
+ */
+public class FileKeyStoreDAOFactoryTest
+{
+    @Test
+    public void testInit() throws KeyStoreDAOException
+    {
+        FileKeyStoreDAOFactory daoFactory = new FileKeyStoreDAOFactory();
+        daoFactory.init();
+
+        FileKeyStoreDAO dao = (FileKeyStoreDAO) daoFactory.getKeyStoreDAO();
+        Assert.assertNotNull(dao);
+        try
+        {
+            dao.checkDAOStructure();
+            Assert.assertNotNull(dao.getAliases());
+        }
+        finally
+        {
+            dao.close();
+        }
+    }
+}
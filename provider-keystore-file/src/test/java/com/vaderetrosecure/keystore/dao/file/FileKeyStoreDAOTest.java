@@ -0,0 +1,280 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vaderetrosecure.keystore.dao.CertificateData;
+import com.vaderetrosecure.keystore.dao.IntegrityData;
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
+import com.vaderetrosecure.keystore.dao.LockedKeyProtection;
+
+/**
+ *
+ */
+public class FileKeyStoreDAOTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private FileKeyStoreDAO dao;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = folder.getRoot().toPath();
+        dao = new FileKeyStoreDAO(directory, 0.5, 4096);
+        dao.open();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        dao.close();
+    }
+
+    @Test
+    public void testSetAndGetEntry() throws Exception
+    {
+        Assert.assertNull(dao.getEntry("alias"));
+        dao.setEntry(createEntry("alias", "RSA", "www.example.com", "example.com"));
+        dao.setEntry(new KeyStoreEntry("trusted", new Date(1000L), KeyStoreEntryType.TRUSTED_CERTIFICATE, null, new byte[] { 4, 5 }, null, Collections.emptyList(), Collections.emptyList()));
+
+        checkEntry(dao.getEntry("alias"), "alias", "RSA", "www.example.com", "example.com");
+        KeyStoreEntry trusted = dao.getEntry("trusted");
+        Assert.assertEquals(KeyStoreEntryType.TRUSTED_CERTIFICATE, trusted.getEntryType());
+        Assert.assertNull(trusted.getAlgorithm());
+        Assert.assertNull(trusted.getLockedKeyProtection());
+        Assert.assertArrayEquals(new byte[] { 4, 5 }, trusted.getEntryData());
+        Assert.assertEquals(2, dao.countEntries());
+        Assert.assertEquals(Arrays.asList("alias", "trusted"), dao.getAliases());
+        Assert.assertEquals(Collections.singletonList("alias"), dao.getAliases("RSA"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("www.example.com", "example.com")), new HashSet<>(dao.getNames()));
+
+        // entries survive a restart
+        dao.close();
+        dao.open();
+        checkEntry(dao.getEntry("alias"), "alias", "RSA", "www.example.com", "example.com");
+        Assert.assertEquals(2, dao.countEntries());
+        Assert.assertEquals(2L, dao.getGeneration());
+    }
+
+    @Test
+    public void testGetEntries() throws Exception
+    {
+        dao.setEntries(Arrays.asList(createEntry("alias-1", "RSA", "www.example.com", "example.com"), createEntry("alias-2", "EC", "example.com")));
+
+        Assert.assertEquals(2, dao.getEntries("example.com").size());
+        List<KeyStoreEntry> entries = dao.getEntries("www.example.com");
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals("alias-1", entries.get(0).getAlias());
+        Assert.assertTrue(dao.getEntries("unknown.example.com").isEmpty());
+
+        // a replaced entry is no longer found by its previous names
+        dao.setEntry(createEntry("alias-1", "RSA", "mail.example.com"));
+        Assert.assertTrue(dao.getEntries("www.example.com").isEmpty());
+        Assert.assertEquals(1, dao.getEntries("mail.example.com").size());
+        Assert.assertEquals(2, dao.getAllEntries().size());
+    }
+
+    @Test
+    public void testDeleteEntries() throws Exception
+    {
+        KeyStoreEntry kse1 = createEntry("alias-1", "RSA", "www.example.com");
+        KeyStoreEntry kse2 = createEntry("alias-2", "RSA", "www.example.com");
+        dao.setEntries(Arrays.asList(kse1, kse2));
+        Assert.assertEquals(1L, dao.getGeneration());
+
+        dao.deleteEntry(kse1);
+        Assert.assertNull(dao.getEntry("alias-1"));
+        Assert.assertEquals(1, dao.getEntries("www.example.com").size());
+        Assert.assertEquals(2L, dao.getGeneration());
+
+        dao.deleteEntries(Collections.singletonList(kse2));
+        Assert.assertEquals(0, dao.countEntries());
+        Assert.assertTrue(dao.getEntries("www.example.com").isEmpty());
+
+        dao.close();
+        dao.open();
+        Assert.assertEquals(0, dao.countEntries());
+        Assert.assertEquals(3L, dao.getGeneration());
+    }
+
+    @Test
+    public void testIntegrityData() throws Exception
+    {
+        Assert.assertNull(dao.getIntegrityData());
+        dao.setIntegrityData(new IntegrityData(new byte[] { 1 }, new byte[] { 2 }, new byte[] { 3 }, new byte[] { 4 }));
+        dao.setIntegrityData(new IntegrityData(new byte[] { 5 }, new byte[] { 6 }, new byte[] { 7 }, new byte[] { 8 }));
+
+        dao.close();
+        dao.open();
+        IntegrityData id = dao.getIntegrityData();
+        Assert.assertArrayEquals(new byte[] { 5 }, id.getSalt());
+        Assert.assertArrayEquals(new byte[] { 6 }, id.getIV());
+        Assert.assertArrayEquals(new byte[] { 7 }, id.getCipheredData());
+        Assert.assertArrayEquals(new byte[] { 8 }, id.getDataHash());
+    }
+
+    @Test
+    public void testTornTransactionIsDiscarded() throws Exception
+    {
+        dao.setEntry(createEntry("alias-1", "RSA", "www.example.com"));
+        long committedSize = dao.getLogSize();
+        dao.setEntries(Arrays.asList(createEntry("alias-2", "RSA", "www.example.com"), createEntry("alias-3", "RSA", "www.example.com")));
+        long writtenSize = dao.getLogSize();
+        dao.close();
+
+        // a crash in the middle of the second transaction, before the log was preallocated
+        Path logPath = directory.resolve(FileKeyStoreDAO.LOG_FILE_NAME);
+        truncate(logPath, writtenSize - 30);
+
+        dao.open();
+        Assert.assertEquals(Collections.singletonList("alias-1"), dao.getAliases());
+        Assert.assertEquals(1L, dao.getGeneration());
+        Assert.assertEquals(committedSize, dao.getLogSize());
+
+        // the log is appended after the last committed transaction
+        dao.setEntry(createEntry("alias-2", "RSA", "www.example.com"));
+        dao.close();
+        dao.open();
+        Assert.assertEquals(Arrays.asList("alias-1", "alias-2"), dao.getAliases());
+    }
+
+    @Test
+    public void testCorruptedRecordIsDiscarded() throws Exception
+    {
+        dao.setEntry(createEntry("alias-1", "RSA", "www.example.com"));
+        long committedSize = dao.getLogSize();
+        dao.setEntry(createEntry("alias-2", "RSA", "www.example.com"));
+        dao.close();
+
+        Path logPath = directory.resolve(FileKeyStoreDAO.LOG_FILE_NAME);
+        try (FileChannel fc = FileChannel.open(logPath, StandardOpenOption.WRITE))
+        {
+            fc.write(ByteBuffer.wrap(new byte[] { 0x7f }), committedSize + 40);
+        }
+
+        dao.open();
+        Assert.assertEquals(Collections.singletonList("alias-1"), dao.getAliases());
+    }
+
+    @Test
+    public void testLogIsPreallocated() throws Exception
+    {
+        Path logPath = directory.resolve(FileKeyStoreDAO.LOG_FILE_NAME);
+        long fileSize = Files.size(logPath);
+        Assert.assertTrue(fileSize > dao.getLogSize());
+
+        // appends are written in the preallocated space
+        for (int i = 0; i < 10; i++)
+            dao.setEntry(createEntry("alias-" + i, "RSA", "www.example.com"));
+        Assert.assertEquals(fileSize, Files.size(logPath));
+
+        // the file grows when the log does not fit anymore
+        byte[] certificate = new byte[64 * 1024];
+        for (int i = 0; dao.getLogSize() <= fileSize; i++)
+        {
+            KeyStoreEntry entry = createEntry("large-" + i, "RSA", "www.example.com");
+            entry.setCertificateChain(Collections.singletonList(new CertificateData(certificate)));
+            dao.setEntry(entry);
+        }
+        Assert.assertTrue(Files.size(logPath) >= 2 * fileSize);
+        checkEntry(dao.getEntry("alias-1"), "alias-1", "RSA", "www.example.com");
+
+        dao.close();
+        dao.open();
+        checkEntry(dao.getEntry("alias-9"), "alias-9", "RSA", "www.example.com");
+        Assert.assertArrayEquals(certificate, dao.getEntry("large-0").getCertificateChain().get(0).getEncodedCertificate());
+    }
+
+    @Test
+    public void testCompaction() throws Exception
+    {
+        for (int i = 0; i < 50; i++)
+            dao.setEntry(createEntry("alias-" + (i % 2), "RSA", "www.example.com"));
+        dao.setIntegrityData(new IntegrityData(new byte[] { 1 }, new byte[] { 2 }, new byte[] { 3 }, new byte[] { 4 }));
+
+        // only 2 entries are live: the log is compacted as it grows
+        Assert.assertTrue(dao.getLogSize() < 4096);
+        Assert.assertFalse(Files.exists(directory.resolve(FileKeyStoreDAO.COMPACTION_FILE_NAME)));
+        Assert.assertEquals(2, dao.getEntries("www.example.com").size());
+        checkEntry(dao.getEntry("alias-1"), "alias-1", "RSA", "www.example.com");
+        Assert.assertEquals(51L, dao.getGeneration());
+
+        dao.close();
+        dao.open();
+        Assert.assertEquals(Arrays.asList("alias-0", "alias-1"), dao.getAliases());
+        Assert.assertArrayEquals(new byte[] { 1 }, dao.getIntegrityData().getSalt());
+        Assert.assertEquals(51L, dao.getGeneration());
+    }
+
+    @Test
+    public void testInterruptedCompactionIsIgnored() throws Exception
+    {
+        dao.setEntry(createEntry("alias-1", "RSA", "www.example.com"));
+        dao.close();
+        Files.write(directory.resolve(FileKeyStoreDAO.COMPACTION_FILE_NAME), new byte[] { 1, 2, 3 });
+
+        dao.open();
+        Assert.assertFalse(Files.exists(directory.resolve(FileKeyStoreDAO.COMPACTION_FILE_NAME)));
+        Assert.assertNotNull(dao.getEntry("alias-1"));
+    }
+
+    @Test(expected = KeyStoreDAOException.class)
+    public void testDirectoryIsLocked() throws Exception
+    {
+        new FileKeyStoreDAO(directory, 0.5, 4096).open();
+    }
+
+    private static KeyStoreEntry createEntry(String alias, String algorithm, String... names)
+    {
+        return new KeyStoreEntry(alias, new Date(1000L), KeyStoreEntryType.PRIVATE_KEY, algorithm, new byte[] { 1, 2, 3 },
+                new LockedKeyProtection(new byte[] { 4, 5 }, new byte[] { 6, 7 }),
+                Arrays.asList(new CertificateData(new byte[] { 8 }), new CertificateData(new byte[] { 9 })), Arrays.asList(names));
+    }
+
+    private static void checkEntry(KeyStoreEntry kse, String alias, String algorithm, String... names)
+    {
+        Assert.assertNotNull(kse);
+        Assert.assertEquals(alias, kse.getAlias());
+        Assert.assertEquals(algorithm, kse.getAlgorithm());
+        Assert.assertEquals(new Date(1000L), kse.getCreationDate());
+        Assert.assertEquals(KeyStoreEntryType.PRIVATE_KEY, kse.getEntryType());
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, kse.getEntryData());
+        Assert.assertArrayEquals(new byte[] { 4, 5 }, kse.getLockedKeyProtection().getCipheredKey());
+        Assert.assertArrayEquals(new byte[] { 6, 7 }, kse.getLockedKeyProtection().getIV());
+        Assert.assertEquals(2, kse.getCertificateChain().size());
+        Assert.assertArrayEquals(new byte[] { 9 }, kse.getCertificateChain().get(1).getEncodedCertificate());
+        Assert.assertEquals(Arrays.asList(names), kse.getNames());
+    }
+
+    private static void truncate(Path path, long size) throws IOException
+    {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE))
+        {
+            fc.truncate(size);
+        }
+    }
+}
@@ -7,16 +7,13 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-import javax.xml.bind.DatatypeConverter;
 
 import org.apache.log4j.Logger;
 
 /**
  * This class provides helper methods to encode/decode data to or from the store.
- * It is useful for storing arrays of bytes from {@code KeyStoreEntry} objects as strings in the database. 
+ * It is useful for storing arrays of bytes from {@code KeyStoreEntry} objects as strings in the database.<br>
+ * Hashes are computed with a digest per thread, so that concurrent lookups never wait for each other.
  * 
  * @see com.vaderetrosecure.keystore.dao.KeyStoreEntry
  */
@@ -24,20 +21,21 @@ final class EncodingTools
 {
     private static final Logger LOG = Logger.getLogger(EncodingTools.class);
 
-    private static final Lock LOCK = new ReentrantLock();
-    private static MessageDigest SHA2_DIGEST;
-    static
-    {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> SHA2_DIGEST = ThreadLocal.withInitial(() -> {
         try
         {
-            SHA2_DIGEST = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         }
         catch (NoSuchAlgorithmException e)
         {
+            // every Java platform must support SHA-256
             LOG.debug(e, e);
             LOG.fatal(e);
+            throw new IllegalStateException(e);
         }
-    }
+    });
     
     private EncodingTools()
     {
@@ -82,7 +80,14 @@ final class EncodingTools
         if (data == null)
             return "";
         
-        return DatatypeConverter.printHexBinary(data).toLowerCase();
+        char[] hex = new char[data.length * 2];
+        for (int i = 0 ; i < data.length ; i++)
+        {
+            hex[2 * i] = HEX_DIGITS[(data[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = HEX_DIGITS[data[i] & 0x0f];
+        }
+        
+        return new String(hex);
     }
     
     /**
@@ -90,13 +95,28 @@ final class EncodingTools
      * 
      * @param data the hexadecimal encoded string.
      * @return an array of bytes.
+     * @throws IllegalArgumentException if the string is not a valid hexadecimal string.
      */
     public static byte[] hexStringDecode(String data)
     {
         if (data == null)
             return "".getBytes(StandardCharsets.US_ASCII);
         
-        return DatatypeConverter.parseHexBinary(data);
+        if ((data.length() % 2) != 0)
+            throw new IllegalArgumentException("hexadecimal string must have an even length: " + data);
+        
+        byte[] bytes = new byte[data.length() / 2];
+        for (int i = 0 ; i < bytes.length ; i++)
+        {
+            int high = Character.digit(data.charAt(2 * i), 16);
+            int low = Character.digit(data.charAt(2 * i + 1), 16);
+            if ((high < 0) || (low < 0))
+                throw new IllegalArgumentException("invalid hexadecimal string: " + data);
+            
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        
+        return bytes;
     }
     
     /**
@@ -108,14 +128,18 @@ final class EncodingTools
      */
     public static String toSHA2(String data)
     {
-        LOCK.lock();
-        try
-        {
-            return DatatypeConverter.printHexBinary(SHA2_DIGEST.digest(data.getBytes(StandardCharsets.UTF_8))).toLowerCase();
-        }
-        finally
-        {
-            LOCK.unlock();
-        }
+        return hexStringEncode(toBinarySHA2(data));
+    }
+
+    /**
+     * Get the SHA-256 hash of a string, as an array of 32 bytes.
+     * It is the form used by binary hash columns.
+     * 
+     * @param data the string to hash.
+     * @return the SHA-256 hash.
+     */
+    public static byte[] toBinarySHA2(String data)
+    {
+        return SHA2_DIGEST.get().digest(data.getBytes(StandardCharsets.UTF_8));
     }
 }
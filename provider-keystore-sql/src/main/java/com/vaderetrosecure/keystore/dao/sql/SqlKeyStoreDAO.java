@@ -3,6 +3,7 @@
  */
 package com.vaderetrosecure.keystore.dao.sql;
 
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
@@ -10,10 +11,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -24,13 +28,21 @@ import com.vaderetrosecure.keystore.dao.IntegrityData;
 import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
 import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
 import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryChange;
 import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
 import com.vaderetrosecure.keystore.dao.LockedKeyProtection;
+import com.vaderetrosecure.util.NameFilter;
 
 /**
  * This class implements the DAO backed by an SQL database.
  * Please, refer to the associated factory and the package documentation to know 
  * how to use it properly.
+ * <p>
+ * Optionally, a {@link NameFilter} of all names is built by {@link #checkDAOStructure()}, so that {@link #getEntries(String)}
+ * rejects most unknown names in memory, without opening a connection. Names set through this object are added to the
+ * filter at once. Names set by other processes are seen once the refresh period elapsed: the filter is then rebuilt in the
+ * background if the generation of the store changed, while lookups keep using the previous one. A refresh period of 0
+ * disables refreshing.
  * 
  * @see SqlKeyStoreDAOFactory
  * @see com.vaderetrosecure.keystore.dao.sql
@@ -39,25 +51,46 @@ class SqlKeyStoreDAO implements KeyStoreDAO
 {
     private static final Logger LOG = Logger.getLogger(SqlKeyStoreDAO.class);
     
+    private static final int BATCH_SIZE = 1000;
+    
     private static final String SQL_DELETE_FROM = "delete from ";
     private static final String SQL_INSERT_INTO = "insert into ";
     private static final String SQL_SELECT_FROM = "select * from ";
     private static final String SQL_WHERE_ALIAS_HASH = " where alias_hash=?";
+    private static final String SQL_INCREMENT_GENERATION = "update " + StructureManager.GENERATION_TABLE + " set counter=counter+1 where id=1";
+    private static final String SQL_WHERE_ALIAS_HASH_FROM_NAME_HASH = " where alias_hash in (select alias_hash from " + StructureManager.NAMES_TABLE + " where name_hash=?)";
 
     private DataSource dataSource;
     private StructureManager structureManager;
+    private final NameFilter nameFilter;
 
     /**
-     * Construct a new {@code SqlKeyStoreDAO} object.
+     * Construct a new {@code SqlKeyStoreDAO} object, without name filter.
      * A {@code DataSource} object is given to manage SQL connections.
      * 
      * @param dataSource the DataSource object.
      * @param structureManager an object that manages the underlying structure.
      */
     SqlKeyStoreDAO(DataSource dataSource, StructureManager structureManager)
+    {
+        this(dataSource, structureManager, false, 0L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Construct a new {@code SqlKeyStoreDAO} object.
+     * A {@code DataSource} object is given to manage SQL connections.
+     * 
+     * @param dataSource the DataSource object.
+     * @param structureManager an object that manages the underlying structure.
+     * @param nameFilterEnabled true to reject unknown names with a Bloom filter.
+     * @param nameFilterRefreshPeriod the period of the checks for names set by other processes, or 0 to never check.
+     * @param unit the unit of {@code nameFilterRefreshPeriod}.
+     */
+    SqlKeyStoreDAO(DataSource dataSource, StructureManager structureManager, boolean nameFilterEnabled, long nameFilterRefreshPeriod, TimeUnit unit)
     {
         this.dataSource = dataSource;
         this.structureManager = structureManager;
+        this.nameFilter = nameFilterEnabled ? new NameFilter(this::getGeneration, this::getNames, nameFilterRefreshPeriod, unit) : null;
     }
 
     /**
@@ -80,6 +113,26 @@ class SqlKeyStoreDAO implements KeyStoreDAO
         structureManager.manageEntriesTable();
         structureManager.manageCertificateChainsTable();
         structureManager.manageNamesTable();
+        structureManager.manageGenerationTable();
+        structureManager.manageChangesTable();
+
+        if (nameFilter == null)
+            return;
+
+        try
+        {
+            nameFilter.build();
+        }
+        catch (KeyStoreDAOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
     }
 
     @Override
@@ -185,7 +238,7 @@ class SqlKeyStoreDAO implements KeyStoreDAO
                 ps.executeUpdate();
             }
             
-            try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.INTEGRITY_TABLE + " (id,salt,iv,data,data_hash) value(?,?,?,?,?)"))
+            try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.INTEGRITY_TABLE + " (id,salt,iv,data,data_hash) values(?,?,?,?,?)"))
             {
                 ps.setLong(1, 1L);
                 ps.setString(2, EncodingTools.b64Encode(integrityData.getSalt()));
@@ -211,15 +264,90 @@ class SqlKeyStoreDAO implements KeyStoreDAO
     {
         try (Connection conn = dataSource.getConnection())
         {
-            String aliasHash = EncodingTools.toSHA2(alias);
-            KeyStoreEntry kse = getKeyStoreEntryObject(conn, aliasHash);
-            if (kse != null)
+            List<KeyStoreEntry> entries = getKeyStoreEntryObjects(conn, SQL_WHERE_ALIAS_HASH, EncodingTools.toBinarySHA2(alias));
+            return entries.isEmpty() ? null : entries.get(0);
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+
+    @Override
+    public List<KeyStoreEntry> getEntries(String name) throws KeyStoreDAOException
+    {
+        // most unknown names, such as the random names sent by scanners, are rejected without opening a connection
+        if (!mightContainName(name))
+            return Collections.emptyList();
+
+        try (Connection conn = dataSource.getConnection())
+        {
+            return getKeyStoreEntryObjects(conn, SQL_WHERE_ALIAS_HASH_FROM_NAME_HASH, EncodingTools.toBinarySHA2(name));
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+
+    @Override
+    public List<KeyStoreEntry> getAllEntries() throws KeyStoreDAOException
+    {
+        try (Connection conn = dataSource.getConnection())
+        {
+            return getKeyStoreEntryObjects(conn, "", null);
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The key data, key protections and certificate chains are not read: it takes one query for the entries, and one for the names.
+     */
+    @Override
+    public List<KeyStoreEntry> getAllEntriesMetadata() throws KeyStoreDAOException
+    {
+        try (Connection conn = dataSource.getConnection())
+        {
+            Map<ByteBuffer, KeyStoreEntry> entries = new LinkedHashMap<>();
+            try (PreparedStatement ps = conn.prepareStatement("select alias_hash,alias,creation_date,entry_type,algorithm from " + StructureManager.ENTRIES_TABLE); ResultSet rs = ps.executeQuery())
             {
-                kse.setCertificateChain(getCertificateChainObjectList(conn, aliasHash));
-                kse.setNames(getNameObjectList(conn, aliasHash));
+                while (rs.next())
+                    entries.put(toAliasHashKey(rs), new KeyStoreEntry(
+                            rs.getString("alias"), 
+                            Date.from(Instant.ofEpochMilli(rs.getLong("creation_date"))), 
+                            KeyStoreEntryType.values()[rs.getInt("entry_type")],
+                            rs.getString("algorithm"),
+                            null,
+                            null,
+                            Collections.emptyList(),
+                            new ArrayList<>()
+                            ));
             }
-            
-            return kse;
+
+            if (entries.isEmpty())
+                return Collections.emptyList();
+
+            try (PreparedStatement ps = conn.prepareStatement("select alias_hash,name from " + StructureManager.NAMES_TABLE); ResultSet rs = ps.executeQuery())
+            {
+                while (rs.next())
+                {
+                    KeyStoreEntry kse = entries.get(toAliasHashKey(rs));
+                    if (kse != null)
+                        kse.getNames().add(rs.getString("name"));
+                }
+            }
+
+            return new ArrayList<>(entries.values());
         }
         catch (SQLException e)
         {
@@ -229,23 +357,80 @@ class SqlKeyStoreDAO implements KeyStoreDAO
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * Names are read from the names table only.
+     */
     @Override
-    public List<KeyStoreEntry> getEntries(String name) throws KeyStoreDAOException
+    public List<String> getNames() throws KeyStoreDAOException
+    {
+        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement("select distinct name from " + StructureManager.NAMES_TABLE); ResultSet rs = ps.executeQuery())
+        {
+            List<String> names = new ArrayList<>();
+            while (rs.next())
+                names.add(rs.getString(1));
+            return names;
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+
+    @Override
+    public long getGeneration() throws KeyStoreDAOException
     {
-        List<KeyStoreEntry> entries = new ArrayList<>();
         try (Connection conn = dataSource.getConnection())
         {
-            String nameHash = EncodingTools.toSHA2(name);
-            Set<String> aliasHashes = getAliasHashesFromNameHash(conn, nameHash);
-            for (String aliasHash : aliasHashes)
+            return getGeneration(conn);
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+
+    @Override
+    public long getLastChangeSequence() throws KeyStoreDAOException
+    {
+        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement("select max(sequence) from " + StructureManager.CHANGES_TABLE); ResultSet rs = ps.executeQuery())
+        {
+            // the maximum of an empty table is null, read as 0
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+
+    @Override
+    public List<KeyStoreEntryChange> getChangesSince(long sequence) throws KeyStoreDAOException
+    {
+        List<KeyStoreEntryChange> changes = new ArrayList<>();
+        // the last known change is read too: if it was deleted, the changes following it may have been deleted as well
+        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement("select sequence,alias,operation from " + StructureManager.CHANGES_TABLE + " where sequence>=? order by sequence"))
+        {
+            ps.setLong(1, sequence);
+            try (ResultSet rs = ps.executeQuery())
             {
-                KeyStoreEntry kse = getKeyStoreEntryObject(conn, aliasHash);
-                if (kse != null)
+                boolean found = sequence == 0L;
+                while (rs.next())
                 {
-                    kse.setCertificateChain(getCertificateChainObjectList(conn, aliasHash));
-                    kse.setNames(getNameObjectList(conn, aliasHash));
-                    entries.add(kse);
+                    long s = rs.getLong("sequence");
+                    if (s == sequence)
+                        found = true;
+                    else
+                        changes.add(new KeyStoreEntryChange(s, rs.getString("alias"), KeyStoreEntryChange.Operation.values()[rs.getInt("operation")]));
                 }
+
+                return found ? changes : null;
             }
         }
         catch (SQLException e)
@@ -254,8 +439,6 @@ class SqlKeyStoreDAO implements KeyStoreDAO
             LOG.error(e);
             throw new KeyStoreDAOException(e);
         }
-        
-        return entries;
     }
 
     @Override
@@ -265,14 +448,57 @@ class SqlKeyStoreDAO implements KeyStoreDAO
         {
             boolean autoCom = conn.getAutoCommit();
             conn.setAutoCommit(false);
+            // the generation row is locked first: concurrent writers are serialized before their changes get a sequence number,
+            // so that changes are committed in sequence order and a reader never skips one committed later
+            incrementGeneration(conn);
+
+            List<KeyStoreEntry> entries = Collections.singletonList(entry);
+            List<byte[]> aliasHashes = toAliasHashes(entries);
+            setKeyStoreEntryObjects(conn, aliasHashes, entries);
+            setCertificateChainObjectLists(conn, aliasHashes, entries);
+            setNameObjectLists(conn, aliasHashes, entries);
+            logChanges(conn, entries, KeyStoreEntryChange.Operation.SET);
+            
+            conn.commit();
+            conn.setAutoCommit(autoCom);
+            addNames(entries);
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
 
-            String aliasHash = EncodingTools.toSHA2(entry.getAlias());
-            setKeyStoreEntryObject(conn, aliasHash, entry);
-            setCertificateChainObjectList(conn, aliasHash, entry.getCertificateChain());
-            setNameObjectList(conn, aliasHash, entry.getNames());
+    @Override
+    public void setEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
+    {
+        if (entries.isEmpty())
+            return;
+
+        try (Connection conn = dataSource.getConnection())
+        {
+            boolean autoCom = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            // the generation row is locked first: concurrent writers are serialized before their changes get a sequence number,
+            // so that changes are committed in sequence order and a reader never skips one committed later
+            incrementGeneration(conn);
+
+            // existing entries are replaced: their rows are deleted first, in the same transaction
+            List<KeyStoreEntry> l = new ArrayList<>(entries);
+            List<byte[]> aliasHashes = toAliasHashes(l);
+            deleteObjects(conn, StructureManager.ENTRIES_TABLE, aliasHashes);
+            deleteObjects(conn, StructureManager.CERTIFICATE_CHAINS_TABLE, aliasHashes);
+            deleteObjects(conn, StructureManager.NAMES_TABLE, aliasHashes);
+            setKeyStoreEntryObjects(conn, aliasHashes, l);
+            setCertificateChainObjectLists(conn, aliasHashes, l);
+            setNameObjectLists(conn, aliasHashes, l);
+            logChanges(conn, l, KeyStoreEntryChange.Operation.SET);
             
             conn.commit();
             conn.setAutoCommit(autoCom);
+            addNames(l);
         }
         catch (SQLException e)
         {
@@ -290,10 +516,7 @@ class SqlKeyStoreDAO implements KeyStoreDAO
             boolean autoCom = conn.getAutoCommit();
             conn.setAutoCommit(false);
 
-            String aliasHash = EncodingTools.toSHA2(entry.getAlias());
-            deleteKeyStoreEntryObject(conn, aliasHash);
-            deleteCertificateChainObjectList(conn, aliasHash);
-            deleteNameObjectList(conn, aliasHash);
+            deleteKeyStoreEntryObjects(conn, Collections.singletonList(entry));
             
             conn.commit();
             conn.setAutoCommit(autoCom);
@@ -306,165 +529,275 @@ class SqlKeyStoreDAO implements KeyStoreDAO
         }
     }
 
-    private KeyStoreEntry getKeyStoreEntryObject(Connection conn, String aliasHash) throws SQLException
+    @Override
+    public void deleteEntries(Collection<KeyStoreEntry> entries) throws KeyStoreDAOException
     {
-        KeyStoreEntry kse = null;
-        try (PreparedStatement ps = conn.prepareStatement(SQL_SELECT_FROM + StructureManager.ENTRIES_TABLE + SQL_WHERE_ALIAS_HASH))
+        if (entries.isEmpty())
+            return;
+
+        try (Connection conn = dataSource.getConnection())
         {
-            ps.setString(1, aliasHash);
-            try (ResultSet rs = ps.executeQuery())
-            {
-                if (!rs.next())
-                    return null;
-
-                LockedKeyProtection lkp = null;
-                String protectKey = rs.getString("protection_key");
-                String protectParam = rs.getString("protection_param");
-                if ((protectKey != null) && (protectParam != null))
-                    lkp = new LockedKeyProtection(EncodingTools.b64Decode(protectKey), EncodingTools.b64Decode(protectParam));
-                kse = new KeyStoreEntry(
-                        rs.getString("alias"), 
-                        Date.from(Instant.ofEpochMilli(rs.getLong("creation_date"))), 
-                        KeyStoreEntryType.values()[rs.getInt("entry_type")],
-                        rs.getString("algorithm"),
-                        EncodingTools.b64Decode(rs.getString("data")),
-                        lkp,
-                        Collections.emptyList(),
-                        Collections.emptyList()
-                        );
-            }
+            boolean autoCom = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+
+            deleteKeyStoreEntryObjects(conn, new ArrayList<>(entries));
+            
+            conn.commit();
+            conn.setAutoCommit(autoCom);
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
         }
-        
-        return kse;
     }
 
-    private List<CertificateData> getCertificateChainObjectList(Connection conn, String aliasHash) throws SQLException
+    /**
+     * Load the entries selected by a condition on alias hashes, with their certificate chains and names.
+     * Whatever the number of entries, it takes two queries: one for the entries, and one for both
+     * the certificate chains and the names. An empty condition without parameter loads all entries.
+     */
+    private List<KeyStoreEntry> getKeyStoreEntryObjects(Connection conn, String aliasHashCondition, byte[] parameter) throws SQLException
     {
-        List<CertificateData> certChain = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(SQL_SELECT_FROM + StructureManager.CERTIFICATE_CHAINS_TABLE + SQL_WHERE_ALIAS_HASH + " order by rank"))
+        Map<ByteBuffer, KeyStoreEntry> entries = new LinkedHashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(SQL_SELECT_FROM + StructureManager.ENTRIES_TABLE + aliasHashCondition))
         {
-            ps.setString(1, aliasHash);
+            if (parameter != null)
+                ps.setBytes(1, parameter);
             try (ResultSet rs = ps.executeQuery())
             {
                 while (rs.next())
-                {
-                    certChain.add(new CertificateData(EncodingTools.b64Decode(rs.getString("data"))));
-                }
+                    entries.put(toAliasHashKey(rs), getKeyStoreEntryObject(rs));
             }
         }
-        
-        return certChain;
-    }
 
-    private List<String> getNameObjectList(Connection conn, String aliasHash) throws SQLException
-    {
-        List<String> names = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(SQL_SELECT_FROM + StructureManager.NAMES_TABLE + SQL_WHERE_ALIAS_HASH))
+        if (entries.isEmpty())
+            return Collections.emptyList();
+
+        Map<ByteBuffer, List<CertificateData>> certChains = new HashMap<>();
+        Map<ByteBuffer, List<String>> names = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "select alias_hash,0 as kind,rank,data,null as name from " + StructureManager.CERTIFICATE_CHAINS_TABLE + aliasHashCondition
+                + " union all select alias_hash,1 as kind,0 as rank,null as data,name from " + StructureManager.NAMES_TABLE + aliasHashCondition
+                + " order by alias_hash,kind,rank"))
         {
-            ps.setString(1, aliasHash);
+            if (parameter != null)
+            {
+                ps.setBytes(1, parameter);
+                ps.setBytes(2, parameter);
+            }
             try (ResultSet rs = ps.executeQuery())
             {
                 while (rs.next())
                 {
-                    names.add(rs.getString("name"));
+                    ByteBuffer aliasHash = toAliasHashKey(rs);
+                    if (rs.getInt("kind") == 0)
+                        certChains.computeIfAbsent(aliasHash, k -> new ArrayList<>()).add(new CertificateData(rs.getBytes("data")));
+                    else
+                        names.computeIfAbsent(aliasHash, k -> new ArrayList<>()).add(rs.getString("name"));
                 }
             }
         }
-        
-        return names;
+
+        for (Map.Entry<ByteBuffer, KeyStoreEntry> e : entries.entrySet())
+        {
+            e.getValue().setCertificateChain(certChains.getOrDefault(e.getKey(), Collections.emptyList()));
+            e.getValue().setNames(names.getOrDefault(e.getKey(), Collections.emptyList()));
+        }
+
+        return new ArrayList<>(entries.values());
+    }
+
+    private KeyStoreEntry getKeyStoreEntryObject(ResultSet rs) throws SQLException
+    {
+        LockedKeyProtection lkp = null;
+        byte[] protectKey = rs.getBytes("protection_key");
+        byte[] protectParam = rs.getBytes("protection_param");
+        if ((protectKey != null) && (protectParam != null))
+            lkp = new LockedKeyProtection(protectKey, protectParam);
+        return new KeyStoreEntry(
+                rs.getString("alias"), 
+                Date.from(Instant.ofEpochMilli(rs.getLong("creation_date"))), 
+                KeyStoreEntryType.values()[rs.getInt("entry_type")],
+                rs.getString("algorithm"),
+                rs.getBytes("data"),
+                lkp,
+                Collections.emptyList(),
+                Collections.emptyList()
+                );
     }
 
-    private Set<String> getAliasHashesFromNameHash(Connection conn, String nameHash) throws SQLException
+    private ByteBuffer toAliasHashKey(ResultSet rs) throws SQLException
     {
-        Set<String> aliasHashes = new HashSet<>();
-        try (PreparedStatement ps = conn.prepareStatement(SQL_SELECT_FROM + StructureManager.NAMES_TABLE + " where name_hash=?"))
+        // arrays do not implement equals, unlike the buffers wrapping them
+        byte[] aliasHash = rs.getBytes("alias_hash");
+        return aliasHash == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(aliasHash);
+    }
+
+    private void deleteKeyStoreEntryObjects(Connection conn, List<KeyStoreEntry> entries) throws SQLException
+    {
+        // the generation row is locked first, as when entries are set
+        incrementGeneration(conn);
+        List<byte[]> aliasHashes = toAliasHashes(entries);
+        deleteObjects(conn, StructureManager.ENTRIES_TABLE, aliasHashes);
+        deleteObjects(conn, StructureManager.CERTIFICATE_CHAINS_TABLE, aliasHashes);
+        // deleted names stay in the name filter until it is rebuilt: they are only false positives
+        deleteObjects(conn, StructureManager.NAMES_TABLE, aliasHashes);
+        logChanges(conn, entries, KeyStoreEntryChange.Operation.DELETE);
+    }
+
+    private void setKeyStoreEntryObjects(Connection conn, List<byte[]> aliasHashes, List<KeyStoreEntry> entries) throws SQLException
+    {
+        try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.ENTRIES_TABLE + " (alias_hash,entry_type,alias,creation_date,algorithm,data,protection_key,protection_param) values(?,?,?,?,?,?,?,?)"))
         {
-            ps.setString(1, nameHash);
-            try (ResultSet rs = ps.executeQuery())
+            int count = 0;
+            for (int i = 0; i < entries.size(); i++)
             {
-                while (rs.next())
-                {
-                    aliasHashes.add(rs.getString("alias_hash"));
-                }
+                KeyStoreEntry kse = entries.get(i);
+                ps.setBytes(1, aliasHashes.get(i));
+                ps.setInt(2, kse.getEntryType().ordinal());
+                ps.setString(3, kse.getAlias());
+                ps.setLong(4, kse.getCreationDate().getTime());
+                ps.setString(5, kse.getAlgorithm());
+                ps.setBytes(6, kse.getEntryData());
+                ps.setBytes(7, kse.getLockedKeyProtection().getCipheredKey());
+                ps.setBytes(8, kse.getLockedKeyProtection().getIV());
+                count = addBatch(ps, count);
             }
+            executeBatch(ps, count);
         }
-        
-        return aliasHashes;
     }
 
-    private void setKeyStoreEntryObject(Connection conn, String aliasHash, KeyStoreEntry kse) throws SQLException
+    private void setCertificateChainObjectLists(Connection conn, List<byte[]> aliasHashes, List<KeyStoreEntry> entries) throws SQLException
     {
-        try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.ENTRIES_TABLE + " (alias_hash,entry_type,alias,creation_date,algorithm,data,protection_key,protection_param) value(?,?,?,?,?,?,?,?)"))
+        try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.CERTIFICATE_CHAINS_TABLE + " (alias_hash,rank,data) values(?,?,?)"))
         {
-            ps.setString(1, aliasHash);
-            ps.setInt(2, kse.getEntryType().ordinal());
-            ps.setString(3, kse.getAlias());
-            ps.setLong(4, kse.getCreationDate().getTime());
-            ps.setString(5, kse.getAlgorithm());
-            ps.setString(6, EncodingTools.b64Encode(kse.getEntryData()));
-            ps.setString(7, EncodingTools.b64Encode(kse.getLockedKeyProtection().getCipheredKey()));
-            ps.setString(8, EncodingTools.b64Encode(kse.getLockedKeyProtection().getIV()));
-            
-            ps.executeUpdate();
+            int count = 0;
+            for (int i = 0; i < entries.size(); i++)
+            {
+                int ct = 0;
+                for (CertificateData cd : entries.get(i).getCertificateChain())
+                {
+                    ps.setBytes(1, aliasHashes.get(i));
+                    ps.setInt(2, ct);
+                    ps.setBytes(3, cd.getEncodedCertificate());
+                    count = addBatch(ps, count);
+                    ct++;
+                }
+            }
+            executeBatch(ps, count);
         }
     }
 
-    private void setCertificateChainObjectList(Connection conn, String aliasHash, List<CertificateData> certificateChain) throws SQLException
+    private void setNameObjectLists(Connection conn, List<byte[]> aliasHashes, List<KeyStoreEntry> entries) throws SQLException
     {
-        try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.CERTIFICATE_CHAINS_TABLE + " (alias_hash,rank,data) value(?,?,?)"))
+        // names are added to the filter before the commit, for the readers of the new entries, and after it, for a filter built meanwhile
+        addNames(entries);
+        try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.NAMES_TABLE + " (alias_hash,name_hash,name) values(?,?,?)"))
         {
-            int ct = 0;
-            for (CertificateData cd : certificateChain)
+            int count = 0;
+            for (int i = 0; i < entries.size(); i++)
             {
-                ps.setString(1, aliasHash);
-                ps.setInt(2, ct);
-                ps.setString(3, EncodingTools.b64Encode(cd.getEncodedCertificate()));
-                
-                ps.executeUpdate();
-                ct++;
+                for (String name : entries.get(i).getNames())
+                {
+                    ps.setBytes(1, aliasHashes.get(i));
+                    ps.setBytes(2, EncodingTools.toBinarySHA2(name));
+                    ps.setString(3, name);
+                    count = addBatch(ps, count);
+                }
             }
+            executeBatch(ps, count);
         }
     }
 
-    private void setNameObjectList(Connection conn, String aliasHash, List<String> names) throws SQLException
+    private void logChanges(Connection conn, List<KeyStoreEntry> entries, KeyStoreEntryChange.Operation operation) throws SQLException
     {
-        try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.NAMES_TABLE + " (alias_hash,name_hash,name) value(?,?,?)"))
+        try (PreparedStatement ps = conn.prepareStatement(SQL_INSERT_INTO + StructureManager.CHANGES_TABLE + " (alias,operation,change_date) values(?,?,?)"))
         {
-            for (String name : names)
+            long now = System.currentTimeMillis();
+            int count = 0;
+            for (KeyStoreEntry kse : entries)
             {
-                ps.setString(1, aliasHash);
-                ps.setString(2, EncodingTools.toSHA2(name));
-                ps.setString(3, name);
-    
-                ps.executeUpdate();
+                ps.setString(1, kse.getAlias());
+                ps.setInt(2, operation.ordinal());
+                ps.setLong(3, now);
+                count = addBatch(ps, count);
             }
+            executeBatch(ps, count);
         }
     }
 
-    private void deleteKeyStoreEntryObject(Connection conn, String aliasHash) throws SQLException
+    private long getGeneration(Connection conn) throws SQLException
     {
-        try (PreparedStatement ps = conn.prepareStatement(SQL_DELETE_FROM + StructureManager.ENTRIES_TABLE + SQL_WHERE_ALIAS_HASH))
+        try (PreparedStatement ps = conn.prepareStatement("select counter from " + StructureManager.GENERATION_TABLE + " where id=1"); ResultSet rs = ps.executeQuery())
         {
-            ps.setString(1, aliasHash);
-            ps.executeUpdate();
+            if (!rs.next())
+                return 0L;
+
+            return rs.getLong(1);
         }
     }
 
-    private void deleteCertificateChainObjectList(Connection conn, String aliasHash) throws SQLException
+    private boolean mightContainName(String name)
+    {
+        return (nameFilter == null) || nameFilter.mightContain(name);
+    }
+
+    private void addNames(List<KeyStoreEntry> entries)
     {
-        try (PreparedStatement ps = conn.prepareStatement(SQL_DELETE_FROM + StructureManager.CERTIFICATE_CHAINS_TABLE + SQL_WHERE_ALIAS_HASH))
+        if (nameFilter == null)
+            return;
+
+        for (KeyStoreEntry kse : entries)
+            nameFilter.put(kse.getNames());
+    }
+
+    private void incrementGeneration(Connection conn) throws SQLException
+    {
+        try (PreparedStatement ps = conn.prepareStatement(SQL_INCREMENT_GENERATION))
         {
-            ps.setString(1, aliasHash);
             ps.executeUpdate();
         }
     }
 
-    private void deleteNameObjectList(Connection conn, String aliasHash) throws SQLException
+    private void deleteObjects(Connection conn, String table, List<byte[]> aliasHashes) throws SQLException
     {
-        try (PreparedStatement ps = conn.prepareStatement(SQL_DELETE_FROM + StructureManager.NAMES_TABLE + SQL_WHERE_ALIAS_HASH))
+        try (PreparedStatement ps = conn.prepareStatement(SQL_DELETE_FROM + table + SQL_WHERE_ALIAS_HASH))
         {
-            ps.setString(1, aliasHash);
-            ps.executeUpdate();
+            int count = 0;
+            for (byte[] aliasHash : aliasHashes)
+            {
+                ps.setBytes(1, aliasHash);
+                count = addBatch(ps, count);
+            }
+            executeBatch(ps, count);
         }
     }
+
+    private static List<byte[]> toAliasHashes(List<KeyStoreEntry> entries)
+    {
+        List<byte[]> aliasHashes = new ArrayList<>(entries.size());
+        for (KeyStoreEntry kse : entries)
+            aliasHashes.add(EncodingTools.toBinarySHA2(kse.getAlias()));
+        return aliasHashes;
+    }
+
+    /**
+     * Add the current parameters to the batch of the statement, and execute it when it is full.
+     * Batches are bounded, so that the driver does not hold all rows of a large import in memory.
+     */
+    private static int addBatch(PreparedStatement ps, int count) throws SQLException
+    {
+        ps.addBatch();
+        if (++count % BATCH_SIZE == 0)
+            ps.executeBatch();
+        return count;
+    }
+
+    private static void executeBatch(PreparedStatement ps, int count) throws SQLException
+    {
+        if (count % BATCH_SIZE != 0)
+            ps.executeBatch();
+    }
 }
@@ -6,6 +6,7 @@ package com.vaderetrosecure.keystore.dao.sql;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -41,6 +42,12 @@ import com.vaderetrosecure.keystore.dao.KeyStoreDAOFactory;
  * <li>{@code user}: the user name to connect to the database</li>
  * <li>{@code password}: the password of the user.</li>
  * </ul>
+ * The following properties are optional:
+ * <ul>
+ * <li>{@code nameFilter}: true to reject unknown names in memory, with a Bloom filter of all names (default: false)</li>
+ * <li>{@code nameFilterRefreshPeriod}: the period in seconds of the checks for names set by other processes, made in the background (default: 60).
+ * 0 disables refreshing: names set by other processes are then rejected until the DAO is restarted.</li>
+ * </ul>
  * <p>
  * This implementation uses the <a href="https://commons.apache.org/proper/commons-dbcp/">Apache DBCP 2 component</a> to
  * create connection pools and {@code DataSource} objects. So, all configuration parameters defined 
@@ -69,9 +76,11 @@ public class SqlKeyStoreDAOFactory extends KeyStoreDAOFactory
         {
             Properties prop = loadProperties();
             DataSource dataSource = createDataSource(prop);
-            keyStoreDAO = new SqlKeyStoreDAO(dataSource, new StructureManager(dataSource));
+            keyStoreDAO = new SqlKeyStoreDAO(dataSource, new StructureManager(dataSource),
+                    Boolean.parseBoolean(prop.getProperty("nameFilter", "false")),
+                    Long.parseLong(prop.getProperty("nameFilterRefreshPeriod", "60")), TimeUnit.SECONDS);
         }
-        catch (ClassNotFoundException e)
+        catch (ClassNotFoundException | NumberFormatException e)
         {
             LOG.fatal(e, e);
             throw new KeyStoreDAOException(e);
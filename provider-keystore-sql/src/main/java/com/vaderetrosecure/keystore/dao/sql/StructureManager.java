@@ -17,7 +17,24 @@ import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
 
 /**
  * This class manages the structure of the store.
- * It is an helper for creating or updating tables if needed.
+ * It is an helper for creating or updating tables if needed.<br>
+ * Since version 2, entries, certificate chains and names store raw bytes in binary columns, and hashes as
+ * 32-byte binary values. Tables in version 1 stored them as Base64 and hexadecimal strings: they are
+ * migrated in place the first time the structure is checked. The migration alters the tables, so it is
+ * not transactional as a whole: the store must not be used while it runs. It runs step by step instead, and the
+ * version of a table being migrated is recorded as the opposite of the number of steps done, so that an interrupted
+ * migration resumes at the step that failed: each alteration can be run again, and each conversion of the values is
+ * committed with the number of steps done, so that values are never decoded twice.<br>
+ * The generation table holds a single counter, incremented by each modification of the entries. The changes table is
+ * an append-only log of the entries set or deleted, with a growing sequence number, read by caches and replicas to synchronize
+ * incrementally. Processes writing entries directly in the tables must do both in the same transaction, so that key managers
+ * pick up their modifications, and increment the generation first, so that changes are committed in sequence order:
+ * <pre>
+ * {@code update generation set counter=counter+1 where id=1;}
+ * {@code insert into changes (alias,operation,change_date) values('www.example.com',0,1500000000000);}</pre>
+ * A consumer that sees the generation change without any new change reloads all entries. Old changes can be
+ * deleted by the administrator once all consumers applied them: a consumer whose last applied change was deleted reloads
+ * all entries instead.
  */
 class StructureManager
 {
@@ -28,11 +45,15 @@ class StructureManager
     static final String INTEGRITY_TABLE = "integrity";
     static final String NAMES_TABLE = "names";
     static final String CERTIFICATE_CHAINS_TABLE = "certificate_chains";
+    static final String GENERATION_TABLE = "generation";
+    static final String CHANGES_TABLE = "changes";
     
-    static final int ENTRIES_VERSION = 1;
+    static final int ENTRIES_VERSION = 2;
     static final int INTEGRITY_VERSION = 1;
-    static final int NAMES_VERSION = 1;
-    static final int CERTIFICATE_CHAINS_VERSION = 1;
+    static final int NAMES_VERSION = 2;
+    static final int CERTIFICATE_CHAINS_VERSION = 2;
+    static final int GENERATION_VERSION = 1;
+    static final int CHANGES_VERSION = 1;
     
     private DataSource dataSource;
     
@@ -84,7 +105,7 @@ class StructureManager
         sb.append("create table if not exists ");
         sb.append(ENTRIES_TABLE);
         sb.append(" (");
-        sb.append("alias_hash varchar(64) not null");
+        sb.append("alias_hash binary(32) not null");
         sb.append(",");
         sb.append("entry_type int default 0");
         sb.append(",");
@@ -94,35 +115,25 @@ class StructureManager
         sb.append(",");
         sb.append("algorithm varchar(32)");
         sb.append(",");
-        sb.append("data text not null");
+        sb.append("data blob not null");
         sb.append(",");
-        sb.append("protection_key text");
+        sb.append("protection_key blob");
         sb.append(",");
-        sb.append("protection_param varchar(128)");
+        sb.append("protection_param varbinary(64)");
         sb.append(",");
         sb.append("primary key(alias_hash)");
         sb.append(",");
         sb.append("key(algorithm)");
         sb.append(")");
 
-        try (Connection conn = dataSource.getConnection())
-        {
-            if (getVersion(conn, ENTRIES_TABLE) != ENTRIES_VERSION)
-            {
-                try (PreparedStatement ps = conn.prepareStatement(sb.toString()))
-                {
-                    ps.execute();
-                }
-                
-                insertVersion(conn, new Version(ENTRIES_TABLE, ENTRIES_VERSION));
-            }
-        }
-        catch (SQLException e)
-        {
-            LOG.debug(e, e);
-            LOG.error(e);
-            throw new KeyStoreDAOException(e);
-        }
+        manageTable(ENTRIES_TABLE, ENTRIES_VERSION, sb.toString(),
+                "alter table " + ENTRIES_TABLE + " modify alias_hash varbinary(64) not null",
+                "alter table " + ENTRIES_TABLE + " modify data blob not null",
+                "alter table " + ENTRIES_TABLE + " modify protection_key blob",
+                "alter table " + ENTRIES_TABLE + " modify protection_param varbinary(128)",
+                "update " + ENTRIES_TABLE + " set alias_hash=unhex(alias_hash), data=from_base64(data), protection_key=from_base64(protection_key), protection_param=from_base64(protection_param)",
+                "alter table " + ENTRIES_TABLE + " modify alias_hash binary(32) not null",
+                "alter table " + ENTRIES_TABLE + " modify protection_param varbinary(64)");
     }
     
     /**
@@ -136,33 +147,20 @@ class StructureManager
         sb.append("create table if not exists ");
         sb.append(CERTIFICATE_CHAINS_TABLE);
         sb.append(" (");
-        sb.append("alias_hash varchar(64) not null");
+        sb.append("alias_hash binary(32) not null");
         sb.append(",");
         sb.append("rank int default 0");
         sb.append(",");
-        sb.append("data text not null");
+        sb.append("data blob not null");
         sb.append(",");
         sb.append("primary key (alias_hash, rank)");
         sb.append(")");
 
-        try (Connection conn = dataSource.getConnection())
-        {
-            if (getVersion(conn, CERTIFICATE_CHAINS_TABLE) != CERTIFICATE_CHAINS_VERSION)
-            {
-                try (PreparedStatement ps = conn.prepareStatement(sb.toString()))
-                {
-                    ps.execute();
-                }
-                
-                insertVersion(conn, new Version(CERTIFICATE_CHAINS_TABLE, CERTIFICATE_CHAINS_VERSION));
-            }
-        }
-        catch (SQLException e)
-        {
-            LOG.debug(e, e);
-            LOG.error(e);
-            throw new KeyStoreDAOException(e);
-        }
+        manageTable(CERTIFICATE_CHAINS_TABLE, CERTIFICATE_CHAINS_VERSION, sb.toString(),
+                "alter table " + CERTIFICATE_CHAINS_TABLE + " modify alias_hash varbinary(64) not null",
+                "alter table " + CERTIFICATE_CHAINS_TABLE + " modify data blob not null",
+                "update " + CERTIFICATE_CHAINS_TABLE + " set alias_hash=unhex(alias_hash), data=from_base64(data)",
+                "alter table " + CERTIFICATE_CHAINS_TABLE + " modify alias_hash binary(32) not null");
     }
     
     /**
@@ -176,9 +174,9 @@ class StructureManager
         sb.append("create table if not exists ");
         sb.append(NAMES_TABLE);
         sb.append(" (");
-        sb.append("alias_hash varchar(64) not null");
+        sb.append("alias_hash binary(32) not null");
         sb.append(",");
-        sb.append("name_hash varchar(64) not null");
+        sb.append("name_hash binary(32) not null");
         sb.append(",");
         sb.append("name varchar(256) not null");
         sb.append(",");
@@ -187,24 +185,12 @@ class StructureManager
         sb.append("key (name_hash)");
         sb.append(")");
 
-        try (Connection conn = dataSource.getConnection())
-        {
-            if (getVersion(conn, NAMES_TABLE) != NAMES_VERSION)
-            {
-                try (PreparedStatement ps = conn.prepareStatement(sb.toString()))
-                {
-                    ps.execute();
-                }
-                
-                insertVersion(conn, new Version(NAMES_TABLE, NAMES_VERSION));
-            }
-        }
-        catch (SQLException e)
-        {
-            LOG.debug(e, e);
-            LOG.error(e);
-            throw new KeyStoreDAOException(e);
-        }
+        manageTable(NAMES_TABLE, NAMES_VERSION, sb.toString(),
+                "alter table " + NAMES_TABLE + " modify alias_hash varbinary(64) not null",
+                "alter table " + NAMES_TABLE + " modify name_hash varbinary(64) not null",
+                "update " + NAMES_TABLE + " set alias_hash=unhex(alias_hash), name_hash=unhex(name_hash)",
+                "alter table " + NAMES_TABLE + " modify alias_hash binary(32) not null",
+                "alter table " + NAMES_TABLE + " modify name_hash binary(32) not null");
     }
     
     /**
@@ -231,17 +217,32 @@ class StructureManager
         sb.append("primary key(id)");
         sb.append(")");
 
-        try (Connection conn = dataSource.getConnection())
+        manageTable(INTEGRITY_TABLE, INTEGRITY_VERSION, sb.toString());
+    }
+    
+    /**
+     * Manage, create or update the table holding the generation of the entries. 
+     * 
+     * @throws KeyStoreDAOException if the database can not be accessed.
+     */
+    public void manageGenerationTable() throws KeyStoreDAOException
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("create table if not exists ");
+        sb.append(GENERATION_TABLE);
+        sb.append(" (");
+        sb.append("id bigint not null");
+        sb.append(",");
+        sb.append("counter bigint not null");
+        sb.append(",");
+        sb.append("primary key(id)");
+        sb.append(")");
+
+        manageTable(GENERATION_TABLE, GENERATION_VERSION, sb.toString());
+
+        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement("insert into " + GENERATION_TABLE + " (id,counter) values(1,0) on duplicate key update counter=counter"))
         {
-            if (getVersion(conn, INTEGRITY_TABLE) != INTEGRITY_VERSION)
-            {
-                try (PreparedStatement ps = conn.prepareStatement(sb.toString()))
-                {
-                    ps.execute();
-                }
-                
-                insertVersion(conn, new Version(INTEGRITY_TABLE, INTEGRITY_VERSION));
-            }
+            ps.executeUpdate();
         }
         catch (SQLException e)
         {
@@ -251,6 +252,31 @@ class StructureManager
         }
     }
     
+    /**
+     * Manage, create or update the log of changes made to the entries. 
+     * 
+     * @throws KeyStoreDAOException if the database can not be accessed.
+     */
+    public void manageChangesTable() throws KeyStoreDAOException
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("create table if not exists ");
+        sb.append(CHANGES_TABLE);
+        sb.append(" (");
+        sb.append("sequence bigint not null auto_increment");
+        sb.append(",");
+        sb.append("alias varchar(256) not null");
+        sb.append(",");
+        sb.append("operation int default 0");
+        sb.append(",");
+        sb.append("change_date bigint default 0");
+        sb.append(",");
+        sb.append("primary key(sequence)");
+        sb.append(")");
+
+        manageTable(CHANGES_TABLE, CHANGES_VERSION, sb.toString());
+    }
+    
     /**
      * Create the table of versions if it does not exist. 
      * 
@@ -270,6 +296,77 @@ class StructureManager
         }
     }
     
+    /**
+     * Create a table if it is not versioned yet, or migrate it from version 1 to the current version.
+     * Each migration step is committed with the number of steps done, recorded as a negative version, so that a migration
+     * interrupted by an error resumes at the failed step. Alterations must therefore be idempotent: a step may be run again
+     * if the process stops before its progress is recorded, unlike the updates committed with it.
+     * 
+     * @param tableName the name of the table.
+     * @param tableVersion the current version of the table.
+     * @param createStatement the statement creating the table in its current version.
+     * @param migrationStatements the statements migrating the table from version 1, one step each.
+     * @throws KeyStoreDAOException if the database can not be accessed.
+     */
+    private void manageTable(String tableName, int tableVersion, String createStatement, String... migrationStatements) throws KeyStoreDAOException
+    {
+        try (Connection conn = dataSource.getConnection())
+        {
+            int version = getVersion(conn, tableName);
+            if (version == tableVersion)
+                return;
+
+            if ((version == 1) || (version < 0))
+            {
+                int step = version < 0 ? -version : 0;
+                LOG.info("migrating table " + tableName + " from version 1 to version " + tableVersion + ", from step " + (step + 1) + " of " + migrationStatements.length);
+                for (; step < migrationStatements.length; step++)
+                    migrate(conn, new Version(tableName, step + 1 < migrationStatements.length ? -(step + 1) : tableVersion), migrationStatements[step]);
+                return;
+            }
+
+            try (PreparedStatement ps = conn.prepareStatement(createStatement))
+            {
+                ps.execute();
+            }
+
+            insertVersion(conn, new Version(tableName, tableVersion));
+        }
+        catch (SQLException e)
+        {
+            LOG.debug(e, e);
+            LOG.error(e);
+            throw new KeyStoreDAOException(e);
+        }
+    }
+    
+    /**
+     * Run a migration step, and record its progress in the same transaction.
+     */
+    private void migrate(Connection conn, Version progress, String statement) throws SQLException
+    {
+        boolean autoCom = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try
+        {
+            try (PreparedStatement ps = conn.prepareStatement(statement))
+            {
+                ps.execute();
+            }
+            insertVersion(conn, progress);
+            conn.commit();
+        }
+        catch (SQLException e)
+        {
+            conn.rollback();
+            throw e;
+        }
+        finally
+        {
+            conn.setAutoCommit(autoCom);
+        }
+    }
+    
     private int getVersion(Connection conn, String tableName) throws SQLException
     {
         int version = 0;
@@ -288,7 +385,7 @@ class StructureManager
     
     private void insertVersion(Connection conn, Version version) throws SQLException
     {
-        try (PreparedStatement ps = conn.prepareStatement("insert into " + VERSIONS_TABLE + " (table_name, version) value(?,?) on duplicate key update version=?"))
+        try (PreparedStatement ps = conn.prepareStatement("insert into " + VERSIONS_TABLE + " (table_name, version) values(?,?) on duplicate key update version=?"))
         {
             ps.setString(1, version.getTableName());
             ps.setInt(2, version.getTableVersion());
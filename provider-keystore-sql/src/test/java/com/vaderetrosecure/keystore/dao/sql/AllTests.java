@@ -8,7 +8,9 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({
     EncodingToolsTest.class,
     SqlKeyStoreDAOTest.class,
-    SqlKeyStoreDAOFactoryTest.class
+    SqlKeyStoreDAOFactoryTest.class,
+    StructureManagerTest.class,
+    SqlKeyStoreDAOChangesTest.class
 })
 public class AllTests
 {
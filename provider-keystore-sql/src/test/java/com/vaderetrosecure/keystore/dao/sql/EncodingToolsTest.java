@@ -64,4 +64,25 @@ public class EncodingToolsTest
         Assert.assertEquals(stringData0HashHexa, EncodingTools.toSHA2(stringData0)); ;
         Assert.assertEquals(stringData1HashHexa, EncodingTools.toSHA2(stringData1)); ;
     }
+
+    @Test
+    public void testToBinarySHA2()
+    {
+        Assert.assertArrayEquals(EncodingTools.hexStringDecode(stringData0HashHexa), EncodingTools.toBinarySHA2(stringData0));
+        Assert.assertEquals(32, EncodingTools.toBinarySHA2(stringData1).length);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testHexStringDecodeInvalid()
+    {
+        EncodingTools.hexStringDecode("0g");
+    }
+
+    @Test
+    public void testToBinarySHA2IsNotShared()
+    {
+        byte[] hash = EncodingTools.toBinarySHA2(stringData0);
+        hash[0] = (byte) ~hash[0];
+        Assert.assertEquals(stringData0HashHexa, EncodingTools.toSHA2(stringData0));
+    }
 }
@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.sql;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryChange;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryType;
+import com.vaderetrosecure.keystore.dao.LockedKeyProtection;
+
+/**
+ * The change log is followed against H2 in MySQL mode, while writers interleave: a writer is paused once its change got
+ * a sequence number, and another one writes meanwhile.
+ */
+public class SqlKeyStoreDAOChangesTest
+{
+    private static final AtomicInteger DATABASE_COUNT = new AtomicInteger();
+
+    private final CountDownLatch changeLogged = new CountDownLatch(1);
+    private final CountDownLatch resume = new CountDownLatch(1);
+    private volatile Thread pausedWriter;
+    private SqlKeyStoreDAO sqldao;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:changes" + DATABASE_COUNT.incrementAndGet() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000");
+        DataSource pausingDataSource = proxy(DataSource.class, dataSource, (method, args, result) -> method.getName().equals("getConnection") ? pausing((Connection) result) : result);
+        sqldao = new SqlKeyStoreDAO(pausingDataSource, new StructureManager(pausingDataSource));
+        sqldao.checkDAOStructure();
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        resume.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testInterleavedWritersDoNotSkipChanges() throws Exception
+    {
+        long sequence = sqldao.getLastChangeSequence();
+        Set<String> aliases = new HashSet<>();
+
+        Future<?> first = executor.submit(() -> {
+            pausedWriter = Thread.currentThread();
+            sqldao.setEntry(createEntry("first-alias"));
+            return null;
+        });
+        Assert.assertTrue(changeLogged.await(10, TimeUnit.SECONDS));
+        Future<?> second = executor.submit(() -> {
+            sqldao.setEntry(createEntry("second-alias"));
+            return null;
+        });
+
+        // the second writer waits for the first one: its change can not be committed before the first change
+        try
+        {
+            second.get(500, TimeUnit.MILLISECONDS);
+            Assert.fail("the second writer should wait for the first one");
+        }
+        catch (TimeoutException e)
+        {
+            // expected
+        }
+        sequence = follow(sequence, aliases);
+        Assert.assertTrue(aliases.isEmpty());
+
+        resume.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        follow(sequence, aliases);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("first-alias", "second-alias")), aliases);
+    }
+
+    /**
+     * Apply the changes following a sequence number, as the key managers do.
+     */
+    private long follow(long sequence, Set<String> aliases) throws Exception
+    {
+        List<KeyStoreEntryChange> changes = sqldao.getChangesSince(sequence);
+        Assert.assertNotNull(changes);
+        for (KeyStoreEntryChange change : changes)
+        {
+            aliases.add(change.getAlias());
+            sequence = change.getSequence();
+        }
+        return sequence;
+    }
+
+    private static KeyStoreEntry createEntry(String alias)
+    {
+        return new KeyStoreEntry(alias, Date.from(Instant.now()), KeyStoreEntryType.SECRET_KEY, "AES", new byte[] {1, 2, 3}, new LockedKeyProtection(new byte[] {4, 5, 6}, new byte[] {7, 8, 9}), Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * Wrap a connection so that the paused writer waits once its changes are inserted.
+     */
+    private Connection pausing(Connection conn)
+    {
+        return proxy(Connection.class, conn, (method, args, result) -> {
+            if (method.getName().equals("prepareStatement") && ((String) args[0]).startsWith("insert into " + StructureManager.CHANGES_TABLE))
+            {
+                return proxy(PreparedStatement.class, (PreparedStatement) result, (m, a, r) -> {
+                    if (m.getName().startsWith("execute") && (Thread.currentThread() == pausedWriter))
+                    {
+                        changeLogged.countDown();
+                        resume.await();
+                    }
+                    return r;
+                });
+            }
+            return result;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, T target, ResultHandler handler)
+    {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (p, method, args) -> {
+            Object result;
+            try
+            {
+                result = method.invoke(target, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+            return handler.handle(method, args, result);
+        });
+    }
+
+    private interface ResultHandler
+    {
+        Object handle(Method method, Object[] args, Object result) throws Exception;
+    }
+}
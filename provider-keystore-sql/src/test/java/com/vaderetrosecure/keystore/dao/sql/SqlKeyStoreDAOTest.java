@@ -3,10 +3,14 @@
  */
 package com.vaderetrosecure.keystore.dao.sql;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -19,9 +23,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -35,6 +41,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 import com.vaderetrosecure.keystore.dao.CertificateData;
 import com.vaderetrosecure.keystore.dao.IntegrityData;
@@ -42,6 +49,7 @@ import com.vaderetrosecure.keystore.dao.KeyProtection;
 import com.vaderetrosecure.keystore.dao.KeyStoreDAO;
 import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
 import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntryChange;
 
 
 /**
@@ -205,13 +213,13 @@ public class SqlKeyStoreDAOTest
         
         ResultSet mockResultSet = mock(ResultSet.class);
         when(mockResultSet.next()).thenReturn(true).thenReturn(false).thenReturn(false);
-        when(mockResultSet.getString(eq("protection_key"))).thenReturn(EncodingTools.b64Encode(keyStoreEntry.getLockedKeyProtection().getCipheredKey()));
-        when(mockResultSet.getString(eq("protection_param"))).thenReturn(EncodingTools.b64Encode(keyStoreEntry.getLockedKeyProtection().getIV()));
+        when(mockResultSet.getBytes(eq("protection_key"))).thenReturn(keyStoreEntry.getLockedKeyProtection().getCipheredKey());
+        when(mockResultSet.getBytes(eq("protection_param"))).thenReturn(keyStoreEntry.getLockedKeyProtection().getIV());
         when(mockResultSet.getString(eq("alias"))).thenReturn(keyStoreEntry.getAlias());
         when(mockResultSet.getLong(eq("creation_date"))).thenReturn(keyStoreEntry.getCreationDate().getTime());
         when(mockResultSet.getInt(eq("entry_type"))).thenReturn(keyStoreEntry.getEntryType().ordinal());
         when(mockResultSet.getString(eq("algorithm"))).thenReturn(keyStoreEntry.getAlgorithm());
-        when(mockResultSet.getString(eq("data"))).thenReturn(EncodingTools.b64Encode(keyStoreEntry.getEntryData()));
+        when(mockResultSet.getBytes(eq("data"))).thenReturn(keyStoreEntry.getEntryData());
         
         when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
         when(mockPreparedStatement.executeQuery()).thenReturn(mockResultSetNoNext).thenReturn(mockResultSet);
@@ -229,6 +237,120 @@ public class SqlKeyStoreDAOTest
         Assert.assertArrayEquals(keyStoreEntry.getNames().toArray(new String[]{}), kse.getNames().toArray(new String[]{}));
     }
     
+    @Test
+    public void testGetEntries() throws KeyStoreDAOException, SQLException
+    {
+        ResultSet mockEntriesResultSet = mock(ResultSet.class);
+        when(mockEntriesResultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(mockEntriesResultSet.getBytes(eq("alias_hash"))).thenReturn(EncodingTools.toBinarySHA2("alias-1")).thenReturn(EncodingTools.toBinarySHA2("alias-2"));
+        when(mockEntriesResultSet.getString(eq("alias"))).thenReturn("alias-1").thenReturn("alias-2");
+        when(mockEntriesResultSet.getInt(eq("entry_type"))).thenReturn(keyStoreEntry.getEntryType().ordinal());
+        when(mockEntriesResultSet.getBytes(eq("data"))).thenReturn(keyStoreEntry.getEntryData());
+
+        ResultSet mockDetailsResultSet = mock(ResultSet.class);
+        when(mockDetailsResultSet.next()).thenReturn(true).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(mockDetailsResultSet.getBytes(eq("alias_hash"))).thenReturn(EncodingTools.toBinarySHA2("alias-1")).thenReturn(EncodingTools.toBinarySHA2("alias-2")).thenReturn(EncodingTools.toBinarySHA2("alias-2"));
+        when(mockDetailsResultSet.getInt(eq("kind"))).thenReturn(1);
+        when(mockDetailsResultSet.getString(eq("name"))).thenReturn("name-1").thenReturn("name-2").thenReturn("name-3");
+
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockEntriesResultSet).thenReturn(mockDetailsResultSet);
+
+        List<KeyStoreEntry> entries = sqldao.getEntries("name-2");
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("alias-1", entries.get(0).getAlias());
+        Assert.assertEquals(Collections.singletonList("name-1"), entries.get(0).getNames());
+        Assert.assertEquals("alias-2", entries.get(1).getAlias());
+        Assert.assertEquals(Arrays.asList("name-2", "name-3"), entries.get(1).getNames());
+        Assert.assertTrue(entries.get(1).getCertificateChain().isEmpty());
+
+        // all entries are loaded in two round trips
+        verify(mockConnection, times(2)).prepareStatement(anyString());
+    }
+
+    @Test
+    public void testGetAllEntries() throws KeyStoreDAOException, SQLException
+    {
+        ResultSet mockEntriesResultSet = mock(ResultSet.class);
+        when(mockEntriesResultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(mockEntriesResultSet.getBytes(eq("alias_hash"))).thenReturn(EncodingTools.toBinarySHA2("alias-1")).thenReturn(EncodingTools.toBinarySHA2("alias-2"));
+        when(mockEntriesResultSet.getString(eq("alias"))).thenReturn("alias-1").thenReturn("alias-2");
+        when(mockEntriesResultSet.getInt(eq("entry_type"))).thenReturn(keyStoreEntry.getEntryType().ordinal());
+        when(mockEntriesResultSet.getBytes(eq("data"))).thenReturn(keyStoreEntry.getEntryData());
+
+        ResultSet mockDetailsResultSet = mock(ResultSet.class);
+        when(mockDetailsResultSet.next()).thenReturn(true).thenReturn(false);
+        when(mockDetailsResultSet.getBytes(eq("alias_hash"))).thenReturn(EncodingTools.toBinarySHA2("alias-2"));
+        when(mockDetailsResultSet.getInt(eq("kind"))).thenReturn(1);
+        when(mockDetailsResultSet.getString(eq("name"))).thenReturn("name-2");
+
+        ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+        when(mockConnection.prepareStatement(sqlCaptor.capture())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockEntriesResultSet).thenReturn(mockDetailsResultSet);
+
+        List<KeyStoreEntry> entries = sqldao.getAllEntries();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertTrue(entries.get(0).getNames().isEmpty());
+        Assert.assertEquals(Collections.singletonList("name-2"), entries.get(1).getNames());
+
+        // no condition, so no parameter
+        for (String sql : sqlCaptor.getAllValues())
+            Assert.assertFalse(sql.contains("where"));
+        verify(mockPreparedStatement, never()).setBytes(anyInt(), any(byte[].class));
+    }
+
+    @Test
+    public void testGetAllEntriesMetadata() throws KeyStoreDAOException, SQLException
+    {
+        ResultSet mockEntriesResultSet = mock(ResultSet.class);
+        when(mockEntriesResultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(mockEntriesResultSet.getBytes(eq("alias_hash"))).thenReturn(EncodingTools.toBinarySHA2("alias-1")).thenReturn(EncodingTools.toBinarySHA2("alias-2"));
+        when(mockEntriesResultSet.getString(eq("alias"))).thenReturn("alias-1").thenReturn("alias-2");
+        when(mockEntriesResultSet.getInt(eq("entry_type"))).thenReturn(keyStoreEntry.getEntryType().ordinal());
+        when(mockEntriesResultSet.getString(eq("algorithm"))).thenReturn("RSA");
+
+        ResultSet mockNamesResultSet = mock(ResultSet.class);
+        when(mockNamesResultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(mockNamesResultSet.getBytes(eq("alias_hash"))).thenReturn(EncodingTools.toBinarySHA2("alias-2"));
+        when(mockNamesResultSet.getString(eq("name"))).thenReturn("name-2").thenReturn("www.name-2");
+
+        ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+        when(mockConnection.prepareStatement(sqlCaptor.capture())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockEntriesResultSet).thenReturn(mockNamesResultSet);
+
+        List<KeyStoreEntry> entries = sqldao.getAllEntriesMetadata();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("alias-1", entries.get(0).getAlias());
+        Assert.assertEquals("RSA", entries.get(0).getAlgorithm());
+        Assert.assertEquals(keyStoreEntry.getEntryType(), entries.get(0).getEntryType());
+        Assert.assertTrue(entries.get(0).getNames().isEmpty());
+        Assert.assertEquals(Arrays.asList("name-2", "www.name-2"), entries.get(1).getNames());
+
+        // neither the key data nor the certificate chains are read
+        Assert.assertNull(entries.get(1).getEntryData());
+        Assert.assertTrue(entries.get(1).getCertificateChain().isEmpty());
+        verify(mockEntriesResultSet, never()).getBytes(eq("data"));
+        for (String sql : sqlCaptor.getAllValues())
+        {
+            Assert.assertFalse(sql.contains("*"));
+            Assert.assertFalse(sql.contains(StructureManager.CERTIFICATE_CHAINS_TABLE));
+        }
+    }
+
+    @Test
+    public void testGetNames() throws KeyStoreDAOException, SQLException
+    {
+        ResultSet mockResultSet = mock(ResultSet.class);
+        when(mockResultSet.next()).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(mockResultSet.getString(1)).thenReturn("name-1").thenReturn("name-2");
+        ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+        when(mockConnection.prepareStatement(sqlCaptor.capture())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockResultSet);
+
+        Assert.assertEquals(Arrays.asList("name-1", "name-2"), sqldao.getNames());
+        Assert.assertEquals("select distinct name from " + StructureManager.NAMES_TABLE, sqlCaptor.getValue());
+    }
+
     @Test(expected=KeyStoreDAOException.class)
     public void testGetEntryException() throws KeyStoreDAOException, SQLException
     {
@@ -242,38 +364,49 @@ public class SqlKeyStoreDAOTest
     {
         ArgumentCaptor<Integer> idLongCaptor = ArgumentCaptor.forClass(Integer.class);
         ArgumentCaptor<Integer> idStringCaptor = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> idBytesCaptor = ArgumentCaptor.forClass(Integer.class);
         ArgumentCaptor<Integer> idIntCaptor = ArgumentCaptor.forClass(Integer.class);
         ArgumentCaptor<Long> longCaptor = ArgumentCaptor.forClass(Long.class);
         ArgumentCaptor<String> strCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<byte[]> bytesCaptor = ArgumentCaptor.forClass(byte[].class);
         ArgumentCaptor<Integer> intCaptor = ArgumentCaptor.forClass(Integer.class);
         
         when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
         
         sqldao.setEntry(keyStoreEntry);
-        verify(mockPreparedStatement, times(1)).setLong(idLongCaptor.capture(), longCaptor.capture());
-        verify(mockPreparedStatement, times(1)).setInt(idIntCaptor.capture(), intCaptor.capture());
-        verify(mockPreparedStatement, times(6)).setString(idStringCaptor.capture(), strCaptor.capture());
+        // the entry, then the change log
+        verify(mockPreparedStatement, times(2)).setLong(idLongCaptor.capture(), longCaptor.capture());
+        verify(mockPreparedStatement, times(2)).setInt(idIntCaptor.capture(), intCaptor.capture());
+        verify(mockPreparedStatement, times(3)).setString(idStringCaptor.capture(), strCaptor.capture());
+        verify(mockPreparedStatement, times(4)).setBytes(idBytesCaptor.capture(), bytesCaptor.capture());
         
-        Assert.assertEquals(2, idIntCaptor.getValue().intValue());
-        Assert.assertEquals(keyStoreEntry.getEntryType().ordinal(), intCaptor.getValue().intValue());
+        Assert.assertEquals(2, idIntCaptor.getAllValues().get(0).intValue());
+        Assert.assertEquals(keyStoreEntry.getEntryType().ordinal(), intCaptor.getAllValues().get(0).intValue());
+        Assert.assertEquals(2, idIntCaptor.getAllValues().get(1).intValue());
+        Assert.assertEquals(KeyStoreEntryChange.Operation.SET.ordinal(), intCaptor.getAllValues().get(1).intValue());
 
-        Assert.assertEquals(4, idLongCaptor.getValue().intValue());
-        Assert.assertEquals(keyStoreEntry.getCreationDate(), new Date(longCaptor.getValue().longValue()));
+        Assert.assertEquals(4, idLongCaptor.getAllValues().get(0).intValue());
+        Assert.assertEquals(keyStoreEntry.getCreationDate(), new Date(longCaptor.getAllValues().get(0).longValue()));
         
         List<Integer> ids = idStringCaptor.getAllValues();
         List<String> strings = strCaptor.getAllValues();
+        Assert.assertEquals(3, ids.get(0).intValue());
+        Assert.assertEquals(keyStoreEntry.getAlias(), strings.get(0));
+        Assert.assertEquals(5, ids.get(1).intValue());
+        Assert.assertEquals(keyStoreEntry.getAlgorithm(), strings.get(1));
+        Assert.assertEquals(1, ids.get(2).intValue());
+        Assert.assertEquals(keyStoreEntry.getAlias(), strings.get(2));
+
+        ids = idBytesCaptor.getAllValues();
+        List<byte[]> bytes = bytesCaptor.getAllValues();
         Assert.assertEquals(1, ids.get(0).intValue());
-        Assert.assertEquals(EncodingTools.toSHA2(keyStoreEntry.getAlias()), strings.get(0));
-        Assert.assertEquals(3, ids.get(1).intValue());
-        Assert.assertEquals(keyStoreEntry.getAlias(), strings.get(1));
-        Assert.assertEquals(5, ids.get(2).intValue());
-        Assert.assertEquals(keyStoreEntry.getAlgorithm(), strings.get(2));
-        Assert.assertEquals(6, ids.get(3).intValue());
-        Assert.assertArrayEquals(keyStoreEntry.getEntryData(), EncodingTools.b64Decode(strings.get(3)));
-        Assert.assertEquals(7, ids.get(4).intValue());
-        Assert.assertArrayEquals(keyStoreEntry.getLockedKeyProtection().getCipheredKey(), EncodingTools.b64Decode(strings.get(4)));
-        Assert.assertEquals(8, ids.get(5).intValue());
-        Assert.assertArrayEquals(keyStoreEntry.getLockedKeyProtection().getIV(), EncodingTools.b64Decode(strings.get(5)));
+        Assert.assertArrayEquals(EncodingTools.toBinarySHA2(keyStoreEntry.getAlias()), bytes.get(0));
+        Assert.assertEquals(6, ids.get(1).intValue());
+        Assert.assertArrayEquals(keyStoreEntry.getEntryData(), bytes.get(1));
+        Assert.assertEquals(7, ids.get(2).intValue());
+        Assert.assertArrayEquals(keyStoreEntry.getLockedKeyProtection().getCipheredKey(), bytes.get(2));
+        Assert.assertEquals(8, ids.get(3).intValue());
+        Assert.assertArrayEquals(keyStoreEntry.getLockedKeyProtection().getIV(), bytes.get(3));
     }
     
     @Test(expected=KeyStoreDAOException.class)
@@ -283,4 +416,163 @@ public class SqlKeyStoreDAOTest
         
         sqldao.setEntry(keyStoreEntry);
     }
+    
+    @Test(expected=KeyStoreDAOException.class)
+    public void testGetGeneration() throws KeyStoreDAOException, SQLException
+    {
+        ResultSet mockResultSetNoNext = mock(ResultSet.class);
+        when(mockResultSetNoNext.next()).thenReturn(false);
+        
+        ResultSet mockResultSet = mock(ResultSet.class);
+        when(mockResultSet.next()).thenReturn(true);
+        when(mockResultSet.getLong(anyInt())).thenReturn(42L).thenThrow(new SQLException());
+        
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockResultSetNoNext).thenReturn(mockResultSet);
+        
+        Assert.assertEquals(0L, sqldao.getGeneration());
+        Assert.assertEquals(42L, sqldao.getGeneration());
+        sqldao.getGeneration();
+    }
+    
+    @Test
+    public void testGetChangesSince() throws KeyStoreDAOException, SQLException
+    {
+        ResultSet mockResultSet = mock(ResultSet.class);
+        when(mockResultSet.next()).thenReturn(true).thenReturn(true).thenReturn(true).thenReturn(false);
+        when(mockResultSet.getLong(eq("sequence"))).thenReturn(10L).thenReturn(11L).thenReturn(12L);
+        when(mockResultSet.getString(eq("alias"))).thenReturn("alias-1").thenReturn("alias-2");
+        when(mockResultSet.getInt(eq("operation"))).thenReturn(KeyStoreEntryChange.Operation.SET.ordinal()).thenReturn(KeyStoreEntryChange.Operation.DELETE.ordinal());
+        
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockResultSet);
+        
+        List<KeyStoreEntryChange> changes = sqldao.getChangesSince(10L);
+        verify(mockPreparedStatement, times(1)).setLong(eq(1), eq(10L));
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals(11L, changes.get(0).getSequence());
+        Assert.assertEquals("alias-1", changes.get(0).getAlias());
+        Assert.assertEquals(KeyStoreEntryChange.Operation.SET, changes.get(0).getOperation());
+        Assert.assertEquals(12L, changes.get(1).getSequence());
+        Assert.assertEquals("alias-2", changes.get(1).getAlias());
+        Assert.assertEquals(KeyStoreEntryChange.Operation.DELETE, changes.get(1).getOperation());
+    }
+    
+    @Test
+    public void testGetChangesSinceDeletedChange() throws KeyStoreDAOException, SQLException
+    {
+        // the last known change was deleted from the log: the changes following it can not be trusted
+        ResultSet mockResultSet = mock(ResultSet.class);
+        when(mockResultSet.next()).thenReturn(true).thenReturn(false);
+        when(mockResultSet.getLong(eq("sequence"))).thenReturn(12L);
+        when(mockResultSet.getString(eq("alias"))).thenReturn("alias-2");
+        when(mockResultSet.getInt(eq("operation"))).thenReturn(KeyStoreEntryChange.Operation.SET.ordinal());
+        
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockResultSet);
+        
+        Assert.assertNull(sqldao.getChangesSince(10L));
+    }
+    
+    @Test
+    public void testGetLastChangeSequence() throws KeyStoreDAOException, SQLException
+    {
+        ResultSet mockResultSet = mock(ResultSet.class);
+        when(mockResultSet.next()).thenReturn(true);
+        when(mockResultSet.getLong(eq(1))).thenReturn(12L);
+        
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockResultSet);
+        
+        Assert.assertEquals(12L, sqldao.getLastChangeSequence());
+    }
+    
+    @Test
+    public void testSetEntries() throws Exception
+    {
+        KeyProtection kp = KeyProtection.generateKeyProtection(KEY_PASSWORD.toCharArray(), integrityData.getSalt());
+        KeyStoreEntry namedEntry = new KeyStoreEntry("named-alias", Date.from(Instant.now()), new SecretKeySpec("other key".getBytes(StandardCharsets.US_ASCII), "AES"), kp, Collections.emptyList(), Collections.singletonList("test.com"));
+        namedEntry.setLockedKeyProtection(kp.getLockedKeyProtection(null));
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        
+        sqldao.setEntries(Arrays.asList(keyStoreEntry, namedEntry));
+        // 3 deletions and 3 insertions of both entries, 1 name, and 2 changes, in a single transaction
+        verify(mockConnection, times(8)).prepareStatement(anyString());
+        verify(mockPreparedStatement, times(11)).addBatch();
+        verify(mockPreparedStatement, never()).executeUpdate(anyString());
+        verify(mockConnection, times(1)).commit();
+        
+        sqldao.setEntries(Collections.emptyList());
+        verify(mockConnection, times(1)).commit();
+    }
+    
+    @Test
+    public void testDeleteEntries() throws KeyStoreDAOException, SQLException
+    {
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        
+        sqldao.deleteEntries(Arrays.asList(keyStoreEntry, keyStoreEntry));
+        verify(mockPreparedStatement, times(8)).addBatch();
+        verify(mockConnection, times(1)).commit();
+    }
+    
+    @Test
+    public void testNameFilter() throws KeyStoreDAOException, SQLException
+    {
+        sqldao = new SqlKeyStoreDAO(mockDataSource, mockStructureManager, true, 60L, TimeUnit.SECONDS);
+        ResultSet mockEmptyResultSet = mock(ResultSet.class);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        when(mockPreparedStatement.executeQuery()).thenReturn(mockEmptyResultSet);
+        mockQuery("select counter from " + StructureManager.GENERATION_TABLE + " where id=1", 1L);
+        ResultSet mockNamesResultSet = mockQuery("select distinct name from " + StructureManager.NAMES_TABLE, 0L);
+        when(mockNamesResultSet.getString(1)).thenReturn("www.example.com");
+
+        // the generation and the names are read when the structure is checked
+        sqldao.checkDAOStructure();
+        verify(mockDataSource, times(2)).getConnection();
+
+        // unknown names never reach the database
+        for (int i = 0; i < 100; i++)
+            Assert.assertTrue(sqldao.getEntries("scan-" + i + ".example.com").isEmpty());
+        Assert.assertTrue(sqldao.getEntries("www.example.com").isEmpty());
+        verify(mockDataSource, times(3)).getConnection();
+
+        // set names are added to the filter
+        KeyStoreEntry kse = new KeyStoreEntry("new-alias", Date.from(Instant.now()), keyStoreEntry.getEntryType(), null, keyStoreEntry.getEntryData(), 
+                keyStoreEntry.getLockedKeyProtection(), Collections.emptyList(), Collections.singletonList("new.example.com"));
+        sqldao.setEntry(kse);
+        sqldao.getEntries("new.example.com");
+        verify(mockDataSource, times(5)).getConnection();
+    }
+
+    @Test
+    public void testSetAndDeleteEntryIncrementGeneration() throws KeyStoreDAOException, SQLException
+    {
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockPreparedStatement);
+        
+        sqldao.setEntry(keyStoreEntry);
+        sqldao.deleteEntry(keyStoreEntry);
+        verify(mockConnection, times(2)).prepareStatement(eq("update " + StructureManager.GENERATION_TABLE + " set counter=counter+1 where id=1"));
+        verify(mockConnection, times(2)).commit();
+
+        // the generation is incremented before the changes are logged, in each transaction
+        InOrder inOrder = inOrder(mockConnection);
+        for (int i = 0; i < 2; i++)
+        {
+            inOrder.verify(mockConnection).prepareStatement(eq("update " + StructureManager.GENERATION_TABLE + " set counter=counter+1 where id=1"));
+            inOrder.verify(mockConnection).prepareStatement(startsWith("insert into " + StructureManager.CHANGES_TABLE));
+            inOrder.verify(mockConnection).commit();
+        }
+    }
+
+    private ResultSet mockQuery(String sql, long value) throws SQLException
+    {
+        PreparedStatement ps = mock(PreparedStatement.class);
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true).thenReturn(false);
+        when(rs.getLong(1)).thenReturn(value);
+        when(ps.executeQuery()).thenReturn(rs);
+        when(mockConnection.prepareStatement(eq(sql))).thenReturn(ps);
+        return rs;
+    }
 }
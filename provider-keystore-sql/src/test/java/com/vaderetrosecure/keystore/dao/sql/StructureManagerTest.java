@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package com.vaderetrosecure.keystore.dao.sql;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaderetrosecure.keystore.dao.KeyStoreDAOException;
+import com.vaderetrosecure.keystore.dao.KeyStoreEntry;
+
+/**
+ * Migrations are run against H2 in MySQL mode, which lacks the {@code unhex} and {@code from_base64} functions: they are
+ * declared as aliases of the static methods of this class.
+ */
+public class StructureManagerTest
+{
+    private static final AtomicInteger DATABASE_COUNT = new AtomicInteger();
+
+    private static final String ALIAS = "key-alias";
+    private static final String NAME = "www.example.com";
+    private static final byte[] DATA = {0, 1, 2, 3, (byte) 0x80, (byte) 0xff};
+    private static final byte[] PROTECTION_KEY = {4, 5, 6, (byte) 0xfe};
+    private static final byte[] PROTECTION_PARAM = {7, 8, 9};
+    private static final byte[] CERTIFICATE = {10, 11, 12, (byte) 0xfd};
+
+    private JdbcDataSource dataSource;
+    private StructureManager structureManager;
+    private SqlKeyStoreDAO sqldao;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:structure" + DATABASE_COUNT.incrementAndGet() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        structureManager = new StructureManager(dataSource);
+        sqldao = new SqlKeyStoreDAO(dataSource, structureManager);
+
+        createFunction("unhex");
+        createFunction("from_base64");
+
+        // the tables as created by version 1
+        structureManager.createVersionsTable();
+        execute("create table " + StructureManager.ENTRIES_TABLE + " (alias_hash varchar(64) not null, entry_type int default 0, alias varchar(256) not null, creation_date bigint default 0, algorithm varchar(32), data text not null, protection_key text, protection_param varchar(128), primary key(alias_hash), key(algorithm))");
+        execute("create table " + StructureManager.CERTIFICATE_CHAINS_TABLE + " (alias_hash varchar(64) not null, rank int default 0, data text not null, primary key (alias_hash, rank))");
+        execute("create table " + StructureManager.NAMES_TABLE + " (alias_hash varchar(64) not null, name_hash varchar(64) not null, name varchar(256) not null, primary key(alias_hash, name_hash), key (name_hash))");
+        execute("insert into " + StructureManager.ENTRIES_TABLE + " (alias_hash,entry_type,alias,creation_date,algorithm,data,protection_key,protection_param) values ('"
+                + EncodingTools.toSHA2(ALIAS) + "',0,'" + ALIAS + "',1000,'RSA','" + EncodingTools.b64Encode(DATA) + "','" + EncodingTools.b64Encode(PROTECTION_KEY) + "','" + EncodingTools.b64Encode(PROTECTION_PARAM) + "')");
+        execute("insert into " + StructureManager.CERTIFICATE_CHAINS_TABLE + " (alias_hash,rank,data) values ('" + EncodingTools.toSHA2(ALIAS) + "',0,'" + EncodingTools.b64Encode(CERTIFICATE) + "')");
+        execute("insert into " + StructureManager.NAMES_TABLE + " (alias_hash,name_hash,name) values ('" + EncodingTools.toSHA2(ALIAS) + "','" + EncodingTools.toSHA2(NAME) + "','" + NAME + "')");
+        for (String table : new String[] {StructureManager.ENTRIES_TABLE, StructureManager.CERTIFICATE_CHAINS_TABLE, StructureManager.NAMES_TABLE})
+            execute("insert into " + StructureManager.VERSIONS_TABLE + " (table_name,version) values ('" + table + "',1)");
+    }
+
+    @Test
+    public void testMigration() throws Exception
+    {
+        sqldao.checkDAOStructure();
+        Assert.assertEquals(StructureManager.ENTRIES_VERSION, getVersion(StructureManager.ENTRIES_TABLE));
+        Assert.assertEquals(StructureManager.CERTIFICATE_CHAINS_VERSION, getVersion(StructureManager.CERTIFICATE_CHAINS_TABLE));
+        Assert.assertEquals(StructureManager.NAMES_VERSION, getVersion(StructureManager.NAMES_TABLE));
+        assertMigrated();
+
+        // a migrated table is left as is
+        sqldao.checkDAOStructure();
+        assertMigrated();
+    }
+
+    @Test
+    public void testInterruptedMigrationResumes() throws Exception
+    {
+        // the conversion of the entries fails after their columns were widened
+        execute("drop alias from_base64");
+        try
+        {
+            structureManager.manageEntriesTable();
+            Assert.fail("the conversion should fail");
+        }
+        catch (KeyStoreDAOException e)
+        {
+            // expected
+        }
+        Assert.assertEquals(-4, getVersion(StructureManager.ENTRIES_TABLE));
+
+        // the failed step is run again, the values are converted once
+        createFunction("from_base64");
+        sqldao.checkDAOStructure();
+        Assert.assertEquals(StructureManager.ENTRIES_VERSION, getVersion(StructureManager.ENTRIES_TABLE));
+        assertMigrated();
+    }
+
+    @Test
+    public void testConvertedValuesAreNotConvertedAgain() throws Exception
+    {
+        sqldao.checkDAOStructure();
+
+        // the process stopped after the conversion was committed, before the last alterations
+        execute("update " + StructureManager.VERSIONS_TABLE + " set version=-5 where table_name='" + StructureManager.ENTRIES_TABLE + "'");
+        execute("update " + StructureManager.VERSIONS_TABLE + " set version=-3 where table_name='" + StructureManager.NAMES_TABLE + "'");
+        sqldao.checkDAOStructure();
+        Assert.assertEquals(StructureManager.ENTRIES_VERSION, getVersion(StructureManager.ENTRIES_TABLE));
+        Assert.assertEquals(StructureManager.NAMES_VERSION, getVersion(StructureManager.NAMES_TABLE));
+        assertMigrated();
+    }
+
+    private void assertMigrated() throws Exception
+    {
+        KeyStoreEntry kse = sqldao.getEntry(ALIAS);
+        Assert.assertNotNull(kse);
+        Assert.assertEquals("RSA", kse.getAlgorithm());
+        Assert.assertArrayEquals(DATA, kse.getEntryData());
+        Assert.assertArrayEquals(PROTECTION_KEY, kse.getLockedKeyProtection().getCipheredKey());
+        Assert.assertArrayEquals(PROTECTION_PARAM, kse.getLockedKeyProtection().getIV());
+        Assert.assertEquals(1, kse.getCertificateChain().size());
+        Assert.assertArrayEquals(CERTIFICATE, kse.getCertificateChain().get(0).getEncodedCertificate());
+        Assert.assertEquals(Collections.singletonList(NAME), kse.getNames());
+        Assert.assertEquals(1, sqldao.getEntries(NAME).size());
+    }
+
+    private int getVersion(String tableName) throws SQLException
+    {
+        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement("select version from " + StructureManager.VERSIONS_TABLE + " where table_name=?"))
+        {
+            ps.setString(1, tableName);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                Assert.assertTrue(rs.next());
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private void createFunction(String name) throws SQLException
+    {
+        execute("create alias " + name + " for '" + StructureManagerTest.class.getName() + "." + name + "'");
+    }
+
+    private void execute(String statement) throws SQLException
+    {
+        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement(statement))
+        {
+            ps.execute();
+        }
+    }
+
+    public static byte[] unhex(byte[] value)
+    {
+        return value == null ? null : EncodingTools.hexStringDecode(new String(value, StandardCharsets.US_ASCII));
+    }
+
+    public static byte[] from_base64(byte[] value)
+    {
+        return value == null ? null : EncodingTools.b64Decode(new String(value, StandardCharsets.US_ASCII));
+    }
+}